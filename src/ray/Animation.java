@@ -0,0 +1,139 @@
+package ray;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ray.camera.Camera;
+import ray.camera.CameraPath;
+import ray.io.Parser;
+import ray.misc.Image;
+import ray.misc.RenderStats;
+import ray.misc.Scene;
+
+/**
+ * Renders a camera fly-through: the scene is parsed and its acceleration structure
+ * built once, then every frame of a CameraPath is rendered with it, only the camera
+ * changing.  Frames are pipelined: while frame N+1 is traced, frame N is tonemapped
+ * and written on a separate thread.  Two linear images take turns as the render
+ * target, so the output of a frame never waits for a copy.
+ *
+ * Usage: Animation [-s threads] [-hdr] [-sbvh] [-wavefront] [-nopackets]
+ *                  scene.xml path.xml [output_prefix]
+ * writes output_prefix0000.png, output_prefix0001.png, ... (and .pfm files of the
+ * linear images with -hdr).  The prefix defaults to the scene file name plus a dot.
+ * -sbvh, -wavefront and -nopackets set the scene up as they do for ParaRayTracer.
+ */
+public class Animation {
+
+    public static void main(String[] args) {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        boolean writeHDR = false;
+        boolean sbvh = false;
+        boolean wavefront = false;
+        int ctr = 0;
+        while (ctr < args.length && args[ctr].startsWith("-")) {
+            if (args[ctr].equals("-s"))
+                nThreads = Integer.parseInt(args[++ctr]);
+            else if (args[ctr].equals("-hdr"))
+                writeHDR = true;
+            else if (args[ctr].equals("-sbvh"))
+                sbvh = true;
+            else if (args[ctr].equals("-wavefront"))
+                wavefront = true;
+            else if (args[ctr].equals("-nopackets"))
+                ParaRayTracer.setPackets(false);
+            else
+                throw new Error("Unknown option " + args[ctr]);
+            ctr++;
+        }
+        if (args.length - ctr < 2)
+            throw new Error("Usage: Animation [-s threads] [-hdr] [-sbvh] [-wavefront] [-nopackets] "
+                            + "scene.xml path.xml [output_prefix]");
+        String sceneFile = args[ctr];
+        String pathFile = args[ctr + 1];
+        String prefix = args.length - ctr > 2 ? args[ctr + 2] : sceneFile + ".";
+
+        Parser parser = new Parser();
+        Scene scene = (Scene) parser.parse(sceneFile, Scene.class);
+        CameraPath path = (CameraPath) parser.parse(pathFile, CameraPath.class);
+        ParaRayTracer.configureScene(scene, sbvh, wavefront);
+        scene.init();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        ExecutorService output = Executors.newSingleThreadExecutor(r -> new Thread(r, "frame-output"));
+        System.out.println("Render " + path.getFrames() + " frames with " + nThreads + " threads.");
+        try {
+            render(scene, path, prefix, writeHDR, executor, output);
+        } finally {
+            executor.shutdown();
+            output.shutdown();
+        }
+    }
+
+    /**
+     * Render all frames of the path, overlapping the output of each frame with the
+     * tracing of the next.
+     */
+    public static void render(Scene scene, CameraPath path, String prefix, boolean writeHDR,
+                              ExecutorService executor, ExecutorService output) {
+        Camera baseCamera = scene.getCamera();
+        Image first = scene.getImage();
+        Image[] buffers = { first, new Image(first.getWidth(), first.getHeight()) };
+        Future<?>[] written = new Future<?>[buffers.length];
+
+        long startNs = System.nanoTime();
+        double traceSeconds = 0;
+        for (int frame = 0; frame < path.getFrames(); frame++) {
+            int b = frame % buffers.length;
+            // The buffer is free again once the frame that used it has been written
+            await(written[b]);
+
+            Image image = buffers[b];
+            image.clear();
+            scene.setImage(image);
+            scene.setCamera(path.getCamera(frame, baseCamera));
+
+            if (RenderStats.ENABLED)
+                RenderStats.reset();
+            long frameStart = System.nanoTime();
+            List<Future<?>> blocks = ParaRayTracer.renderImage(scene, executor, false);
+            for (Future<?> block : blocks)
+                await(block);
+            double seconds = (System.nanoTime() - frameStart) / 1e9;
+            traceSeconds += seconds;
+
+            String name = prefix + String.format(Locale.ROOT, "%04d", frame);
+            System.out.println(String.format(Locale.ROOT, " frame %d traced in %.3f s%s", frame, seconds,
+                               RenderStats.ENABLED ? String.format(Locale.ROOT, ", %.3f Mrays/s",
+                                   RenderStats.collect().getRays() / seconds / 1e6) : ""));
+            written[b] = output.submit(() -> {
+                scene.getTonemapper().apply(image).write(name + ".png");
+                if (writeHDR)
+                    image.writePFM(name + ".pfm");
+            });
+        }
+        for (Future<?> w : written)
+            await(w);
+        scene.setImage(first);
+        scene.setCamera(baseCamera);
+
+        double totalSeconds = (System.nanoTime() - startNs) / 1e9;
+        System.out.println(String.format(Locale.ROOT,
+            "%d frames in %.2f s (%.2f s tracing): %.1f frames per hour",
+            path.getFrames(), totalSeconds, traceSeconds, path.getFrames() * 3600 / totalSeconds));
+    }
+
+    private static void await(Future<?> future) {
+        if (future == null)
+            return;
+        try {
+            future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new Error("Animation: frame failed", e);
+        }
+    }
+}
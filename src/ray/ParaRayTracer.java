@@ -1,18 +1,32 @@
 package ray;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import ray.accel.BVHBuilder;
+import ray.accel.SpatialSplitBuilder;
 import ray.camera.Camera;
 import ray.io.Parser;
 import ray.math.Point2;
 import ray.misc.Color;
+import ray.misc.CostMap;
 import ray.misc.Image;
 import ray.misc.Ray;
+import ray.misc.RayPacket;
+import ray.misc.RenderEvents;
+import ray.misc.RenderStats;
 import ray.misc.Scene;
+import ray.renderer.PacketRenderer;
+import ray.renderer.PathTracer;
 import ray.renderer.Renderer;
+import ray.renderer.WavefrontPathTracer;
 import ray.sampling.SampleGenerator;
+import ray.server.RenderCoordinator;
 import ray.viewer.QuickViewer;
 
 import ray.background.Cubemap;
@@ -35,10 +49,14 @@ public class ParaRayTracer {
     protected static int SUB_WIDTH = 32;
     protected static int SUB_HEIGHT = 32;
 
+    /** Camera packets cover squares of PACKET_SIDE x PACKET_SIDE pixels */
+    public static final int PACKET_SIDE = 4;
+
     /**
-     * Widget to draw the image spiral.
+     * Whether renderers that can trace packets of rays (PacketRenderer) do, for
+     * the camera rays and the rays they spawn.
      */
-    private static final Spiral spiral = new Spiral();
+    private static boolean packets = true;
 
     /**
      * Useful little display window that shows rendering progress.
@@ -49,11 +67,34 @@ public class ParaRayTracer {
     private static QuickViewer viewer = null;
 
     private static ExecutorService executor = null;
+
+    /**
+     * Per-pixel render cost, recorded when asked for on the command line.
+     */
+    private static CostMap costMap = null;
+
     /**
      * The main method takes all the parameters an assumes they are input files
      * for the ray tracer. It tries to render each one and write it out to a PNG
      * file named <code>input_file</code>.png.
      *
+     * The image is rendered in linear radiance and tonemapped by the scene's
+     * tonemapper on output.
+     *
+     * Options: -s n renders with n threads; -heatmap time or -heatmap traversal also
+     * writes the cost of each pixel to <code>input_file</code>.cost.png and .cost.pfm;
+     * -hdr also writes the linear image, before tonemapping, to <code>input_file</code>.pfm;
+     * -sbvh builds the scene's BVH with spatial splits, slower to build but faster to
+     * trace, unless the scene file names its own builder.  Renderers that can
+     * (PacketRenderer) trace camera rays in packets of PACKET_SIDE x PACKET_SIDE
+     * pixels, with a FlatBVH; -nopackets traces every ray on its own.  -wavefront
+     * replaces a PathTracer with a WavefrontPathTracer of the same depth limit.
+     *
+     * Distributed rendering: -listen port hands the tiles to RenderWorker processes
+     * connecting on that port instead of rendering here; -spawn n also starts n
+     * worker JVMs on this machine, each with the -s threads; -timeout seconds is how
+     * long a tile may take before it is also handed to another worker.
+     *
      * @param args the command line parameters
      */
     public static final void main(String[] args) {
@@ -63,21 +104,56 @@ public class ParaRayTracer {
         int ctr = 0;
         int nThreads = Runtime.getRuntime().availableProcessors();
 
-        //System.out.println(args[0] + "  " + args[0].equals("-s"));
-        if ( args.length > 2 && args[0].equals("-s") ) {
-        	nThreads = Integer.parseInt(args[1]);
-        	ctr += 2;
+        CostMap.Metric costMetric = null;
+        boolean writeHDR = false, sbvh = false, wavefront = false;
+        int listenPort = 0, spawnWorkers = 0;
+        double timeout = RenderCoordinator.DEFAULT_TIMEOUT;
+        while ( ctr < args.length - 1 && args[ctr].startsWith("-") ) {
+        	if ( args[ctr].equals("-s") )
+        		nThreads = Integer.parseInt(args[++ctr]);
+        	else if ( args[ctr].equals("-heatmap") )
+        		costMetric = CostMap.Metric.valueOf(args[++ctr].toUpperCase());
+        	else if ( args[ctr].equals("-hdr") )
+        		writeHDR = true;
+        	else if ( args[ctr].equals("-sbvh") )
+        		sbvh = true;
+        	else if ( args[ctr].equals("-nopackets") )
+        		packets = false;
+        	else if ( args[ctr].equals("-wavefront") )
+        		wavefront = true;
+        	else if ( args[ctr].equals("-listen") )
+        		listenPort = Integer.parseInt(args[++ctr]);
+        	else if ( args[ctr].equals("-spawn") )
+        		spawnWorkers = Integer.parseInt(args[++ctr]);
+        	else if ( args[ctr].equals("-timeout") )
+        		timeout = Double.parseDouble(args[++ctr]);
+        	else
+        		throw new Error("Unknown option " + args[ctr]);
+        	ctr++;
         }
 
-        System.out.println("Render with " + nThreads + " threads.");
-        executor = Executors.newFixedThreadPool(nThreads);
+        if ( spawnWorkers > 0 && listenPort == 0 )
+        	listenPort = RenderCoordinator.DEFAULT_PORT;
+        if ( listenPort > 0 && costMetric != null )
+        	throw new Error("-heatmap needs a local render, not -listen");
 
-        // Get the input/output filenames.
+        // Get the input filename.
         String inputFilename = args[ctr];
-        String outputFilename = inputFilename + ".png";
 
         // Parse the input file
         Scene scene = (Scene) parser.parse(inputFilename, Scene.class);
+        configureScene(scene, sbvh, wavefront);
+        if ( costMetric != null )
+        	costMap = new CostMap(costMetric, scene.getImage().getWidth(), scene.getImage().getHeight());
+
+        if ( listenPort > 0 ) {
+        	renderDistributed(scene, inputFilename, listenPort, spawnWorkers, nThreads, timeout, sbvh, wavefront);
+        	writeImages(scene, inputFilename, writeHDR);
+        	return;
+        }
+
+        System.out.println("Render with " + nThreads + " threads.");
+        executor = Executors.newFixedThreadPool(nThreads);
         scene.init();
 
         // Cubemap bg = new Cubemap();
@@ -99,12 +175,83 @@ public class ParaRayTracer {
         }
 
         //Output time (will be longer if the viewer is on)
+        double seconds = (System.currentTimeMillis() - startTs) / 1000.0;
         System.out.println("Done.");
-        System.out.println("Total rendering time: "+((System.currentTimeMillis() - startTs) / 1000.0)+" seconds");
+        System.out.println("Total rendering time: "+seconds+" seconds");
+        if (RenderStats.ENABLED)
+            System.out.print(RenderStats.collect().report(seconds));
+
+        writeImages(scene, inputFilename, writeHDR);
+    }
 
-        // Write the image out
+    /**
+     * Apply the command line's choices to a parsed scene, before it is initialized:
+     * -sbvh and -wavefront, and the FlatBVH that packet tracing (see setPackets) and
+     * the wavefront renderer need.  A builder or grid named by the scene file wins.
+     *
+     * @param scene the parsed scene
+     * @param sbvh whether to build the BVH with spatial splits
+     * @param wavefront whether to replace a PathTracer with a WavefrontPathTracer
+     */
+    public static void configureScene(Scene scene, boolean sbvh, boolean wavefront) {
+        if ( sbvh && scene.getBuilder() == null )
+        	scene.setBuilder(new SpatialSplitBuilder());
+        if ( wavefront && scene.getRenderer() instanceof PathTracer
+        		&& !(scene.getRenderer() instanceof WavefrontPathTracer) )
+        	scene.setRenderer(new WavefrontPathTracer((PathTracer) scene.getRenderer()));
+        // Only the FlatBVH traces packets together
+        if ( (packets && scene.getRenderer() instanceof PacketRenderer
+        		|| scene.getRenderer() instanceof WavefrontPathTracer)
+        		&& scene.getBuilder() == null && scene.getGrid() == null )
+        	scene.setBuilder(BVHBuilder.MEDIAN_SPLIT);
+    }
+
+    /**
+     * Whether renderBlock traces packets for renderers that can (the opposite of -nopackets).
+     */
+    public static void setPackets(boolean enabled) {
+        packets = enabled;
+    }
+
+    /**
+     * Tonemap the image and write it out, along with the optional outputs.
+     */
+    private static void writeImages(Scene scene, String inputFilename, boolean writeHDR) {
+        String outputFilename = inputFilename + ".png";
         System.out.println("Save PNG file in "+outputFilename);
-        scene.getImage().write(outputFilename);
+        scene.getTonemapper().apply(scene.getImage()).write(outputFilename);
+        if ( writeHDR ) {
+        	System.out.println("Save linear image in "+inputFilename+".pfm");
+        	scene.getImage().writePFM(inputFilename + ".pfm");
+        }
+        if ( costMap != null ) {
+        	System.out.println("Save render cost in "+inputFilename+".cost.png");
+        	costMap.write(inputFilename);
+        }
+    }
+
+    /**
+     * Render the scene's image on worker processes, see RenderCoordinator.
+     */
+    private static void renderDistributed(Scene scene, String inputFilename, int port,
+                                          int spawnWorkers, int nThreads, double timeout,
+                                          boolean sbvh, boolean wavefront) {
+        long startTs = System.currentTimeMillis();
+        List<Process> workers = new ArrayList<Process>();
+        try {
+        	RenderCoordinator coordinator = new RenderCoordinator(scene, inputFilename, 0);
+        	coordinator.setTimeout(timeout);
+        	coordinator.setRenderOptions(sbvh, wavefront, packets);
+        	workers.addAll(RenderCoordinator.spawnLocalWorkers(spawnWorkers, port, nThreads));
+        	coordinator.setSpawnedWorkers(workers);
+        	coordinator.render(port);
+        } catch (IOException e) {
+        	throw new Error("Distributed render of " + inputFilename + " failed", e);
+        } finally {
+        	for (Process worker : workers)
+        		worker.destroy();
+        }
+        System.out.println("Total rendering time: "+(System.currentTimeMillis() - startTs) / 1000.0+" seconds");
     }
 
     /**
@@ -113,17 +260,40 @@ public class ParaRayTracer {
      * @param scene The scene to be rendered
      */
     public static void renderImage(Scene scene) {
+        if (RenderStats.ENABLED)
+            RenderStats.reset();
+        renderImage(scene, executor, DISPLAY, costMap);
+    }
+
+    public static List<Future<?>> renderImage(Scene scene, ExecutorService executor, boolean display) {
+        return renderImage(scene, executor, display, null);
+    }
+
+    /**
+     * Submit the blocks of the scene's image to the given executor, optionally showing
+     * progress in the viewer.  Used directly by headless drivers such as the benchmarks.
+     * RenderStats is left alone, since other renders may be counting into it; drivers
+     * that report the counts of one render reset it before calling this.
+     *
+     * @param scene The scene to be rendered
+     * @param executor The executor that renders the blocks
+     * @param display Whether to show the image in the viewer
+     * @param cost Where to record the cost of each pixel, or null
+     * @return one future per block, all done when the image is complete
+     */
+    public static List<Future<?>> renderImage(Scene scene, ExecutorService executor, boolean display,
+                                              CostMap cost) {
 
         // Get the output image
         Image image = scene.getImage();
         Camera cam = scene.getCamera();
 
         // Setup viewer
-        if(DISPLAY) {
+        if(display) {
             if(viewer == null)
                 viewer = QuickViewer.createImageViewer(image);
-            else
-            	viewer.setImage(image);
+            viewer.setTonemapper(scene.getTonemapper());
+            viewer.setImage(image);
         } //else
         System.out.print("Starting render...");
 
@@ -134,8 +304,10 @@ public class ParaRayTracer {
         cam.setAspectRatioKeepYFOV(((double) width) / height);
 
         //Setup the sub-block spiral
+        Spiral spiral = new Spiral();
         spiral.initSubblockSpiral(width, height);
 
+        List<Future<?>> blocks = new ArrayList<Future<?>>(spiral.totalSubblocks);
         int offsetX, offsetY, sizeX, sizeY;
         for(int i = 0; i < spiral.totalSubblocks; ++ i) {
 
@@ -146,12 +318,174 @@ public class ParaRayTracer {
             sizeX = Math.min(width-offsetX,SUB_WIDTH);
             sizeY = Math.min(height-offsetY,SUB_HEIGHT);
 
-            if (DISPLAY)
-            	executor.execute(new BlockRenderer(scene, image, offsetX, offsetY, sizeX, sizeY, viewer));
+            if (display)
+            	blocks.add(executor.submit(new BlockRenderer(scene, image, offsetX, offsetY, sizeX, sizeY, viewer, cost)));
             else
-            	executor.execute(new BlockRenderer(scene, image, offsetX, offsetY, sizeX, sizeY, null));
+            	blocks.add(executor.submit(new BlockRenderer(scene, image, offsetX, offsetY, sizeX, sizeY, null, cost)));
 
         } // end for
+        return blocks;
+    }
+
+    /**
+     * Render one block of the image in the calling thread, with its own clone of the
+     * scene's sampler, so any number of blocks can render at once.
+     *
+     * @param scene The scene data
+     * @param outImg the output image (write the output pixels here)
+     * @param offsetX the startingX value of the block
+     * @param offsetY the startingY value of the block
+     * @param sizeX the width of the block
+     * @param sizeY the height of the block
+     * @param cost where to record the cost of each pixel, or null
+     */
+    public static void renderBlock(Scene scene, Image outImg, int offsetX, int offsetY,
+                                   int sizeX, int sizeY, CostMap cost) {
+        RenderEvents.TileRender event = new RenderEvents.TileRender();
+        event.begin();
+
+        // Do some basic setup
+        Renderer renderer = scene.getRenderer();
+        if ( packets && renderer instanceof PacketRenderer && cost == null ) {
+        	renderPackets(scene, (PacketRenderer) renderer, outImg, offsetX, offsetY, sizeX, sizeY, event);
+        	return;
+        }
+        if ( renderer instanceof WavefrontPathTracer && cost == null ) {
+        	((WavefrontPathTracer) renderer).renderBlock(scene, outImg, offsetX, offsetY, sizeX, sizeY);
+        	event.x = offsetX;
+        	event.y = offsetY;
+        	event.width = sizeX;
+        	event.height = sizeY;
+        	event.samples = scene.getSampler().getNumSamples();
+        	event.commit();
+        	return;
+        }
+
+        Camera cam = scene.getCamera();
+        SampleGenerator sampler = scene.getSampler().thread_safe_clone();
+
+        Ray ray = new Ray();
+        Color pixelColor = new Color();
+        Color rayColor   = new Color();
+        int width = outImg.getWidth();
+        int height = outImg.getHeight();
+        Point2 pixelSeed = new Point2();
+        RenderStats stats = RenderStats.ENABLED ? RenderStats.get() : null;
+
+        // Ray differentials span the distance between neighboring samples, not pixels
+        double diffScale = 1.0 / Math.sqrt(sampler.getNumSamples());
+
+        for (int x = offsetX; x < (offsetX + sizeX); ++ x) {
+            for (int y = offsetY; y < (offsetY + sizeY); ++ y) {
+
+            	long startNs = 0, startWork = 0;
+            	if (cost != null) {
+            		startNs = System.nanoTime();
+            		if (RenderStats.ENABLED)
+            			startWork = stats.nodeVisits + stats.primitiveTests;
+            	}
+
+            	sampler.generate();
+
+                //Reset the pixel color
+                pixelColor.set(0,0,0);	// Initialize pixel color
+
+                for(int sampleIndex = 0; sampleIndex < sampler.getNumSamples(); sampleIndex++) {
+                    // sample a ray for the current pixel
+                    sampler.sample(0, sampleIndex, pixelSeed);
+
+                    //Generate the eye ray and shade that ray
+                    cam.getRay(ray, (x + pixelSeed.x) / width, (y + pixelSeed.y) / height,
+                               diffScale / width, diffScale / height);
+                    if (RenderStats.ENABLED)
+                        stats.cameraRays++;
+                    renderer.rayRadiance(scene, ray, sampler, sampleIndex, rayColor);
+                    pixelColor.add(rayColor);
+                } // end for
+
+                //Store the linear radiance; tonemapping happens on output
+                pixelColor.scale(1.0 / sampler.getNumSamples());
+                outImg.setPixelColor(pixelColor, x, y);
+
+                if (cost != null) {
+                	if (cost.metric == CostMap.Metric.TIME || !RenderStats.ENABLED)
+                		cost.setCost(System.nanoTime() - startNs, x, y);
+                	else
+                		cost.setCost(stats.nodeVisits + stats.primitiveTests - startWork, x, y);
+                }
+            }
+        } // end for
+
+        event.x = offsetX;
+        event.y = offsetY;
+        event.width = sizeX;
+        event.height = sizeY;
+        event.samples = sampler.getNumSamples();
+        event.commit();
+    }
+
+    /**
+     * renderBlock() for renderers that trace packets: the block is covered in
+     * squares of PACKET_SIDE x PACKET_SIDE pixels, and the rays for one sample of
+     * every pixel of a square make one packet.  Each pixel of a square has its own
+     * clone of the sampler, since the pixels' samples are drawn side by side.
+     */
+    private static void renderPackets(Scene scene, PacketRenderer renderer, Image outImg, int offsetX,
+                                      int offsetY, int sizeX, int sizeY, RenderEvents.TileRender event) {
+        Camera cam = scene.getCamera();
+        int count = PACKET_SIDE * PACKET_SIDE;
+        SampleGenerator[] samplers = new SampleGenerator[count];
+        Color[] rayColors = new Color[count], pixelColors = new Color[count];
+        for (int i = 0; i < count; i++) {
+        	samplers[i] = scene.getSampler().thread_safe_clone();
+        	rayColors[i] = new Color();
+        	pixelColors[i] = new Color();
+        }
+        int numSamples = samplers[0].getNumSamples();
+        RayPacket packet = new RayPacket();
+        int width = outImg.getWidth();
+        int height = outImg.getHeight();
+        Point2 pixelSeed = new Point2();
+        RenderStats stats = RenderStats.ENABLED ? RenderStats.get() : null;
+        double diffScale = 1.0 / Math.sqrt(numSamples);
+
+        for (int px = offsetX; px < offsetX + sizeX; px += PACKET_SIDE) {
+            for (int py = offsetY; py < offsetY + sizeY; py += PACKET_SIDE) {
+                int w = Math.min(PACKET_SIDE, offsetX + sizeX - px);
+                int h = Math.min(PACKET_SIDE, offsetY + sizeY - py);
+                for (int i = 0; i < w * h; i++) {
+                    samplers[i].generate();
+                    pixelColors[i].set(0, 0, 0);
+                }
+
+                for (int sampleIndex = 0; sampleIndex < numSamples; sampleIndex++) {
+                    packet.clear();
+                    for (int i = 0; i < w * h; i++) {
+                        int x = px + i % w, y = py + i / w;
+                        samplers[i].sample(0, sampleIndex, pixelSeed);
+                        cam.getRay(packet.add(), (x + pixelSeed.x) / width, (y + pixelSeed.y) / height,
+                                   diffScale / width, diffScale / height);
+                    }
+                    if (RenderStats.ENABLED)
+                        stats.cameraRays += packet.size;
+                    renderer.packetRadiance(scene, packet, samplers, sampleIndex, rayColors);
+                    for (int i = 0; i < w * h; i++)
+                        pixelColors[i].add(rayColors[i]);
+                }
+
+                for (int i = 0; i < w * h; i++) {
+                    pixelColors[i].scale(1.0 / numSamples);
+                    outImg.setPixelColor(pixelColors[i], px + i % w, py + i / w);
+                }
+            }
+        }
+
+        event.x = offsetX;
+        event.y = offsetY;
+        event.width = sizeX;
+        event.height = sizeY;
+        event.samples = numSamples;
+        event.commit();
     }
 
     private static final class BlockRenderer implements Runnable {
@@ -160,6 +494,7 @@ public class ParaRayTracer {
     	private Image outImg = null;
     	private int offsetX, offsetY, sizeX, sizeY;
     	private QuickViewer viewer;
+    	private CostMap cost;
 
     	/*
     	 * @param scene The scene data
@@ -168,10 +503,12 @@ public class ParaRayTracer {
          * @param offsetY the startingY value of the block
          * @param sizeX the width of the block
          * @param sizeY the height of the block
+         * @param viewer the viewer to update when done, or null
+         * @param cost where to record the cost of each pixel, or null
          */
     	public BlockRenderer(Scene scene, Image outImg,
     			int offsetX, int offsetY,
-    			int sizeX, int sizeY, QuickViewer viewer) {
+    			int sizeX, int sizeY, QuickViewer viewer, CostMap cost) {
     		this.scene = scene;
     		this.outImg = outImg;
     		this.offsetX = offsetX;
@@ -179,49 +516,12 @@ public class ParaRayTracer {
     		this.sizeX   = sizeX;
     		this.sizeY   = sizeY;
     		this.viewer  = viewer;
+    		this.cost    = cost;
     	}
 
     	@Override
     	public void run() {
-    		// Do some basic setup
-            Renderer renderer = scene.getRenderer();
-
-            Camera cam = scene.getCamera();
-            SampleGenerator sampler = scene.getSampler().thread_safe_clone();
-
-            Ray ray = new Ray();
-            Color pixelColor = new Color();
-            Color rayColor   = new Color();
-            int width = outImg.getWidth();
-            int height = outImg.getHeight();
-            Point2 pixelSeed = new Point2();
-
-            for (int x = offsetX; x < (offsetX + sizeX); ++ x) {
-                for (int y = offsetY; y < (offsetY + sizeY); ++ y) {
-
-                	sampler.generate();
-
-                    //Reset the pixel color
-                    pixelColor.set(0,0,0);	// Initialize pixel color
-
-                    for(int sampleIndex = 0; sampleIndex < sampler.getNumSamples(); sampleIndex++) {
-                        // sample a ray for the current pixel
-                        sampler.sample(0, sampleIndex, pixelSeed);
-
-                        //Generate the eye ray and shade that ray
-                        cam.getRay(ray, (x + pixelSeed.x) / width, (y + pixelSeed.y) / height);
-                        renderer.rayRadiance(scene, ray, sampler, sampleIndex, rayColor);
-                        pixelColor.add(rayColor);
-                    } // end for
-
-                    //Gamma correct and clamp pixel values
-                    pixelColor.scale(1.0 / sampler.getNumSamples());
-                    pixelColor.gammaCorrect(2.2);
-                    pixelColor.clamp(0, 1);
-                    outImg.setPixelColor(pixelColor, x, y);
-
-                }
-            } // end for
+    		renderBlock(scene, outImg, offsetX, offsetY, sizeX, sizeY, cost);
 
             // now we finished the rendering of this block
             // Update display
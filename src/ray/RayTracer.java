@@ -6,6 +6,7 @@ import ray.math.Point2;
 import ray.misc.Color;
 import ray.misc.Image;
 import ray.misc.Ray;
+import ray.misc.RenderStats;
 import ray.misc.Scene;
 import ray.renderer.Renderer;
 import ray.sampling.SampleGenerator;
@@ -72,8 +73,8 @@ public class RayTracer {
             // Render the scene
             renderImage(scene);
 
-            // Write the image out
-            scene.getImage().write(outputFilename);
+            // Tonemap the image and write it out
+            scene.getTonemapper().apply(scene.getImage()).write(outputFilename);
         }
         /*
          * beep in linux
@@ -107,8 +108,8 @@ public class RayTracer {
         if(DISPLAY) {
             if(viewer == null)
                 viewer = QuickViewer.createImageViewer(image);
-            else
-            	viewer.setImage(image);
+            viewer.setTonemapper(scene.getTonemapper());
+            viewer.setImage(image);
         }
         System.out.println("Starting render...");
 
@@ -119,6 +120,8 @@ public class RayTracer {
 
         //Setup the sub-block spiral
         spiral.initSubblockSpiral(width, height);
+        if (RenderStats.ENABLED)
+            RenderStats.reset();
 
         //Timeing counters
         long totalTime = 0;
@@ -149,11 +152,12 @@ public class RayTracer {
 
         //Output time (will be longer if the viewer is on)
         System.out.println("\nDone.  Total rendering time: "+(totalTime / 1000.0)+" seconds");
+        if (RenderStats.ENABLED)
+            System.out.print(RenderStats.collect().report(totalTime / 1000.0));
 
         if (width == 1 && height == 1) {
             Color pixelColor = new Color();
             image.getPixelColor(pixelColor, 0, 0);
-            pixelColor.gammaCorrect(1/2.2);
             System.out.println("The value of the image's single pixel is " + pixelColor);
         }
 
@@ -181,6 +185,10 @@ public class RayTracer {
         int width = outImage.getWidth();
         int height = outImage.getHeight();
         Point2 pixelSeed = new Point2();
+        RenderStats stats = RenderStats.ENABLED ? RenderStats.get() : null;
+
+        // Ray differentials span the distance between neighboring samples, not pixels
+        double diffScale = 1.0 / Math.sqrt(sampler.getNumSamples());
 
         for(int x = offsetX; x < (offsetX + sizeX); x++) {
             for(int y = offsetY; y < (offsetY + sizeY); y++) {
@@ -194,15 +202,16 @@ public class RayTracer {
                     sampler.sample(0, sampleIndex, pixelSeed);
 
                     //Generate the eye ray and shade that ray
-                    cam.getRay(ray, (x + pixelSeed.x) / width, (y + pixelSeed.y) / height);
+                    cam.getRay(ray, (x + pixelSeed.x) / width, (y + pixelSeed.y) / height,
+                               diffScale / width, diffScale / height);
+                    if (RenderStats.ENABLED)
+                        stats.cameraRays++;
                     renderer.rayRadiance(scene, ray, sampler, sampleIndex, rayColor);
                     pixelColor.add(rayColor);
                 }
 
-                //Gamma correct and clamp pixel values
+                //Store the linear radiance; tonemapping happens on output
                 pixelColor.scale(1.0 / sampler.getNumSamples());
-                pixelColor.gammaCorrect(2.2);
-                pixelColor.clamp(0, 1);
                 outImage.setPixelColor(pixelColor, x, y);
 
             }
@@ -2,6 +2,7 @@ package ray.accel;
 
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RayPacket;
 
 public interface AccelerationStructure {
 
@@ -23,4 +24,39 @@ public interface AccelerationStructure {
 	 */
 	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray);
 
+	/**
+	 * Find the first intersection of every ray of a packet, setting its hit flag
+	 * and, for the rays that hit, its record.  The default traces the rays one at a
+	 * time; structures that can share the work between coherent rays override it.
+	 *
+	 * @param packet the rays, each with its start and end
+	 */
+	public default void getFirstIntersections(RayPacket packet) {
+
+		for (int i = 0; i < packet.size; i++)
+			packet.hits[i] = getFirstIntersection(packet.records[i], packet.rays[i]);
+	}
+
+	/**
+	 * Find any intersection of every ray of a packet, as getFirstIntersections().
+	 *
+	 * @param packet the rays, each with its start and end
+	 */
+	public default void getAnyIntersections(RayPacket packet) {
+
+		for (int i = 0; i < packet.size; i++)
+			packet.hits[i] = getAnyIntersection(packet.records[i], packet.rays[i]);
+	}
+
+	/**
+	 * Bring the structure up to date after its surfaces moved, e.g. the vertices of
+	 * an animated mesh.  The set of surfaces must be the same as when it was built.
+	 */
+	public void update();
+
+	/**
+	 * @return the box around all surfaces in this structure
+	 */
+	public AxisAlignedBoundingBox getBoundingBox();
+
 }
\ No newline at end of file
@@ -0,0 +1,214 @@
+package ray.accel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.misc.IntersectionRecord;
+import ray.misc.Ray;
+import ray.misc.RayPacket;
+import ray.surface.Mesh;
+import ray.surface.Surface;
+
+/**
+ * The self-checks of the acceleration structures: random rays through a mesh are
+ * traced by a structure and by a BoundingVolume over the same surfaces, which must
+ * agree on whether each ray hits and where, traced one at a time or in packets.
+ * Used by the structures' main().
+ */
+final class AgreementCheck {
+
+	/** Mesh checked when main() is given no file */
+	static final String DEFAULT_MESH = "scene/bunny.msh";
+
+	/** Largest difference in t accepted between two hits, relative to the scene size */
+	private static final double T_TOLERANCE = 1e-9;
+
+	/** Rays traced by each check */
+	static final int RAYS = 20000;
+
+	private AgreementCheck() { }
+
+	/**
+	 * @param args the arguments of main(), whose first, if any, names the mesh
+	 * @return the mesh
+	 */
+	static Mesh readMesh(String[] args) {
+
+		Mesh mesh = new Mesh();
+		mesh.setData(args.length > 0 ? args[0] : DEFAULT_MESH);
+		return mesh;
+	}
+
+	/**
+	 * @param args the arguments of main(), whose first, if any, names the mesh
+	 * @return the triangles of the mesh
+	 */
+	static ArrayList<Surface> loadMesh(String[] args) {
+
+		return new ArrayList<Surface>(Arrays.asList(readMesh(args).getTriangles()));
+	}
+
+	/**
+	 * Move the mesh's vertices from their rest positions by a wave along x
+	 * travelling in y, as IntersectBenchmark's refit frames do.
+	 */
+	static void wave(Mesh mesh, float[] rest, double phase) {
+
+		AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+		for (int v = 0; v < rest.length; v += 3)
+			box.add(rest[v], rest[v + 1], rest[v + 2]);
+		Vector3 extents = box.getExtents();
+		double amplitude = 0.05 * extents.length();
+		double wavelength = 0.5 * extents.y;
+		float[] moved = new float[rest.length];
+		for (int v = 0; v < rest.length; v += 3) {
+			moved[v] = (float) (rest[v] + amplitude * Math.sin(2 * Math.PI * rest[v + 1] / wavelength + phase));
+			moved[v + 1] = rest[v + 1];
+			moved[v + 2] = rest[v + 2];
+		}
+		mesh.setVertexPositions(moved);
+	}
+
+	/**
+	 * Set up the i-th random ray.  Two rays in three come from outside the scene
+	 * and one in three from inside it; some are parallel to the x or y plane, and
+	 * some end halfway to their target.
+	 */
+	static void randomRay(Random random, AxisAlignedBoundingBox box, int i, Ray ray) {
+
+		Vector3 ext = box.getExtents();
+		Point3 corner = new Point3();
+		box.getCorner(0, corner);
+		Point3 target = new Point3(corner.x + random.nextDouble() * ext.x,
+				corner.y + random.nextDouble() * ext.y, corner.z + random.nextDouble() * ext.z);
+		Point3 origin = new Point3(target.x + (random.nextDouble() - .5) * 3 * ext.x,
+				target.y + (random.nextDouble() - .5) * 3 * ext.y, target.z + (random.nextDouble() - .5) * 3 * ext.z);
+		if (i % 3 == 0)
+			origin.set(corner.x + random.nextDouble() * ext.x,
+					corner.y + random.nextDouble() * ext.y, corner.z + random.nextDouble() * ext.z);
+		Vector3 dir = new Vector3();
+		dir.sub(target, origin);
+		if (i % 11 == 0)
+			dir.x = 0;
+		if (i % 13 == 0)
+			dir.y = 0;
+		ray.set(origin, dir);
+		ray.start = 1e-6;
+		ray.end = i % 5 == 0 ? 0.5 : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the largest difference in t accepted for hits in the box
+	 */
+	static double tolerance(AxisAlignedBoundingBox box) {
+
+		Vector3 ext = box.getExtents();
+		return T_TOLERANCE * Math.max(1, ext.x + ext.y + ext.z);
+	}
+
+	/**
+	 * Trace RAYS random rays with getFirstIntersection() and getAnyIntersection()
+	 * of both structures, print the result and throw an Error on any disagreement.
+	 *
+	 * @param label names the structure in the output
+	 */
+	static void compare(String label, AccelerationStructure accel, BoundingVolume reference) {
+
+		AxisAlignedBoundingBox box = reference.getBoundingBox();
+		double tolerance = tolerance(box);
+		Random random = new Random(1);
+		Ray ray = new Ray();
+		IntersectionRecord expected = new IntersectionRecord(), found = new IntersectionRecord();
+		int hits = 0, firstErrors = 0, anyErrors = 0;
+		double maxDt = 0;
+		for (int i = 0; i < RAYS; i++) {
+			randomRay(random, box, i, ray);
+			boolean hit = reference.getFirstIntersection(expected, new Ray(ray));
+			boolean first = accel.getFirstIntersection(found, new Ray(ray));
+			boolean any = accel.getAnyIntersection(new IntersectionRecord(), new Ray(ray));
+			if (hit)
+				hits++;
+			if (first != hit || hit && Math.abs(found.t - expected.t) > tolerance)
+				firstErrors++;
+			if (any != hit)
+				anyErrors++;
+			if (hit && first)
+				maxDt = Math.max(maxDt, Math.abs(found.t - expected.t));
+		}
+		report(label, hits, firstErrors, anyErrors, maxDt);
+	}
+
+	/**
+	 * Trace RAYS random rays in packets of 1 to RayPacket.MAX_SIZE rays with
+	 * getFirstIntersections() and getAnyIntersections() of the structure, and one
+	 * at a time with getFirstIntersection() of the reference; print the result and
+	 * throw an Error on any disagreement, or if a ray's end is not restored.  The
+	 * rays of a packet share an origin and aim at points near a common target,
+	 * every other packet closely enough to be traced together.
+	 *
+	 * @param label names the structure in the output
+	 */
+	static void comparePackets(String label, AccelerationStructure accel, BoundingVolume reference) {
+
+		AxisAlignedBoundingBox box = reference.getBoundingBox();
+		Vector3 ext = box.getExtents();
+		double tolerance = tolerance(box);
+		Random random = new Random(1);
+		RayPacket first = new RayPacket(), any = new RayPacket();
+		Ray aim = new Ray();
+		Vector3 dir = new Vector3();
+		IntersectionRecord expected = new IntersectionRecord();
+		int rays = 0, packets = 0, hits = 0, firstErrors = 0, anyErrors = 0;
+		double maxDt = 0;
+		while (rays < RAYS) {
+			randomRay(random, box, packets, aim);
+			double spread = packets++ % 2 == 0 ? 0.02 : 1;
+			int size = Math.min(1 + random.nextInt(RayPacket.MAX_SIZE), RAYS - rays);
+			first.clear();
+			any.clear();
+			for (int k = 0; k < size; k++) {
+				dir.set(aim.direction.x + (random.nextDouble() - .5) * spread * ext.x,
+						aim.direction.y + (random.nextDouble() - .5) * spread * ext.y,
+						aim.direction.z + (random.nextDouble() - .5) * spread * ext.z);
+				double end = k % 3 == 0 ? 0.9 : Double.POSITIVE_INFINITY;
+				for (RayPacket packet : new RayPacket[] { first, any }) {
+					Ray ray = packet.add();
+					ray.set(aim.origin, dir);
+					ray.start = 1e-6;
+					ray.end = end;
+				}
+			}
+			accel.getFirstIntersections(first);
+			accel.getAnyIntersections(any);
+			for (int k = 0; k < size; k++) {
+				boolean hit = reference.getFirstIntersection(expected, new Ray(first.rays[k]));
+				double end = k % 3 == 0 ? 0.9 : Double.POSITIVE_INFINITY;
+				if (hit)
+					hits++;
+				if (first.hits[k] != hit || hit && Math.abs(first.records[k].t - expected.t) > tolerance
+						|| first.rays[k].end != end)
+					firstErrors++;
+				if (any.hits[k] != hit || any.rays[k].end != end)
+					anyErrors++;
+				if (hit && first.hits[k])
+					maxDt = Math.max(maxDt, Math.abs(first.records[k].t - expected.t));
+			}
+			rays += size;
+		}
+		report(label, hits, firstErrors, anyErrors, maxDt);
+	}
+
+	/**
+	 * Print the outcome of a check, and throw an Error if it failed.
+	 */
+	static void report(String label, int hits, int firstErrors, int anyErrors, double maxDt) {
+
+		System.out.println(label + ": " + RAYS + " rays, " + hits + " hits, " + firstErrors
+				+ " first hit and " + anyErrors + " any hit disagreements, max dt " + maxDt);
+		if (firstErrors + anyErrors > 0)
+			throw new Error(label + " disagrees with BoundingVolume");
+	}
+}
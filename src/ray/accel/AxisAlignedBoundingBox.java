@@ -97,6 +97,90 @@ public class AxisAlignedBoundingBox {
     zMax = box.zMax;
   }
 
+  /**
+   * Shrink this box to its overlap with the input box.  The result is empty if
+   * the boxes do not overlap.
+   * @param box the box to clip to
+   */
+  public void clip(AxisAlignedBoundingBox box) {
+
+    xMin = Math.max(xMin, box.xMin);
+    yMin = Math.max(yMin, box.yMin);
+    zMin = Math.max(zMin, box.zMin);
+    xMax = Math.min(xMax, box.xMax);
+    yMax = Math.min(yMax, box.yMax);
+    zMax = Math.min(zMax, box.zMax);
+  }
+
+  /**
+   * Return true if this box contains no points, e.g. after clear()
+   * @return true if empty
+   */
+  public boolean isEmpty() {
+
+    return xMin > xMax || yMin > yMax || zMin > zMax;
+  }
+
+  /**
+   * Grow this box to include the part of a triangle inside the clip box.  The
+   * triangle is clipped to the six planes of the clip box (Sutherland-Hodgman)
+   * and the box grown by the remaining polygon, which gives a tighter box than
+   * clipping the triangle's box.
+   * @param p0 the first vertex
+   * @param p1 the second vertex
+   * @param p2 the third vertex
+   * @param clip the clip box
+   */
+  public void addClippedTriangle(Point3 p0, Point3 p1, Point3 p2, AxisAlignedBoundingBox clip) {
+
+    // A triangle clipped by six planes has at most nine vertices
+    double[] poly = new double[3 * 9];
+    double[] work = new double[3 * 9];
+    poly[0] = p0.x; poly[1] = p0.y; poly[2] = p0.z;
+    poly[3] = p1.x; poly[4] = p1.y; poly[5] = p1.z;
+    poly[6] = p2.x; poly[7] = p2.y; poly[8] = p2.z;
+    int n = 3;
+    double[] lo = { clip.xMin, clip.yMin, clip.zMin };
+    double[] hi = { clip.xMax, clip.yMax, clip.zMax };
+    for (int axis = 0; axis < 3 && n > 0; axis++) {
+      n = clipPolygon(poly, n, work, axis, lo[axis], 1);
+      n = clipPolygon(work, n, poly, axis, hi[axis], -1);
+    }
+
+    // Clamp away the rounding of the intersection points
+    for (int i = 0; i < n; i++)
+      add(Math.min(Math.max(poly[3 * i], lo[0]), hi[0]),
+          Math.min(Math.max(poly[3 * i + 1], lo[1]), hi[1]),
+          Math.min(Math.max(poly[3 * i + 2], lo[2]), hi[2]));
+  }
+
+  /**
+   * Clip a convex polygon to the half space where side * (p[axis] - plane) >= 0.
+   * @return the number of vertices written to out
+   */
+  private static int clipPolygon(double[] in, int n, double[] out, int axis, double plane, int side) {
+
+    int m = 0;
+    for (int i = 0; i < n; i++) {
+      int j = (i + 1) % n;
+      double di = side * (in[3 * i + axis] - plane);
+      double dj = side * (in[3 * j + axis] - plane);
+      if (di >= 0) {
+        out[3 * m] = in[3 * i];
+        out[3 * m + 1] = in[3 * i + 1];
+        out[3 * m + 2] = in[3 * i + 2];
+        m++;
+      }
+      if ((di >= 0) != (dj >= 0)) {
+        double t = di / (di - dj);
+        for (int k = 0; k < 3; k++)
+          out[3 * m + k] = in[3 * i + k] + t * (in[3 * j + k] - in[3 * i + k]);
+        m++;
+      }
+    }
+    return m;
+  }
+
   /**
    * Return the ID of the longest axis of the box
    * @return the ID of the longest axis of the box
@@ -123,6 +207,32 @@ public class AxisAlignedBoundingBox {
     
   }
   
+  /**
+   * Return the surface area of this box, or 0 if it is empty
+   * @return the surface area
+   */
+  public double area() {
+
+    double sx = xMax - xMin;
+    double sy = yMax - yMin;
+    double sz = zMax - zMin;
+    if (sx < 0 || sy < 0 || sz < 0)
+      return 0;
+    return 2 * (sx * sy + sy * sz + sz * sx);
+
+  }
+
+  /**
+   * Return one of the eight corners of this box.
+   * @param i the corner: bit 0 picks xMax over xMin, bit 1 yMax, bit 2 zMax
+   * @param outCorner the corner for output
+   */
+  public void getCorner(int i, Point3 outCorner) {
+
+    outCorner.set((i & 1) == 0 ? xMin : xMax, (i & 2) == 0 ? yMin : yMax, (i & 4) == 0 ? zMin : zMax);
+
+  }
+
   public Vector3 getExtents() {
 	  
 	  return new Vector3(xMax-xMin, yMax-yMin, zMax-zMin);
@@ -0,0 +1,41 @@
+package ray.accel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ray.surface.Surface;
+
+/**
+ * Builds a FlatBVH over a list of surfaces.  Scenes use MEDIAN_SPLIT, the
+ * BoundingVolume split, unless the scene file names another builder:
+ *
+ *   <builder type="SpatialSplitBuilder">
+ *     <maxDuplication>0.3</maxDuplication>
+ *   </builder>
+ */
+public interface BVHBuilder {
+
+	/**
+	 * @param surfaces the surfaces, which the tree's primitive indices refer to
+	 * @return the tree, laid out by FlatBVH.reorder()
+	 */
+	public FlatBVH build(List<Surface> surfaces);
+
+	/**
+	 * @return the name of the builder and all settings that change the tree it
+	 *         builds, for BVHCache to key its files on
+	 */
+	public String getSettings();
+
+	/** The median split of BoundingVolume, flattened and reordered */
+	public static final BVHBuilder MEDIAN_SPLIT = new BVHBuilder() {
+
+		public FlatBVH build(List<Surface> surfaces) {
+			return FlatBVH.flatten(new BoundingVolume(new ArrayList<Surface>(surfaces)), surfaces).reorder();
+		}
+
+		public String getSettings() {
+			return "BoundingVolume " + BoundingVolume.MAX_SURFACES_PER_LEAF;
+		}
+	};
+}
@@ -0,0 +1,305 @@
+package ray.accel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import ray.math.Point3;
+import ray.surface.Mesh;
+import ray.surface.MeshTriangle;
+import ray.surface.Surface;
+import ray.surface.Triangle;
+
+/**
+ * Keeps built FlatBVHs on disk, so a scene whose geometry has not changed since the
+ * last run maps its tree back in instead of building it.  The cache directory is
+ * the system property ray.bvhcache.dir; without it the cache is off.
+ *
+ * The key is a SHA-256 hash of the geometry, in order, together with the builder
+ * settings and the file format version, so equal keys give equal trees: for mesh
+ * triangles the vertex array of each mesh and the vertex indices of each triangle,
+ * for other triangles their vertices, and for any other surface its box and center,
+ * which is all the builders look at.  The file, named after the key, holds a
+ * little-endian header
+ *
+ *   MAGIC, VERSION, the 32 key bytes, node count, primitive count
+ *
+ * followed by the bounds, links and primitives buffers of the FlatBVH.  It is
+ * written under a temporary name and renamed when complete, so concurrent runs never
+ * see a partial file, and mapped read-only when loaded, so the tree is paged in as
+ * traversal touches it.  A file that does not match its key, whose links do not
+ * form a tree over its primitives, or that cannot be read, is rebuilt and
+ * overwritten.
+ */
+public class BVHCache {
+
+	/** Identifies cached tree files ("RBVH") */
+	private static final int MAGIC = 0x52425648;
+
+	/** Bump whenever the file layout or the builder changes */
+	public static final int VERSION = 3;
+
+	/** Bytes of header: magic, version, key, node count, primitive count */
+	private static final int HEADER_BYTES = 4 + 4 + 32 + 4 + 4;
+
+	/** Most bytes key() hashes per surface: a tag and nine doubles */
+	private static final int KEY_RECORD = 1 + 8 * 9;
+
+	private BVHCache() {}
+
+	/**
+	 * @return the cache directory, or null if caching is off
+	 */
+	public static File getDirectory() {
+
+		String dir = System.getProperty("ray.bvhcache.dir");
+		return dir != null ? new File(dir) : null;
+	}
+
+	/**
+	 * Map the cached tree for the surfaces, or build it and add it to the cache.
+	 *
+	 * @param surfaces the surfaces, in the order the scene holds them
+	 * @param dir the cache directory
+	 * @param builder builds the tree if it is not cached
+	 * @return the tree
+	 */
+	public static FlatBVH get(List<Surface> surfaces, File dir, BVHBuilder builder) {
+
+		byte[] key = key(surfaces, builder);
+		File file = new File(dir, toHex(key) + ".bvh");
+		if (file.exists()) {
+			try {
+				FlatBVH bvh = load(file, key, surfaces);
+				bvh.setBuilder(builder);
+				return bvh;
+			} catch (IOException | RuntimeException e) {
+				System.err.println("BVHCache: rebuilding " + file + ": " + e.getMessage());
+			}
+		}
+
+		FlatBVH bvh = builder.build(surfaces);
+		try {
+			dir.mkdirs();
+			write(bvh, key, file);
+		} catch (IOException e) {
+			System.err.println("BVHCache: could not write " + file + ": " + e.getMessage());
+		}
+		return bvh;
+	}
+
+	/**
+	 * Hash everything the builder depends on.
+	 */
+	public static byte[] key(List<Surface> surfaces, BVHBuilder builder) {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("BVHCache: SHA-256 is not available", e);
+		}
+		digest.update(builder.getSettings().getBytes(StandardCharsets.UTF_8));
+		ByteBuffer buf = ByteBuffer.allocate(KEY_RECORD * 1024).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(VERSION).putInt(surfaces.size());
+
+		// Meshes in the order their first triangle appears; each vertex array is hashed then
+		IdentityHashMap<Mesh, Integer> meshes = new IdentityHashMap<Mesh, Integer>();
+		AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+		Point3 center = new Point3();
+		for (Surface s : surfaces) {
+			if (buf.remaining() < KEY_RECORD) {
+				digest.update(buf.array(), 0, buf.position());
+				buf.clear();
+			}
+			if (s instanceof MeshTriangle) {
+				MeshTriangle t = (MeshTriangle) s;
+				Integer mesh = meshes.get(t.getMesh());
+				if (mesh == null) {
+					mesh = meshes.size();
+					meshes.put(t.getMesh(), mesh);
+					float[] verts = t.getMesh().getVertices();
+					buf.put((byte) 'M').putInt(verts.length);
+					for (float v : verts) {
+						if (buf.remaining() < 4) {
+							digest.update(buf.array(), 0, buf.position());
+							buf.clear();
+						}
+						buf.putFloat(v);
+					}
+					digest.update(buf.array(), 0, buf.position());
+					buf.clear();
+				}
+				buf.put((byte) 'T').putInt(mesh).putInt(t.v0).putInt(t.v1).putInt(t.v2);
+			} else if (s instanceof Triangle) {
+				Triangle t = (Triangle) s;
+				buf.put((byte) 'P');
+				buf.putDouble(t.v0.x).putDouble(t.v0.y).putDouble(t.v0.z);
+				buf.putDouble(t.v1.x).putDouble(t.v1.y).putDouble(t.v1.z);
+				buf.putDouble(t.v2.x).putDouble(t.v2.y).putDouble(t.v2.z);
+			} else {
+				box.clear();
+				s.addToBoundingBox(box);
+				s.getCenter(center);
+				buf.put((byte) 'S');
+				buf.putDouble(box.xMin).putDouble(box.yMin).putDouble(box.zMin);
+				buf.putDouble(box.xMax).putDouble(box.yMax).putDouble(box.zMax);
+				buf.putDouble(center.x).putDouble(center.y).putDouble(center.z);
+			}
+		}
+		digest.update(buf.array(), 0, buf.position());
+		return digest.digest();
+	}
+
+	/**
+	 * Map a cached tree.
+	 *
+	 * @throws IOException if the file is not a complete tree for this key and these
+	 *         surfaces
+	 */
+	public static FlatBVH load(File file, byte[] key, List<Surface> surfaces) throws IOException {
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			if (size < HEADER_BYTES)
+				throw new IOException("truncated header");
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			map.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (map.getInt() != MAGIC || map.getInt() != VERSION)
+				throw new IOException("not a version " + VERSION + " tree file");
+			byte[] fileKey = new byte[key.length];
+			map.get(fileKey);
+			if (!Arrays.equals(key, fileKey))
+				throw new IOException("key mismatch");
+			int nodes = map.getInt();
+			int prims = map.getInt();
+			if (prims < surfaces.size() || nodes < 1)
+				throw new IOException("tree has " + prims + " primitives for " + surfaces.size() + " surfaces");
+			long boundsBytes = 8L * FlatBVH.BOUNDS * nodes;
+			long linksBytes = 4L * FlatBVH.LINKS * nodes;
+			if (size != HEADER_BYTES + boundsBytes + linksBytes + 4L * prims)
+				throw new IOException("size does not match " + nodes + " nodes");
+
+			// The mapping stays valid after the channel is closed
+			IntBuffer links = slice(map, HEADER_BYTES + boundsBytes, linksBytes).asIntBuffer();
+			IntBuffer primitives = slice(map, HEADER_BYTES + boundsBytes + linksBytes, 4L * prims).asIntBuffer();
+			checkTree(links, nodes, prims);
+			for (int i = 0; i < prims; i++) {
+				int index = primitives.get(i);
+				if (index < 0 || index >= surfaces.size())
+					throw new IOException("primitive " + i + " is surface " + index + " of " + surfaces.size());
+			}
+			return new FlatBVH(surfaces, slice(map, HEADER_BYTES, boundsBytes).asDoubleBuffer(), links, primitives);
+		}
+	}
+
+	/**
+	 * Check that the links describe a tree laid out as FlatBVH expects: every node is
+	 * reached exactly once from the root, an interior node's first child follows it
+	 * and its second child comes later, the split codes are in range, and every leaf's
+	 * primitives lie within the primitive buffer.  Traversal can then not index out of
+	 * the buffers or loop, whatever else is wrong with the file.
+	 *
+	 * @throws IOException if they do not
+	 */
+	private static void checkTree(IntBuffer links, int nodes, int prims) throws IOException {
+
+		boolean[] reached = new boolean[nodes];
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		int count = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (reached[node])
+				throw new IOException("node " + node + " is reached twice");
+			reached[node] = true;
+			count++;
+			int a = links.get(FlatBVH.LINKS * node), b = links.get(FlatBVH.LINKS * node + 1);
+			if (b >= 0) {
+				if (a < 0 || a > prims - b)
+					throw new IOException("leaf " + node + " has primitives " + a + " + " + b + " of " + prims);
+				continue;
+			}
+			if (b < -6)
+				throw new IOException("node " + node + " has split code " + b);
+			if (node + 1 >= nodes || a <= node + 1 || a >= nodes)
+				throw new IOException("node " + node + " has children " + (node + 1) + " and " + a + " of " + nodes);
+			if (top + 2 > stack.length)
+				stack = Arrays.copyOf(stack, 2 * stack.length);
+			stack[top++] = a;
+			stack[top++] = node + 1;
+		}
+		if (count != nodes)
+			throw new IOException("only " + count + " of " + nodes + " nodes are in the tree");
+	}
+
+	private static ByteBuffer slice(ByteBuffer buf, long offset, long length) {
+
+		ByteBuffer view = buf.duplicate();
+		view.position((int) offset);
+		view.limit((int) (offset + length));
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Write a tree to the cache, replacing the file atomically.
+	 */
+	public static void write(FlatBVH bvh, byte[] key, File file) throws IOException {
+
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel channel = raf.getChannel()) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).put(key).putInt(bvh.nodeCount).putInt(bvh.primitives.limit());
+			header.flip();
+			writeFully(channel, header);
+
+			ByteBuffer bounds = ByteBuffer.allocate(8 * bvh.bounds.limit()).order(ByteOrder.LITTLE_ENDIAN);
+			bounds.asDoubleBuffer().put(bvh.bounds.duplicate().rewind());
+			writeFully(channel, bounds);
+			ByteBuffer links = ByteBuffer.allocate(4 * bvh.links.limit()).order(ByteOrder.LITTLE_ENDIAN);
+			links.asIntBuffer().put(bvh.links.duplicate().rewind());
+			writeFully(channel, links);
+			ByteBuffer prims = ByteBuffer.allocate(4 * bvh.primitives.limit()).order(ByteOrder.LITTLE_ENDIAN);
+			prims.asIntBuffer().put(bvh.primitives.duplicate().rewind());
+			writeFully(channel, prims);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	private static String toHex(byte[] bytes) {
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
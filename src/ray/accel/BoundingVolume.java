@@ -9,9 +9,13 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RenderStats;
 import ray.surface.Surface;
 
 
@@ -26,6 +30,21 @@ public class BoundingVolume implements AccelerationStructure {
 	/** The maximum number of surfaces in a leaf node */
 	public static final int MAX_SURFACES_PER_LEAF = 10;
 	
+	/** Surface area heuristic cost of visiting a node, relative to a primitive test */
+	public static final double SAH_TRAVERSAL_COST = 1;
+	
+	/** Surface area heuristic cost of a primitive test */
+	public static final double SAH_INTERSECTION_COST = 1;
+	
+	/** update() rebuilds a subtree whose area, relative to the root's, grew by this factor since it was built */
+	public static final double REBUILD_NODE_RATIO = 2;
+	
+	/** update() rebuilds everything when the SAH cost grew by this factor since the last full build */
+	public static final double REBUILD_COST_RATIO = 1.5;
+	
+	/** Nodes above this depth refit their children as parallel tasks */
+	private static final int PARALLEL_REFIT_DEPTH = 6;
+	
 	/** The bounding box of this volume */
 	protected final AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
 	
@@ -39,6 +58,12 @@ public class BoundingVolume implements AccelerationStructure {
 	/** The depth of this node */
 	protected final int depth;
 	
+	/** The area of the box when this node was built, as a fraction of the root's */
+	protected double builtShare;
+	
+	/** At the root: the SAH cost after the last full build */
+	protected double builtCost;
+	
 	/**
 	 * Private constructor used by split()
 	 */
@@ -65,6 +90,8 @@ public class BoundingVolume implements AccelerationStructure {
 		
 		//Divide if necessary
 		split();
+		recordShares(box.area());
+		builtCost = getCost();
 		
 		System.out.println(box);
 		
@@ -146,6 +173,18 @@ public class BoundingVolume implements AccelerationStructure {
 	 */
 	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
 		
+		return getFirstIntersection(outRecord, ray, RenderStats.ENABLED ? RenderStats.get() : null);
+	}
+	
+	/**
+	 * Recursive part of getFirstIntersection(), counting into the given statistics,
+	 * which are null when counting is disabled.
+	 */
+	private boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray, RenderStats stats) {
+		
+		if(RenderStats.ENABLED)
+			stats.nodeVisits++;
+		
 		//Check that the ray intersects the box
 		if(!box.intersect(ray))
 			return false;
@@ -156,6 +195,8 @@ public class BoundingVolume implements AccelerationStructure {
 			//Find the first intersect by testing all surfaces
 			double bestT = Double.MAX_VALUE;
 			IntersectionRecord workRec = new IntersectionRecord();
+			if(RenderStats.ENABLED)
+				stats.primitiveTests += surfaces.size();
 			for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
 				Surface currSurface = (Surface) iter.next();
 				if(currSurface.intersect(workRec, ray) && workRec.t < bestT) {
@@ -169,14 +210,14 @@ public class BoundingVolume implements AccelerationStructure {
 		
 		//Check the left child
 		IntersectionRecord leftRecord = new IntersectionRecord();
-		if(left != null && left.getFirstIntersection(leftRecord, ray)) {
+		if(left != null && left.getFirstIntersection(leftRecord, ray, stats)) {
 			
 			//Shorten ray to hit point
 			ray.end = leftRecord.t;
 			
 			//Check right child, the intersection must be closer than left
 			IntersectionRecord rightRecord = new IntersectionRecord();
-			if(right != null && right.getFirstIntersection(rightRecord, ray))
+			if(right != null && right.getFirstIntersection(rightRecord, ray, stats))
 				outRecord.set(rightRecord);
 			else outRecord.set(leftRecord);
 			
@@ -184,8 +225,166 @@ public class BoundingVolume implements AccelerationStructure {
 		}
 		
 		//Otherwise return the result of the right child
-		return right != null && right.getFirstIntersection(outRecord, ray);
+		return right != null && right.getFirstIntersection(outRecord, ray, stats);
+		
+	}
+	
+	/**
+	 * Bring the tree up to date after its surfaces moved, keeping its structure:
+	 * refit every box bottom-up, in parallel, then rebuild the subtrees whose boxes
+	 * grew too much relative to the root's (see REBUILD_NODE_RATIO), and the whole
+	 * tree if its SAH cost still degraded past REBUILD_COST_RATIO.  Call on the root.
+	 */
+	public void update() {
+		
+		refit();
+		
+		double rootArea = box.area();
+		if (rootArea > 0 && left != null) {
+			rebuildDegraded(left, rootArea);
+			rebuildDegraded(right, rootArea);
+		}
+		
+		if (getCost() > REBUILD_COST_RATIO * builtCost) {
+			rebuild();
+			recordShares(box.area());
+			builtCost = getCost();
+		}
+	}
+	
+	/**
+	 * Recompute all boxes from the surfaces, bottom-up, without changing the tree.
+	 */
+	public void refit() {
+		
+		ForkJoinPool.commonPool().invoke(new RefitTask(this));
+	}
+	
+	/** Refits a subtree; forks for its children while near the top of the tree */
+	private static final class RefitTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final BoundingVolume node;
+		
+		RefitTask(BoundingVolume node) {
+			this.node = node;
+		}
+		
+		@Override
+		protected void compute() {
+			
+			if (node.depth < PARALLEL_REFIT_DEPTH && node.left != null) {
+				ForkJoinTask.invokeAll(new RefitTask(node.left), new RefitTask(node.right));
+				node.refitBox();
+			} else
+				node.refitSubtree();
+		}
+	}
+	
+	/**
+	 * Refit this subtree sequentially.
+	 */
+	private void refitSubtree() {
+		
+		if (left != null) {
+			left.refitSubtree();
+			right.refitSubtree();
+		}
+		refitBox();
+	}
+	
+	/**
+	 * Recompute this node's box from its surfaces or from its (refitted) children.
+	 */
+	private void refitBox() {
+		
+		box.clear();
+		if (left == null) {
+			for (int i = 0; i < surfaces.size(); i++)
+				surfaces.get(i).addToBoundingBox(box);
+		} else {
+			box.add(left.box);
+			box.add(right.box);
+		}
+	}
+	
+	/**
+	 * Rebuild the topmost subtrees under node whose share of the root's area grew by
+	 * more than REBUILD_NODE_RATIO since they were built.
+	 */
+	private static void rebuildDegraded(BoundingVolume node, double rootArea) {
+		
+		if (node.left == null)
+			return;
+		if (node.box.area() / rootArea > REBUILD_NODE_RATIO * node.builtShare) {
+			node.rebuild();
+			node.recordShares(rootArea);
+			return;
+		}
+		rebuildDegraded(node.left, rootArea);
+		rebuildDegraded(node.right, rootArea);
+	}
+	
+	/**
+	 * Remember the areas of this subtree's boxes as fractions of the root's.
+	 */
+	private void recordShares(double rootArea) {
+		
+		builtShare = rootArea > 0 ? box.area() / rootArea : 0;
+		if (left != null) {
+			left.recordShares(rootArea);
+			right.recordShares(rootArea);
+		}
+	}
+	
+	/**
+	 * Rebuild this subtree from scratch from the surfaces it holds.
+	 */
+	private void rebuild() {
+		
+		ArrayList<Surface> all = new ArrayList<Surface>();
+		collectSurfaces(all);
+		surfaces = all;
+		left = right = null;
+		box.clear();
+		growToHold();
+		split();
+	}
+	
+	private void collectSurfaces(ArrayList<Surface> out) {
+		
+		if (left == null)
+			out.addAll(surfaces);
+		else {
+			left.collectSurfaces(out);
+			right.collectSurfaces(out);
+		}
+	}
+	
+	/**
+	 * @return the surface area heuristic cost of this tree: the expected cost of
+	 *         tracing a ray that hits its box, in primitive tests
+	 */
+	public double getCost() {
+		
+		double area = box.area();
+		return area > 0 ? costSum() / area : 0;
+	}
+	
+	/**
+	 * @return the SAH cost after the last full build, for comparison with getCost()
+	 */
+	public double getBuiltCost() {
+		
+		return builtCost;
+	}
+	
+	private double costSum() {
 		
+		if (left == null)
+			return SAH_INTERSECTION_COST * surfaces.size() * box.area();
+		return SAH_TRAVERSAL_COST * box.area() + left.costSum() + right.costSum();
 	}
 	
 	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
@@ -0,0 +1,681 @@
+package ray.accel;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import ray.misc.IntersectionRecord;
+import ray.misc.Ray;
+import ray.misc.RayPacket;
+import ray.misc.RenderStats;
+import ray.surface.Surface;
+
+/**
+ * A BoundingVolume tree flattened into three flat buffers, so that it can be
+ * written to a file and mapped back in as is (see BVHCache).  Nodes are numbered
+ * depth first; an interior node's first child directly follows it.  Per node the
+ * buffers hold
+ *
+ *   bounds:  xMin, yMin, zMin, xMax, yMax, zMax
+ *   links:   for a leaf, the index of its first primitive and the primitive count;
+ *            for an interior node, the index of its second child and -(axis + 1),
+ *            where axis is the one the children were split along, or
+ *            -(axis + 4) if the first child is the one on the high side
+ *
+ * and primitives holds, leaf by leaf, indices into the list of surfaces the tree
+ * was built for.  A surface may appear in more than one leaf (see
+ * SpatialSplitBuilder), but at most once per leaf.  Traversal is iterative, visits
+ * the nearer child first and stops at the first hit for getAnyIntersection().
+ *
+ * The builders lay their trees out with reorder(), which puts the child with the
+ * larger surface area first, so that the child more rays enter is the one right
+ * next to its parent in memory.
+ */
+public class FlatBVH implements AccelerationStructure {
+
+	/** Doubles of bounds per node */
+	public static final int BOUNDS = 6;
+
+	/** Ints of links per node */
+	public static final int LINKS = 2;
+
+	/** Node bounds, BOUNDS per node */
+	protected DoubleBuffer bounds;
+
+	/** Node links, LINKS per node */
+	protected IntBuffer links;
+
+	/** Surface indices, leaf by leaf */
+	protected IntBuffer primitives;
+
+	/** The surfaces the tree was built for */
+	protected final Surface[] surfaces;
+
+	/** surfaces[primitives[i]], so leaves read their surfaces in order */
+	protected Surface[] leafSurfaces;
+
+	protected int nodeCount;
+
+	/** The SAH cost after the last full build, for update() */
+	protected double builtCost;
+
+	/** What update() rebuilds the tree with */
+	protected BVHBuilder builder = BVHBuilder.MEDIAN_SPLIT;
+
+	/**
+	 * The working storage of single-ray traversal, one per thread, so tracing a
+	 * ray allocates nothing.  A traversal never re-enters its own tree (meshes
+	 * hold no instances), so one per tree and thread is enough.
+	 */
+	private static final class Scratch {
+		final IntersectionRecord workRec = new IntersectionRecord();
+		final boolean[] negative = new boolean[3];
+		int[] stack = new int[64];
+	}
+
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	 * @param surfaces the surfaces the primitive indices refer to
+	 * @param bounds node bounds
+	 * @param links node links
+	 * @param primitives the primitive indices
+	 */
+	public FlatBVH(List<Surface> surfaces, DoubleBuffer bounds, IntBuffer links, IntBuffer primitives) {
+
+		this.surfaces = surfaces.toArray(new Surface[surfaces.size()]);
+		setTree(bounds, links, primitives);
+	}
+
+	private void setTree(DoubleBuffer bounds, IntBuffer links, IntBuffer primitives) {
+
+		this.bounds = bounds;
+		this.links = links;
+		this.primitives = primitives;
+		nodeCount = links.limit() / LINKS;
+		leafSurfaces = new Surface[primitives.limit()];
+		for (int i = 0; i < leafSurfaces.length; i++) {
+			int index = primitives.get(i);
+			if (index < 0 || index >= surfaces.length)
+				throw new IllegalArgumentException("FlatBVH: primitive " + index + " out of range");
+			leafSurfaces[i] = surfaces[index];
+		}
+		builtCost = getCost();
+	}
+
+	/**
+	 * Build a BoundingVolume for the surfaces, flatten it and reorder it.
+	 */
+	public static FlatBVH build(List<Surface> surfaces) {
+
+		return BVHBuilder.MEDIAN_SPLIT.build(surfaces);
+	}
+
+	/**
+	 * @param builder what update() rebuilds the tree with
+	 */
+	public void setBuilder(BVHBuilder builder) {
+		this.builder = builder;
+	}
+
+	/**
+	 * Flatten a tree built for the given surfaces into heap buffers.
+	 */
+	public static FlatBVH flatten(BoundingVolume root, List<Surface> surfaces) {
+
+		IdentityHashMap<Surface, Integer> index = new IdentityHashMap<Surface, Integer>();
+		for (int i = 0; i < surfaces.size(); i++)
+			index.put(surfaces.get(i), i);
+
+		int nodes = countNodes(root);
+		DoubleBuffer bounds = allocate(nodes * BOUNDS * 8).asDoubleBuffer();
+		IntBuffer links = allocate(nodes * LINKS * 4).asIntBuffer();
+		IntBuffer primitives = allocate(surfaces.size() * 4).asIntBuffer();
+		flatten(root, bounds, links, primitives, index);
+		bounds.flip();
+		links.flip();
+		primitives.flip();
+		return new FlatBVH(surfaces, bounds, links, primitives);
+	}
+
+	/**
+	 * Lay the tree out again depth first, with the child of larger surface area
+	 * first, and the primitives in the order of the new leaves.  Rays enter the
+	 * larger child more often, so more steps down the tree go to the next node in
+	 * memory instead of jumping ahead (see RenderStats.nodeJumps).  Which child
+	 * lies on the low side of the split is recorded in the links, so traversal
+	 * still visits the nearer child first.
+	 *
+	 * @return the reordered tree, on the heap
+	 */
+	public FlatBVH reorder() {
+
+		DoubleBuffer newBounds = allocate(nodeCount * BOUNDS * 8).asDoubleBuffer();
+		IntBuffer newLinks = allocate(nodeCount * LINKS * 4).asIntBuffer();
+		IntBuffer newPrimitives = allocate(primitives.limit() * 4).asIntBuffer();
+		if (nodeCount > 0)
+			reorder(0, newBounds, newLinks, newPrimitives);
+		newBounds.flip();
+		newLinks.flip();
+		newPrimitives.flip();
+		FlatBVH result = new FlatBVH(Arrays.asList(surfaces), newBounds, newLinks, newPrimitives);
+		result.setBuilder(builder);
+		return result;
+	}
+
+	private void reorder(int node, DoubleBuffer newBounds, IntBuffer newLinks, IntBuffer newPrimitives) {
+
+		int self = newLinks.position() / LINKS;
+		for (int i = 0; i < BOUNDS; i++)
+			newBounds.put(bounds.get(BOUNDS * node + i));
+
+		int first = links.get(LINKS * node), second = links.get(LINKS * node + 1);
+		if (second >= 0) {
+			newLinks.put(newPrimitives.position()).put(second);
+			for (int i = first; i < first + second; i++)
+				newPrimitives.put(primitives.get(i));
+			return;
+		}
+
+		int axis = (-second - 1) % 3;
+		int larger = node + 1, smaller = first;
+		if (area(smaller) > area(larger)) {
+			larger = first;
+			smaller = node + 1;
+		}
+		boolean largerIsLow = bounds.get(BOUNDS * larger + axis) + bounds.get(BOUNDS * larger + axis + 3)
+				<= bounds.get(BOUNDS * smaller + axis) + bounds.get(BOUNDS * smaller + axis + 3);
+		newLinks.put(0).put(-(axis + (largerIsLow ? 1 : 4)));
+		reorder(larger, newBounds, newLinks, newPrimitives);
+		newLinks.put(LINKS * self, newLinks.position() / LINKS);
+		reorder(smaller, newBounds, newLinks, newPrimitives);
+	}
+
+	private static ByteBuffer allocate(int bytes) {
+
+		return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int countNodes(BoundingVolume node) {
+
+		return node.left == null ? 1 : 1 + countNodes(node.left) + countNodes(node.right);
+	}
+
+	private static void flatten(BoundingVolume node, DoubleBuffer bounds, IntBuffer links,
+			IntBuffer primitives, IdentityHashMap<Surface, Integer> index) {
+
+		int self = links.position() / LINKS;
+		AxisAlignedBoundingBox box = node.box;
+		bounds.put(box.xMin).put(box.yMin).put(box.zMin).put(box.xMax).put(box.yMax).put(box.zMax);
+
+		if (node.left == null) {
+			links.put(primitives.position()).put(node.surfaces.size());
+			for (Surface s : node.surfaces)
+				primitives.put(index.get(s));
+			return;
+		}
+
+		links.put(0).put(-(splitAxis(node.left.box, node.right.box) + 1));
+		flatten(node.left, bounds, links, primitives, index);
+		links.put(LINKS * self, links.position() / LINKS);
+		flatten(node.right, bounds, links, primitives, index);
+	}
+
+	/**
+	 * The axis along which the centers of two sibling boxes are furthest apart.
+	 */
+	static int splitAxis(AxisAlignedBoundingBox a, AxisAlignedBoundingBox b) {
+
+		double dx = Math.abs(a.xMin + a.xMax - b.xMin - b.xMax);
+		double dy = Math.abs(a.yMin + a.yMax - b.yMin - b.yMax);
+		double dz = Math.abs(a.zMin + a.zMax - b.zMin - b.zMax);
+		if (dx >= dy && dx >= dz)
+			return AxisAlignedBoundingBox.X;
+		return dy >= dz ? AxisAlignedBoundingBox.Y : AxisAlignedBoundingBox.Z;
+	}
+
+	/**
+	 * @return a new box holding the root's bounds
+	 */
+	public AxisAlignedBoundingBox getBoundingBox() {
+
+		AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+		if (nodeCount > 0)
+			addNode(box, 0);
+		return box;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return true if the tree is read straight from a mapped file
+	 */
+	public boolean isMapped() {
+		return bounds.isDirect();
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getFirstIntersection(ray.misc.IntersectionRecord, ray.misc.Ray)
+	 */
+	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
+
+		return traverse(outRecord, ray, false);
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getAnyIntersection(ray.misc.IntersectionRecord, ray.misc.Ray)
+	 */
+	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
+
+		return traverse(outRecord, ray, true);
+	}
+
+	private boolean traverse(IntersectionRecord outRecord, Ray ray, boolean anyHit) {
+
+		return traverse(outRecord, ray, anyHit, 0);
+	}
+
+	/**
+	 * Traverse the subtree under one node.
+	 */
+	private boolean traverse(IntersectionRecord outRecord, Ray ray, boolean anyHit, int root) {
+
+		RenderStats stats = RenderStats.ENABLED ? RenderStats.get() : null;
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double ix = 1 / ray.direction.x, iy = 1 / ray.direction.y, iz = 1 / ray.direction.z;
+		Scratch work = scratch.get();
+		boolean[] negative = work.negative;
+		negative[0] = ray.direction.x < 0;
+		negative[1] = ray.direction.y < 0;
+		negative[2] = ray.direction.z < 0;
+		double end = ray.end;
+
+		IntersectionRecord workRec = work.workRec;
+		boolean hit = false;
+		int[] stack = work.stack;
+		int top = 0;
+		int node = root, previous = root - 1;
+		while (true) {
+			if (RenderStats.ENABLED) {
+				stats.nodeVisits++;
+				if (node != previous + 1)
+					stats.nodeJumps++;
+				previous = node;
+			}
+			if (hitsBox(node, ox, oy, oz, ix, iy, iz, ray.start, ray.end)) {
+				int first = links.get(LINKS * node), second = links.get(LINKS * node + 1);
+				if (second >= 0) {
+					if (RenderStats.ENABLED)
+						stats.primitiveTests += second;
+					for (int i = first; i < first + second; i++) {
+						if (leafSurfaces[i].intersect(workRec, ray)) {
+							outRecord.set(workRec);
+							ray.end = workRec.t;
+							hit = true;
+							if (anyHit) {
+								ray.end = end;
+								return true;
+							}
+						}
+					}
+				} else {
+					// Visit the child on the ray's side of the split first
+					if (top == stack.length)
+						stack = work.stack = Arrays.copyOf(stack, 2 * stack.length);
+					int split = -second - 1;
+					if (negative[split % 3] == split < 3) {
+						stack[top++] = node + 1;
+						node = first;
+					} else {
+						stack[top++] = first;
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+			if (top == 0)
+				break;
+			node = stack[--top];
+		}
+		ray.end = end;
+		return hit;
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getFirstIntersections(ray.misc.RayPacket)
+	 */
+	public void getFirstIntersections(RayPacket packet) {
+
+		traversePacket(packet, false);
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getAnyIntersections(ray.misc.RayPacket)
+	 */
+	public void getAnyIntersections(RayPacket packet) {
+
+		traversePacket(packet, true);
+	}
+
+	/**
+	 * Take a packet down the tree together, with one stack of nodes and, per
+	 * node, the mask of rays still active in it.  Only packets whose directions
+	 * agree in sign on every axis go together; the others, such as rays bounced
+	 * off different surfaces, are traced one ray at a time.  A node is first
+	 * tested against the whole packet with interval arithmetic on the rays'
+	 * origins and inverse directions, which culls it for all rays at once when
+	 * none can reach it; then the active rays are tested in turn up to the first
+	 * that hits, and it and all after it go down untested (they are tested again
+	 * further down, and each one before its leaf).  Children are visited in the
+	 * order of the packet's directions.  Where a single ray is left active, the
+	 * packet has diverged and that ray finishes the subtree on its own.
+	 */
+	private void traversePacket(RayPacket packet, boolean anyHit) {
+
+		int n = packet.size;
+		// The extents of the origins and inverse directions, and the start and end
+		double[] ends = new double[n];
+		double[] oMin = new double[3], oMax = new double[3], invMin = new double[3], invMax = new double[3];
+		double[] inv = new double[3 * n];
+		boolean[] negative = new boolean[3];
+		double start = Double.POSITIVE_INFINITY;
+		Arrays.fill(oMin, Double.POSITIVE_INFINITY);
+		Arrays.fill(oMax, Double.NEGATIVE_INFINITY);
+		Arrays.fill(invMin, Double.POSITIVE_INFINITY);
+		Arrays.fill(invMax, Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < n; i++) {
+			Ray ray = packet.rays[i];
+			packet.hits[i] = false;
+			ends[i] = ray.end;
+			start = Math.min(start, ray.start);
+			double[] o = { ray.origin.x, ray.origin.y, ray.origin.z };
+			double[] d = { ray.direction.x, ray.direction.y, ray.direction.z };
+			for (int axis = 0; axis < 3; axis++) {
+				inv[3 * i + axis] = 1 / d[axis];
+				oMin[axis] = Math.min(oMin[axis], o[axis]);
+				oMax[axis] = Math.max(oMax[axis], o[axis]);
+				invMin[axis] = Math.min(invMin[axis], inv[3 * i + axis]);
+				invMax[axis] = Math.max(invMax[axis], inv[3 * i + axis]);
+			}
+		}
+		boolean coherent = n > 1;
+		for (int axis = 0; axis < 3; axis++) {
+			coherent &= invMin[axis] > 0 || invMax[axis] < 0;
+			negative[axis] = invMax[axis] < 0;
+		}
+		if (!coherent) {
+			for (int i = 0; i < n; i++)
+				packet.hits[i] = traverse(packet.records[i], packet.rays[i], anyHit, 0);
+			return;
+		}
+		double end = maxEnd(packet);
+
+		RenderStats stats = RenderStats.ENABLED ? RenderStats.get() : null;
+		IntersectionRecord workRec = new IntersectionRecord();
+		int[] stack = new int[64], masks = new int[64];
+		int top = 0;
+		int node = 0, mask = packet.getMask(), done = 0;
+		while (true) {
+			mask &= ~done;
+			if (mask != 0 && packetHitsBox(node, oMin, oMax, invMin, invMax, start, end)) {
+				int first = links.get(LINKS * node), second = links.get(LINKS * node + 1);
+				int hitMask = 0;
+				for (int m = mask; m != 0; m &= m - 1) {
+					int i = Integer.numberOfTrailingZeros(m);
+					Ray ray = packet.rays[i];
+					if (RenderStats.ENABLED)
+						stats.nodeVisits++;
+					if (hitsBox(node, ray.origin.x, ray.origin.y, ray.origin.z,
+							inv[3 * i], inv[3 * i + 1], inv[3 * i + 2], ray.start, ray.end)) {
+						if (second < 0) {
+							// Early hit: the rest of the rays go down untested
+							hitMask = m;
+							break;
+						}
+						hitMask |= 1 << i;
+					}
+				}
+
+				if (Integer.bitCount(hitMask) == 1 && second < 0) {
+					// Diverged: the one ray left takes the subtree on alone
+					int i = Integer.numberOfTrailingZeros(hitMask);
+					Ray ray = packet.rays[i];
+					if (traverse(packet.records[i], ray, anyHit, node)) {
+						packet.hits[i] = true;
+						if (anyHit)
+							done |= hitMask;
+						else
+							ray.end = packet.records[i].t;
+						end = maxEnd(packet);
+					}
+				} else if (hitMask != 0 && second >= 0) {
+					for (int m = hitMask; m != 0; m &= m - 1) {
+						int i = Integer.numberOfTrailingZeros(m);
+						Ray ray = packet.rays[i];
+						if (RenderStats.ENABLED)
+							stats.primitiveTests += second;
+						for (int k = first; k < first + second; k++) {
+							if (leafSurfaces[k].intersect(workRec, ray)) {
+								packet.records[i].set(workRec);
+								ray.end = workRec.t;
+								packet.hits[i] = true;
+								if (anyHit) {
+									done |= 1 << i;
+									break;
+								}
+							}
+						}
+					}
+					end = maxEnd(packet);
+				} else if (hitMask != 0) {
+					if (top == stack.length) {
+						stack = Arrays.copyOf(stack, 2 * stack.length);
+						masks = Arrays.copyOf(masks, 2 * masks.length);
+					}
+					int split = -second - 1;
+					if (negative[split % 3] == split < 3) {
+						stack[top] = node + 1;
+						node = first;
+					} else {
+						stack[top] = first;
+						node = node + 1;
+					}
+					masks[top++] = hitMask;
+					mask = hitMask;
+					continue;
+				}
+			}
+			if (top == 0)
+				break;
+			node = stack[--top];
+			mask = masks[top];
+		}
+
+		for (int i = 0; i < n; i++)
+			packet.rays[i].end = ends[i];
+	}
+
+	private static double maxEnd(RayPacket packet) {
+
+		double end = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < packet.size; i++)
+			end = Math.max(end, packet.rays[i].end);
+		return end;
+	}
+
+	/**
+	 * Whether any ray with an origin in [oMin, oMax] and inverse direction in
+	 * [invMin, invMax] can cross a node's bounds between start and end: the
+	 * latest any ray could enter must not be after the earliest any could leave.
+	 * The directions must agree in sign; axes along which they are zero are left
+	 * out, which only makes the test more conservative.
+	 */
+	private boolean packetHitsBox(int node, double[] oMin, double[] oMax, double[] invMin, double[] invMax,
+			double start, double end) {
+
+		int b = BOUNDS * node;
+		double tMin = start, tMax = end;
+		for (int axis = 0; axis < 3; axis++) {
+			double lo = invMin[axis], hi = invMax[axis];
+			if (Double.isInfinite(lo) || Double.isInfinite(hi))
+				continue;
+			double near = bounds.get(b + (hi < 0 ? axis + 3 : axis));
+			double far = bounds.get(b + (hi < 0 ? axis : axis + 3));
+			double n0 = near - oMax[axis], n1 = near - oMin[axis];
+			double f0 = far - oMax[axis], f1 = far - oMin[axis];
+			double entry = Math.min(Math.min(n0 * lo, n0 * hi), Math.min(n1 * lo, n1 * hi));
+			double exit = Math.max(Math.max(f0 * lo, f0 * hi), Math.max(f1 * lo, f1 * hi));
+			if (entry > tMin)
+				tMin = entry;
+			if (exit < tMax)
+				tMax = exit;
+		}
+		return tMin <= tMax;
+	}
+
+	/**
+	 * The slab test of AxisAlignedBoundingBox.intersect(), on a node's bounds and
+	 * with the inverse direction.
+	 */
+	private boolean hitsBox(int node, double ox, double oy, double oz, double ix, double iy, double iz,
+			double start, double end) {
+
+		int b = BOUNDS * node;
+		double tMin, tMax;
+		if (ix >= 0) {
+			tMin = (bounds.get(b) - ox) * ix;
+			tMax = (bounds.get(b + 3) - ox) * ix;
+		} else {
+			tMin = (bounds.get(b + 3) - ox) * ix;
+			tMax = (bounds.get(b) - ox) * ix;
+		}
+
+		double tyMin, tyMax;
+		if (iy >= 0) {
+			tyMin = (bounds.get(b + 1) - oy) * iy;
+			tyMax = (bounds.get(b + 4) - oy) * iy;
+		} else {
+			tyMin = (bounds.get(b + 4) - oy) * iy;
+			tyMax = (bounds.get(b + 1) - oy) * iy;
+		}
+		if (tMin > tyMax || tyMin > tMax)
+			return false;
+		if (tyMin > tMin)
+			tMin = tyMin;
+		if (tyMax < tMax)
+			tMax = tyMax;
+
+		double tzMin, tzMax;
+		if (iz >= 0) {
+			tzMin = (bounds.get(b + 2) - oz) * iz;
+			tzMax = (bounds.get(b + 5) - oz) * iz;
+		} else {
+			tzMin = (bounds.get(b + 5) - oz) * iz;
+			tzMax = (bounds.get(b + 2) - oz) * iz;
+		}
+		if (tMin > tzMax || tzMin > tMax)
+			return false;
+		if (tzMin > tMin)
+			tMin = tzMin;
+		if (tzMax < tMax)
+			tMax = tzMax;
+
+		return tMin < end && tMax > start;
+	}
+
+	/**
+	 * Refit all boxes to the moved surfaces, copying a mapped tree to the heap
+	 * first, and rebuild the tree if its SAH cost degraded past
+	 * BoundingVolume.REBUILD_COST_RATIO.  Nodes are numbered depth first, so going
+	 * through them backwards refits every child before its parent.
+	 */
+	public void update() {
+
+		if (bounds.isReadOnly()) {
+			DoubleBuffer copy = allocate(bounds.limit() * 8).asDoubleBuffer();
+			copy.put(bounds.duplicate());
+			copy.flip();
+			bounds = copy;
+		}
+
+		AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			int first = links.get(LINKS * node), second = links.get(LINKS * node + 1);
+			box.clear();
+			if (second >= 0) {
+				for (int i = first; i < first + second; i++)
+					leafSurfaces[i].addToBoundingBox(box);
+			} else {
+				addNode(box, node + 1);
+				addNode(box, first);
+			}
+			int b = BOUNDS * node;
+			bounds.put(b, box.xMin).put(b + 1, box.yMin).put(b + 2, box.zMin);
+			bounds.put(b + 3, box.xMax).put(b + 4, box.yMax).put(b + 5, box.zMax);
+		}
+
+		if (getCost() > BoundingVolume.REBUILD_COST_RATIO * builtCost) {
+			FlatBVH rebuilt = builder.build(Arrays.asList(surfaces));
+			setTree(rebuilt.bounds, rebuilt.links, rebuilt.primitives);
+		}
+	}
+
+	private void addNode(AxisAlignedBoundingBox box, int node) {
+
+		int b = BOUNDS * node;
+		box.add(bounds.get(b), bounds.get(b + 1), bounds.get(b + 2));
+		box.add(bounds.get(b + 3), bounds.get(b + 4), bounds.get(b + 5));
+	}
+
+	/**
+	 * @return the surface area heuristic cost of the tree, as BoundingVolume.getCost()
+	 */
+	public double getCost() {
+
+		if (nodeCount == 0)
+			return 0;
+		double sum = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			int count = links.get(LINKS * node + 1);
+			double area = area(node);
+			sum += count >= 0 ? BoundingVolume.SAH_INTERSECTION_COST * count * area
+			                  : BoundingVolume.SAH_TRAVERSAL_COST * area;
+		}
+		double rootArea = area(0);
+		return rootArea > 0 ? sum / rootArea : 0;
+	}
+
+	private double area(int node) {
+
+		int b = BOUNDS * node;
+		double sx = bounds.get(b + 3) - bounds.get(b);
+		double sy = bounds.get(b + 4) - bounds.get(b + 1);
+		double sz = bounds.get(b + 5) - bounds.get(b + 2);
+		if (sx < 0 || sy < 0 || sz < 0)
+			return 0;
+		return 2 * (sx * sy + sy * sz + sz * sx);
+	}
+
+	/**
+	 * Check single-ray and packet traversal against a BoundingVolume over a mesh,
+	 * the one named by the first argument or the bunny, for the trees of both
+	 * builders.
+	 */
+	public static void main(String[] args) {
+
+		ArrayList<Surface> surfaces = AgreementCheck.loadMesh(args);
+		BoundingVolume reference = new BoundingVolume(new ArrayList<Surface>(surfaces));
+		for (BVHBuilder builder : new BVHBuilder[] { BVHBuilder.MEDIAN_SPLIT, new SpatialSplitBuilder() }) {
+			FlatBVH tree = builder.build(surfaces);
+			AgreementCheck.compare("FlatBVH, " + builder.getSettings(), tree, reference);
+			AgreementCheck.comparePackets("FlatBVH packets, " + builder.getSettings(), tree, reference);
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package ray.accel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+import ray.math.Point3;
+import ray.misc.IntersectionRecord;
+import ray.misc.Ray;
+import ray.misc.RenderStats;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+
+/**
+ * A uniform grid over the surfaces' bounding box, for scenes of many small surfaces
+ * of about the same size, like particles, where building a BVH takes long compared
+ * to tracing it.  Each surface is listed in every cell its box overlaps, and rays
+ * step from cell to cell with the 3D-DDA of Amanatides and Woo, stopping at the
+ * first cell that ends beyond the closest hit so far.
+ *
+ * The grid is built in O(n) by a counting sort: a parallel pass counts the
+ * surfaces per cell, a prefix sum turns the counts into offsets into one array of
+ * surface indices, and a second parallel pass fills it.  The resolution is chosen
+ * so that there are about density cells per surface, in cubes as near as the
+ * bounds allow.  With a subGridThreshold, cells holding more surfaces than that get
+ * a grid of their own, which keeps clumps in otherwise sparse scenes cheap to
+ * cross.  A scene selects the grid with
+ *
+ *   <grid>
+ *     <density>2</density>
+ *     <subGridThreshold>32</subGridThreshold>
+ *   </grid>
+ *
+ * A surface spanning several cells may be tested once per cell it is met in.
+ */
+public class Grid implements AccelerationStructure {
+
+	/** No axis gets more cells than this */
+	public static final int MAX_RESOLUTION = 256;
+
+	/** Surfaces per parallel build stripe */
+	private static final int STRIPE_SURFACES = 4096;
+
+	/** Cells per surface */
+	protected double density = 2;
+
+	/** Cells with more surfaces than this get a grid of their own; 0 for none */
+	protected int subGridThreshold = 0;
+
+	protected Surface[] surfaces = new Surface[0];
+
+	/** The box the cells divide */
+	protected final AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+
+	/** Cells per axis */
+	protected int nx, ny, nz;
+
+	/** Cell size per axis */
+	protected double cellX, cellY, cellZ;
+
+	/** Cell c holds cellSurfaces[cellStart[c] .. cellStart[c + 1] - 1] */
+	protected int[] cellStart;
+
+	/** Surface indices, cell by cell, x fastest */
+	protected int[] cellSurfaces;
+
+	/** The grids of crowded cells, or null if there are none */
+	protected Grid[] subGrids;
+
+	public Grid() { }
+
+	public Grid(List<Surface> surfaces) {
+		build(surfaces);
+	}
+
+	public void setDensity(double density) {
+		this.density = density;
+	}
+
+	public void setSubGridThreshold(int subGridThreshold) {
+		this.subGridThreshold = subGridThreshold;
+	}
+
+	/**
+	 * Sort the surfaces into the grid, replacing what it held.
+	 */
+	public void build(List<Surface> surfaces) {
+
+		build(surfaces.toArray(new Surface[surfaces.size()]), null);
+	}
+
+	/**
+	 * @param clip if not null, the grid covers only the part of the surfaces inside it
+	 */
+	private void build(Surface[] surfaces, AxisAlignedBoundingBox clip) {
+
+		this.surfaces = surfaces;
+		int n = surfaces.length;
+		int stripes = (n + STRIPE_SURFACES - 1) / STRIPE_SURFACES;
+
+		double[] bounds = new double[FlatBVH.BOUNDS * n];
+		IntStream.range(0, stripes).parallel().forEach(stripe -> {
+			AxisAlignedBoundingBox surfaceBox = new AxisAlignedBoundingBox();
+			for (int i = stripe * STRIPE_SURFACES; i < Math.min(n, (stripe + 1) * STRIPE_SURFACES); i++) {
+				surfaceBox.clear();
+				surfaces[i].addToBoundingBox(surfaceBox);
+				int b = FlatBVH.BOUNDS * i;
+				bounds[b] = surfaceBox.xMin;
+				bounds[b + 1] = surfaceBox.yMin;
+				bounds[b + 2] = surfaceBox.zMin;
+				bounds[b + 3] = surfaceBox.xMax;
+				bounds[b + 4] = surfaceBox.yMax;
+				bounds[b + 5] = surfaceBox.zMax;
+			}
+		});
+
+		box.clear();
+		for (int i = 0; i < n; i++) {
+			int b = FlatBVH.BOUNDS * i;
+			box.add(bounds[b], bounds[b + 1], bounds[b + 2]);
+			box.add(bounds[b + 3], bounds[b + 4], bounds[b + 5]);
+		}
+		if (clip != null)
+			box.clip(clip);
+		chooseResolution(n);
+
+		// Count the surfaces per cell, turn the counts into offsets, and fill in
+		int cells = nx * ny * nz;
+		AtomicIntegerArray counts = new AtomicIntegerArray(cells);
+		IntStream.range(0, stripes).parallel().forEach(stripe -> {
+			int[] range = new int[6];
+			for (int i = stripe * STRIPE_SURFACES; i < Math.min(n, (stripe + 1) * STRIPE_SURFACES); i++) {
+				cellRange(bounds, i, range);
+				for (int z = range[2]; z <= range[5]; z++)
+					for (int y = range[1]; y <= range[4]; y++)
+						for (int x = range[0]; x <= range[3]; x++)
+							counts.incrementAndGet((z * ny + y) * nx + x);
+			}
+		});
+
+		cellStart = new int[cells + 1];
+		long total = 0;
+		for (int c = 0; c < cells; c++) {
+			cellStart[c] = (int) total;
+			total += counts.get(c);
+			if (total > Integer.MAX_VALUE)
+				throw new Error("Grid: more than " + Integer.MAX_VALUE + " cell entries; lower the density");
+		}
+		cellStart[cells] = (int) total;
+
+		cellSurfaces = new int[(int) total];
+		AtomicIntegerArray next = new AtomicIntegerArray(Arrays.copyOf(cellStart, cells));
+		IntStream.range(0, stripes).parallel().forEach(stripe -> {
+			int[] range = new int[6];
+			for (int i = stripe * STRIPE_SURFACES; i < Math.min(n, (stripe + 1) * STRIPE_SURFACES); i++) {
+				cellRange(bounds, i, range);
+				for (int z = range[2]; z <= range[5]; z++)
+					for (int y = range[1]; y <= range[4]; y++)
+						for (int x = range[0]; x <= range[3]; x++)
+							cellSurfaces[next.getAndIncrement((z * ny + y) * nx + x)] = i;
+			}
+		});
+
+		subGrids = null;
+		if (subGridThreshold > 0)
+			buildSubGrids(cells);
+	}
+
+	/**
+	 * Pick about density * n cells, as cubic as the box allows.  Flat boxes are
+	 * given some thickness first, so that every axis has a positive cell size.
+	 */
+	private void chooseResolution(int n) {
+
+		if (n == 0 || box.isEmpty()) {
+			box.clear();
+			box.add(0, 0, 0);
+		}
+		double pad = 1e-6 * Math.max(box.getExtents().length(), 1e-300);
+		if (box.xMax - box.xMin < pad) { box.xMin -= pad; box.xMax += pad; }
+		if (box.yMax - box.yMin < pad) { box.yMin -= pad; box.yMax += pad; }
+		if (box.zMax - box.zMin < pad) { box.zMin -= pad; box.zMax += pad; }
+
+		double ex = box.xMax - box.xMin, ey = box.yMax - box.yMin, ez = box.zMax - box.zMin;
+		double perLength = Math.cbrt(density * Math.max(n, 1) / (ex * ey * ez));
+		nx = resolution(ex * perLength);
+		ny = resolution(ey * perLength);
+		nz = resolution(ez * perLength);
+		cellX = ex / nx;
+		cellY = ey / ny;
+		cellZ = ez / nz;
+	}
+
+	private static int resolution(double cells) {
+		return (int) Math.max(1, Math.min(MAX_RESOLUTION, Math.round(cells)));
+	}
+
+	/**
+	 * The cells overlapped by surface i's box, as x, y, z of the first cell and x,
+	 * y, z of the last.
+	 */
+	private void cellRange(double[] bounds, int i, int[] range) {
+
+		int b = FlatBVH.BOUNDS * i;
+		range[0] = cell(bounds[b], box.xMin, cellX, nx);
+		range[1] = cell(bounds[b + 1], box.yMin, cellY, ny);
+		range[2] = cell(bounds[b + 2], box.zMin, cellZ, nz);
+		range[3] = cell(bounds[b + 3], box.xMin, cellX, nx);
+		range[4] = cell(bounds[b + 4], box.yMin, cellY, ny);
+		range[5] = cell(bounds[b + 5], box.zMin, cellZ, nz);
+	}
+
+	private static int cell(double p, double min, double size, int cells) {
+
+		int c = (int) Math.floor((p - min) / size);
+		return c < 0 ? 0 : c >= cells ? cells - 1 : c;
+	}
+
+	/**
+	 * Give each cell with more than subGridThreshold surfaces a single level grid
+	 * over the part of them inside the cell.
+	 */
+	private void buildSubGrids(int cells) {
+
+		Grid[] grids = new Grid[cells];
+		IntStream.range(0, cells).parallel().forEach(c -> {
+			int count = cellStart[c + 1] - cellStart[c];
+			if (count <= subGridThreshold)
+				return;
+			Surface[] cellContents = new Surface[count];
+			for (int i = 0; i < count; i++)
+				cellContents[i] = surfaces[cellSurfaces[cellStart[c] + i]];
+			int x = c % nx, y = (c / nx) % ny, z = c / (nx * ny);
+			AxisAlignedBoundingBox cellBox = new AxisAlignedBoundingBox();
+			cellBox.add(box.xMin + x * cellX, box.yMin + y * cellY, box.zMin + z * cellZ);
+			cellBox.add(box.xMin + (x + 1) * cellX, box.yMin + (y + 1) * cellY, box.zMin + (z + 1) * cellZ);
+			Grid grid = new Grid();
+			grid.setDensity(density);
+			grid.build(cellContents, cellBox);
+			grids[c] = grid;
+		});
+		for (Grid grid : grids)
+			if (grid != null) {
+				subGrids = grids;
+				break;
+			}
+	}
+
+	/**
+	 * @return cells per axis, x, y and z
+	 */
+	public int[] getResolution() {
+		return new int[] { nx, ny, nz };
+	}
+
+	/**
+	 * @return the number of cells with a grid of their own
+	 */
+	public int getSubGridCount() {
+
+		int count = 0;
+		if (subGrids != null)
+			for (Grid grid : subGrids)
+				if (grid != null)
+					count++;
+		return count;
+	}
+
+	/**
+	 * @return a new box holding the grid's bounds
+	 */
+	public AxisAlignedBoundingBox getBoundingBox() {
+
+		AxisAlignedBoundingBox result = new AxisAlignedBoundingBox();
+		result.set(box);
+		return result;
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getFirstIntersection(ray.misc.IntersectionRecord, ray.misc.Ray)
+	 */
+	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
+
+		double end = ray.end;
+		boolean hit = traverse(outRecord, ray, false, new IntersectionRecord());
+		ray.end = end;
+		return hit;
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getAnyIntersection(ray.misc.IntersectionRecord, ray.misc.Ray)
+	 */
+	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
+
+		double end = ray.end;
+		boolean hit = traverse(outRecord, ray, true, new IntersectionRecord());
+		ray.end = end;
+		return hit;
+	}
+
+	/**
+	 * Step through the cells along the ray, shortening ray.end to each hit.
+	 */
+	private boolean traverse(IntersectionRecord outRecord, Ray ray, boolean anyHit, IntersectionRecord workRec) {
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+
+		// Where the ray is inside the box
+		double[] span = { ray.start, ray.end };
+		if (!slab(box.xMin, box.xMax, ox, dx, span) || !slab(box.yMin, box.yMax, oy, dy, span)
+				|| !slab(box.zMin, box.zMax, oz, dz, span))
+			return false;
+		double t0 = span[0];
+
+		int x = cell(ox + t0 * dx, box.xMin, cellX, nx);
+		int y = cell(oy + t0 * dy, box.yMin, cellY, ny);
+		int z = cell(oz + t0 * dz, box.zMin, cellZ, nz);
+
+		// The ray parameter of the next cell boundary per axis, and between boundaries
+		int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1, stepZ = dz > 0 ? 1 : -1;
+		double nextX = boundary(box.xMin + (dx > 0 ? x + 1 : x) * cellX, ox, dx);
+		double nextY = boundary(box.yMin + (dy > 0 ? y + 1 : y) * cellY, oy, dy);
+		double nextZ = boundary(box.zMin + (dz > 0 ? z + 1 : z) * cellZ, oz, dz);
+		double deltaX = dx != 0 ? cellX / Math.abs(dx) : Double.POSITIVE_INFINITY;
+		double deltaY = dy != 0 ? cellY / Math.abs(dy) : Double.POSITIVE_INFINITY;
+		double deltaZ = dz != 0 ? cellZ / Math.abs(dz) : Double.POSITIVE_INFINITY;
+
+		RenderStats stats = RenderStats.ENABLED ? RenderStats.get() : null;
+		boolean hit = false;
+		while (true) {
+			int c = (z * ny + y) * nx + x;
+			if (RenderStats.ENABLED)
+				stats.nodeVisits++;
+			if (subGrids != null && subGrids[c] != null) {
+				if (subGrids[c].traverse(outRecord, ray, anyHit, workRec)) {
+					hit = true;
+					if (anyHit)
+						return true;
+				}
+			} else {
+				int first = cellStart[c], last = cellStart[c + 1];
+				if (RenderStats.ENABLED)
+					stats.primitiveTests += last - first;
+				for (int i = first; i < last; i++) {
+					if (surfaces[cellSurfaces[i]].intersect(workRec, ray)) {
+						outRecord.set(workRec);
+						ray.end = workRec.t;
+						hit = true;
+						if (anyHit)
+							return true;
+					}
+				}
+			}
+
+			// Hits beyond this cell may yet be beaten by surfaces in the next ones
+			double exit = Math.min(nextX, Math.min(nextY, nextZ));
+			if (exit >= ray.end)
+				return hit;
+			if (nextX <= nextY && nextX <= nextZ) {
+				x += stepX;
+				if (x < 0 || x >= nx)
+					return hit;
+				nextX += deltaX;
+			} else if (nextY <= nextZ) {
+				y += stepY;
+				if (y < 0 || y >= ny)
+					return hit;
+				nextY += deltaY;
+			} else {
+				z += stepZ;
+				if (z < 0 || z >= nz)
+					return hit;
+				nextZ += deltaZ;
+			}
+		}
+	}
+
+	/**
+	 * Narrow span to where the ray is between min and max along one axis.
+	 *
+	 * @return false if that leaves nothing
+	 */
+	private static boolean slab(double min, double max, double o, double d, double[] span) {
+
+		if (d == 0)
+			return o >= min && o <= max;
+		double tMin = (min - o) / d, tMax = (max - o) / d;
+		if (tMin > tMax) {
+			double t = tMin;
+			tMin = tMax;
+			tMax = t;
+		}
+		if (tMin > span[0])
+			span[0] = tMin;
+		if (tMax < span[1])
+			span[1] = tMax;
+		return span[0] <= span[1];
+	}
+
+	private static double boundary(double plane, double o, double d) {
+		return d != 0 ? (plane - o) / d : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Sort the moved surfaces into the grid again; that is as cheap as any refit.
+	 */
+	public void update() {
+
+		build(surfaces, null);
+	}
+
+	/**
+	 * Check traversal against a BoundingVolume, with and without sub grids, over a
+	 * mesh, the one named by the first argument or the bunny, and over a cloud of
+	 * small spheres with a dense slab at its bottom.
+	 */
+	public static void main(String[] args) {
+
+		ArrayList<Surface> particles = new ArrayList<Surface>();
+		Random random = new Random(3);
+		for (int i = 0; i < 20000; i++) {
+			Sphere sphere = new Sphere();
+			sphere.setCenter(new Point3(random.nextDouble(), random.nextDouble(),
+					random.nextDouble() * (i % 7 == 0 ? 0.1 : 1)));
+			sphere.setRadius(0.002 + 0.01 * random.nextDouble());
+			particles.add(sphere);
+		}
+		for (ArrayList<Surface> surfaces : Arrays.asList(AgreementCheck.loadMesh(args), particles)) {
+			BoundingVolume reference = new BoundingVolume(new ArrayList<Surface>(surfaces));
+			for (int threshold : new int[] { 0, 8 }) {
+				Grid grid = new Grid();
+				grid.setSubGridThreshold(threshold);
+				grid.build(surfaces);
+				AgreementCheck.compare("Grid " + Arrays.toString(grid.getResolution()) + ", "
+						+ grid.getSubGridCount() + " sub grids", grid, reference);
+			}
+		}
+	}
+}
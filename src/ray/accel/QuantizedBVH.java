@@ -0,0 +1,431 @@
+package ray.accel;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ray.misc.IntersectionRecord;
+import ray.misc.Ray;
+import ray.misc.RenderStats;
+import ray.surface.Mesh;
+import ray.surface.Surface;
+
+/**
+ * A FlatBVH with its node bounds compressed.  Only the root box is kept in full;
+ * every interior node holds the boxes of its two children as 8 or 16 bit offsets
+ * into its own box, which traversal decodes on the way down.  Each node is one
+ * fixed-size record in a single buffer,
+ *
+ *   bytes 0 .. 12*b-1:  for an interior node, the children's xMin, yMin, zMin,
+ *                       xMax, yMax, zMax, first child then second child, b bytes
+ *                       each; for a leaf, the primitive count in the first 4 bytes
+ *   last 4 bytes:       for an interior node, the index of its second child; for
+ *                       a leaf, ~(index of its first primitive)
+ *
+ * so an 8 bit node takes 16 bytes, and four fit in a cache line, where a FlatBVH
+ * node takes 56.  Nodes keep the FlatBVH's depth first numbering.
+ *
+ * Quantized boxes are rounded outwards, so they always contain the exact box and
+ * traversal finds the same hits as the FlatBVH, at the price of a few more box
+ * and primitive tests.  A minimum is decoded as lo + q * step and a maximum as
+ * hi - (LEVELS - q) * step, where [lo, hi] is the parent's decoded range and
+ * step = (hi - lo) / LEVELS, so q = 0 and q = LEVELS give lo and hi exactly; the
+ * quantizer decodes with the same arithmetic to check its rounding.
+ */
+public class QuantizedBVH implements AccelerationStructure {
+
+	/** Offset of the link in a node */
+	private final int linkOffset;
+
+	/** Bytes per node */
+	private final int stride;
+
+	/** Bits per quantized coordinate, 8 or 16 */
+	private final int bits;
+
+	/** The largest quantized coordinate */
+	private final int levels;
+
+	/** The nodes, stride bytes each */
+	protected ByteBuffer nodes;
+
+	/** The root's bounds, in full */
+	protected final double[] root = new double[FlatBVH.BOUNDS];
+
+	/** The surfaces of the leaves, leaf by leaf, as in FlatBVH */
+	protected final Surface[] leafSurfaces;
+
+	protected final int nodeCount;
+
+	/**
+	 * The working storage of traversal, one per thread, as in FlatBVH: the ray's
+	 * origin and inverse direction, the decoded boxes of the current node and its
+	 * children, and the stack of nodes with their boxes and entry distances.
+	 */
+	private static final class Scratch {
+		final IntersectionRecord workRec = new IntersectionRecord();
+		final double[] o = new double[3], inv = new double[3];
+		final double[] box = new double[FlatBVH.BOUNDS], children = new double[2 * FlatBVH.BOUNDS];
+		int[] stack = new int[64];
+		double[] stackEntry = new double[64];
+		double[] stackBoxes = new double[64 * FlatBVH.BOUNDS];
+	}
+
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	 * Quantize a tree.
+	 *
+	 * @param tree the tree, which is not kept
+	 * @param bits bits per coordinate, 8 or 16
+	 */
+	public QuantizedBVH(FlatBVH tree, int bits) {
+
+		if (bits != 8 && bits != 16)
+			throw new Error("QuantizedBVH: " + bits + " bit coordinates are not supported, only 8 or 16");
+		this.bits = bits;
+		levels = (1 << bits) - 1;
+		linkOffset = 12 * (bits / 8);
+		stride = bits == 8 ? 16 : 32;
+		leafSurfaces = tree.leafSurfaces;
+		nodeCount = tree.nodeCount;
+
+		nodes = ByteBuffer.allocate(stride * nodeCount).order(ByteOrder.LITTLE_ENDIAN);
+		double[] exact = new double[FlatBVH.BOUNDS * nodeCount];
+		for (int i = 0; i < exact.length; i++)
+			exact[i] = tree.bounds.get(i);
+		int[] links = new int[FlatBVH.LINKS * nodeCount];
+		for (int i = 0; i < links.length; i++)
+			links[i] = tree.links.get(i);
+		quantize(exact, links);
+	}
+
+	/**
+	 * Write every node from exact bounds and FlatBVH links.  Nodes are numbered
+	 * depth first, so a parent's decoded box is known before its children's.
+	 */
+	private void quantize(double[] exact, int[] links) {
+
+		if (nodeCount == 0)
+			return;
+		System.arraycopy(exact, 0, root, 0, FlatBVH.BOUNDS);
+		double[] decoded = new double[FlatBVH.BOUNDS * nodeCount];
+		System.arraycopy(exact, 0, decoded, 0, FlatBVH.BOUNDS);
+
+		for (int node = 0; node < nodeCount; node++) {
+			int first = links[FlatBVH.LINKS * node], second = links[FlatBVH.LINKS * node + 1];
+			int n = stride * node;
+			if (second >= 0) {
+				nodes.putInt(n, second);
+				nodes.putInt(n + linkOffset, ~first);
+				continue;
+			}
+			quantizeChild(node, node + 1, 0, exact, decoded);
+			quantizeChild(node, first, 6, exact, decoded);
+			nodes.putInt(n + linkOffset, first);
+		}
+	}
+
+	/**
+	 * Round a child's exact box outwards to the grid of its parent's decoded box,
+	 * and record the child's decoded box for its own children.
+	 */
+	private void quantizeChild(int parent, int child, int slot, double[] exact, double[] decoded) {
+
+		int p = FlatBVH.BOUNDS * parent, c = FlatBVH.BOUNDS * child;
+		for (int axis = 0; axis < 3; axis++) {
+			double lo = decoded[p + axis], hi = decoded[p + axis + 3];
+			double step = (hi - lo) / levels;
+			double min = exact[c + axis], max = exact[c + axis + 3];
+
+			int qMin = 0, qMax = levels;
+			if (step > 0) {
+				qMin = clamp(Math.floor((min - lo) / step));
+				while (qMin > 0 && lo + qMin * step > min)
+					qMin--;
+				qMax = clamp(Math.ceil(levels - (hi - max) / step));
+				while (qMax < levels && hi - (levels - qMax) * step < max)
+					qMax++;
+			}
+			put(parent, slot + axis, qMin);
+			put(parent, slot + axis + 3, qMax);
+			decoded[c + axis] = lo + qMin * step;
+			decoded[c + axis + 3] = hi - (levels - qMax) * step;
+		}
+	}
+
+	private int clamp(double q) {
+		return q <= 0 ? 0 : q >= levels ? levels : (int) q;
+	}
+
+	private void put(int node, int coordinate, int q) {
+
+		if (bits == 8)
+			nodes.put(stride * node + coordinate, (byte) q);
+		else
+			nodes.putShort(stride * node + 2 * coordinate, (short) q);
+	}
+
+	private int get(int node, int coordinate) {
+
+		if (bits == 8)
+			return nodes.get(stride * node + coordinate) & 0xff;
+		return nodes.getShort(stride * node + 2 * coordinate) & 0xffff;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return bytes taken by the nodes, including the root box
+	 */
+	public long getNodeBytes() {
+		return (long) stride * nodeCount + 8 * FlatBVH.BOUNDS;
+	}
+
+	/**
+	 * @return a new box holding the root's bounds
+	 */
+	public AxisAlignedBoundingBox getBoundingBox() {
+
+		AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+		if (nodeCount > 0) {
+			box.add(root[0], root[1], root[2]);
+			box.add(root[3], root[4], root[5]);
+		}
+		return box;
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getFirstIntersection(ray.misc.IntersectionRecord, ray.misc.Ray)
+	 */
+	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
+
+		return traverse(outRecord, ray, false);
+	}
+
+	/**
+	 * @see ray.accel.AccelerationStructure#getAnyIntersection(ray.misc.IntersectionRecord, ray.misc.Ray)
+	 */
+	public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
+
+		return traverse(outRecord, ray, true);
+	}
+
+	/**
+	 * Children are tested from their parent, as that is where their boxes are.
+	 * The nearer hit child is visited first and the other is pushed with its
+	 * decoded box and entry distance, and skipped when popped if a closer hit has
+	 * been found since.
+	 */
+	private boolean traverse(IntersectionRecord outRecord, Ray ray, boolean anyHit) {
+
+		if (nodeCount == 0)
+			return false;
+		RenderStats stats = RenderStats.ENABLED ? RenderStats.get() : null;
+		Scratch work = scratch.get();
+		double[] o = work.o, inv = work.inv;
+		o[0] = ray.origin.x;
+		o[1] = ray.origin.y;
+		o[2] = ray.origin.z;
+		inv[0] = 1 / ray.direction.x;
+		inv[1] = 1 / ray.direction.y;
+		inv[2] = 1 / ray.direction.z;
+		double end = ray.end;
+
+		// box holds the current node's decoded box, children its children's
+		double[] box = work.box, children = work.children;
+		System.arraycopy(root, 0, box, 0, FlatBVH.BOUNDS);
+		if (RenderStats.ENABLED)
+			stats.nodeVisits++;
+		if (entry(box, 0, o, inv, ray.start, ray.end) == Double.POSITIVE_INFINITY)
+			return false;
+
+		IntersectionRecord workRec = work.workRec;
+		boolean hit = false;
+		int[] stack = work.stack;
+		double[] stackEntry = work.stackEntry;
+		double[] stackBoxes = work.stackBoxes;
+		int top = 0;
+		int node = 0, previous = -1;
+		while (true) {
+			if (RenderStats.ENABLED) {
+				if (node != previous + 1)
+					stats.nodeJumps++;
+				previous = node;
+			}
+			int n = stride * node;
+			int link = nodes.getInt(n + linkOffset);
+			if (link < 0) {
+				int first = ~link, count = nodes.getInt(n);
+				if (RenderStats.ENABLED)
+					stats.primitiveTests += count;
+				for (int i = first; i < first + count; i++) {
+					if (leafSurfaces[i].intersect(workRec, ray)) {
+						outRecord.set(workRec);
+						ray.end = workRec.t;
+						hit = true;
+						if (anyHit) {
+							ray.end = end;
+							return true;
+						}
+					}
+				}
+			} else {
+				decode(node, box, children);
+				if (RenderStats.ENABLED)
+					stats.nodeVisits += 2;
+				double tFirst = entry(children, 0, o, inv, ray.start, ray.end);
+				double tSecond = entry(children, FlatBVH.BOUNDS, o, inv, ray.start, ray.end);
+				if (tFirst != Double.POSITIVE_INFINITY || tSecond != Double.POSITIVE_INFINITY) {
+					int near = tFirst <= tSecond ? 0 : FlatBVH.BOUNDS;
+					if (tFirst != Double.POSITIVE_INFINITY && tSecond != Double.POSITIVE_INFINITY) {
+						if (top == stack.length) {
+							stack = work.stack = Arrays.copyOf(stack, 2 * stack.length);
+							stackEntry = work.stackEntry = Arrays.copyOf(stackEntry, 2 * stackEntry.length);
+							stackBoxes = work.stackBoxes = Arrays.copyOf(stackBoxes, 2 * stackBoxes.length);
+						}
+						int far = FlatBVH.BOUNDS - near;
+						stack[top] = far == 0 ? node + 1 : link;
+						stackEntry[top] = Math.max(tFirst, tSecond);
+						System.arraycopy(children, far, stackBoxes, FlatBVH.BOUNDS * top, FlatBVH.BOUNDS);
+						top++;
+					}
+					node = near == 0 ? node + 1 : link;
+					System.arraycopy(children, near, box, 0, FlatBVH.BOUNDS);
+					continue;
+				}
+			}
+
+			do {
+				if (top == 0) {
+					ray.end = end;
+					return hit;
+				}
+				top--;
+			} while (stackEntry[top] >= ray.end);
+			node = stack[top];
+			System.arraycopy(stackBoxes, FlatBVH.BOUNDS * top, box, 0, FlatBVH.BOUNDS);
+		}
+	}
+
+	/**
+	 * Decode both children's boxes from an interior node and its decoded box.
+	 */
+	private void decode(int node, double[] box, double[] out) {
+
+		for (int axis = 0; axis < 3; axis++) {
+			double lo = box[axis], hi = box[axis + 3];
+			double step = (hi - lo) / levels;
+			out[axis] = lo + get(node, axis) * step;
+			out[axis + 3] = hi - (levels - get(node, axis + 3)) * step;
+			out[axis + 6] = lo + get(node, axis + 6) * step;
+			out[axis + 9] = hi - (levels - get(node, axis + 9)) * step;
+		}
+	}
+
+	/**
+	 * The slab test of AxisAlignedBoundingBox.intersect() on box[b .. b+5].
+	 *
+	 * @return where the ray enters the box, or infinity if it misses
+	 */
+	private static double entry(double[] box, int b, double[] o, double[] inv, double start, double end) {
+
+		double tMin = start, tMax = end;
+		for (int axis = 0; axis < 3; axis++) {
+			double t0 = (box[b + axis] - o[axis]) * inv[axis];
+			double t1 = (box[b + axis + 3] - o[axis]) * inv[axis];
+			if (inv[axis] < 0) {
+				double t = t0;
+				t0 = t1;
+				t1 = t;
+			}
+			if (t0 > tMin)
+				tMin = t0;
+			if (t1 < tMax)
+				tMax = t1;
+			if (tMin > tMax)
+				return Double.POSITIVE_INFINITY;
+		}
+		return tMin;
+	}
+
+	/**
+	 * Refit to the moved surfaces: recompute the exact boxes bottom up from the
+	 * leaves and quantize them again.  The tree itself is kept.
+	 */
+	public void update() {
+
+		double[] exact = new double[FlatBVH.BOUNDS * nodeCount];
+		int[] links = new int[FlatBVH.LINKS * nodeCount];
+		AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			int n = stride * node, link = nodes.getInt(n + linkOffset);
+			box.clear();
+			if (link < 0) {
+				int first = ~link, count = nodes.getInt(n);
+				links[FlatBVH.LINKS * node] = first;
+				links[FlatBVH.LINKS * node + 1] = count;
+				for (int i = first; i < first + count; i++)
+					leafSurfaces[i].addToBoundingBox(box);
+			} else {
+				links[FlatBVH.LINKS * node] = link;
+				links[FlatBVH.LINKS * node + 1] = -1;
+				for (int child : new int[] { node + 1, link }) {
+					int c = FlatBVH.BOUNDS * child;
+					box.add(exact[c], exact[c + 1], exact[c + 2]);
+					box.add(exact[c + 3], exact[c + 4], exact[c + 5]);
+				}
+			}
+			int b = FlatBVH.BOUNDS * node;
+			exact[b] = box.xMin;
+			exact[b + 1] = box.yMin;
+			exact[b + 2] = box.zMin;
+			exact[b + 3] = box.xMax;
+			exact[b + 4] = box.yMax;
+			exact[b + 5] = box.zMax;
+		}
+		quantize(exact, links);
+	}
+
+	/**
+	 * Quantize the tree a builder makes for a list of surfaces.
+	 */
+	public static QuantizedBVH build(List<Surface> surfaces, BVHBuilder builder, int bits) {
+
+		return new QuantizedBVH(builder.build(surfaces), bits);
+	}
+
+	/**
+	 * Check traversal against a BoundingVolume over a mesh, the one named by the
+	 * first argument or the bunny, for 8 and 16 bit trees from both builders, and
+	 * again after the mesh moved and the tree was update()d, against a
+	 * BoundingVolume built over the moved mesh.
+	 */
+	public static void main(String[] args) {
+
+		Mesh mesh = AgreementCheck.readMesh(args);
+		ArrayList<Surface> surfaces = new ArrayList<Surface>(Arrays.asList(mesh.getTriangles()));
+		float[] rest = mesh.getVertices().clone();
+		BoundingVolume reference = new BoundingVolume(new ArrayList<Surface>(surfaces));
+		for (BVHBuilder builder : new BVHBuilder[] { BVHBuilder.MEDIAN_SPLIT, new SpatialSplitBuilder() }) {
+			FlatBVH tree = builder.build(surfaces);
+			for (int bits : new int[] { 8, 16 }) {
+				QuantizedBVH quantized = new QuantizedBVH(tree, bits);
+				String label = "QuantizedBVH " + bits + " bit, " + builder.getSettings();
+				AgreementCheck.compare(label, quantized, reference);
+				System.out.println("  " + quantized.getNodeBytes() + " node bytes, FlatBVH "
+						+ (long) (8 * FlatBVH.BOUNDS + 4 * FlatBVH.LINKS) * tree.getNodeCount());
+
+				AgreementCheck.wave(mesh, rest, bits);
+				quantized.update();
+				AgreementCheck.compare(label + ", moved and updated", quantized,
+						new BoundingVolume(new ArrayList<Surface>(surfaces)));
+				mesh.setVertexPositions(rest);
+			}
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package ray.accel;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import ray.misc.RenderStats;
+import ray.surface.Surface;
+
+/**
+ * Builds a FlatBVH with spatial splits (SBVH, Stich, Friedrich and Dietrich 2009).
+ * Large triangles that span many others, like the walls of the Cornell box, make
+ * the children of an object split overlap heavily, and rays then have to visit both.
+ * Wherever the best object split overlaps by more than overlapThreshold of the root's
+ * area, this builder also tries splitting space itself: the triangles straddling the
+ * plane are referenced from both children, each time clipped to the child's side
+ * (Surface.addClippedToBoundingBox()), so the children no longer overlap.  Both kinds
+ * of split are chosen by the surface area heuristic.
+ *
+ * The references may grow to (1 + maxDuplication) times the surfaces; once the
+ * budget is spent only object splits are made.  Object splits are not binned: the
+ * sweep sorts the references along each axis at every node, O(n log^2 n) over the
+ * tree.  Building therefore takes 20 to 30 times as long as the median split of
+ * BoundingVolume (7 to 11 s against 0.35 s for the 69451 triangles of the bunny),
+ * so this is meant for final renders:
+ *
+ *   <builder type="SpatialSplitBuilder"/>
+ *
+ * in the scene, or ParaRayTracer -sbvh.
+ */
+public class SpatialSplitBuilder implements BVHBuilder {
+
+	/** Bins per axis for spatial splits */
+	public static final int SPATIAL_BINS = 32;
+
+	/** Trees deeper than this get leaves regardless of size */
+	public static final int MAX_DEPTH = 64;
+
+	/** Spatial splits are tried where object split children overlap by more than this share of the root's area */
+	protected double overlapThreshold = 1e-5;
+
+	/** The fraction of the surface count that may be added as duplicate references */
+	protected double maxDuplication = 0.5;
+
+	public void setOverlapThreshold(double overlapThreshold) {
+		this.overlapThreshold = overlapThreshold;
+	}
+
+	public void setMaxDuplication(double maxDuplication) {
+		this.maxDuplication = maxDuplication;
+	}
+
+	/**
+	 * @see ray.accel.BVHBuilder#getSettings()
+	 */
+	public String getSettings() {
+		return "SpatialSplitBuilder " + BoundingVolume.MAX_SURFACES_PER_LEAF + " " + SPATIAL_BINS + " " +
+		       overlapThreshold + " " + maxDuplication;
+	}
+
+	/** A surface, or the part of it inside box */
+	private static final class Reference {
+		final int surface;
+		final AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+
+		Reference(int surface) {
+			this.surface = surface;
+		}
+
+		double center(int axis) {
+			return 0.5 * (min(box, axis) + max(box, axis));
+		}
+	}
+
+	/** A candidate split of a node */
+	private static class Split {
+		double cost = Double.POSITIVE_INFINITY;
+		int axis;
+		/** Object split: the number of references, in center order, going left */
+		int count;
+		/** Spatial split: the plane */
+		double plane;
+		boolean spatial;
+	}
+
+	/**
+	 * @see ray.accel.BVHBuilder#build(java.util.List)
+	 */
+	public FlatBVH build(List<Surface> surfaces) {
+
+		return new Build(surfaces).run();
+	}
+
+	/** The state of one build */
+	private final class Build {
+
+		final List<Surface> surfaces;
+		final int budget;
+		int references;
+		double rootArea;
+
+		double[] bounds = new double[FlatBVH.BOUNDS * 64];
+		int[] links = new int[FlatBVH.LINKS * 64];
+		int[] primitives = new int[64];
+		int nodes, primitiveCount;
+
+		Build(List<Surface> surfaces) {
+			this.surfaces = surfaces;
+			this.budget = (int) Math.min(Integer.MAX_VALUE, (long) (surfaces.size() * (1 + maxDuplication)));
+		}
+
+		FlatBVH run() {
+
+			ArrayList<Reference> refs = new ArrayList<Reference>(surfaces.size());
+			AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+			for (int i = 0; i < surfaces.size(); i++) {
+				Reference ref = new Reference(i);
+				surfaces.get(i).addToBoundingBox(ref.box);
+				box.add(ref.box);
+				refs.add(ref);
+			}
+			references = refs.size();
+			rootArea = box.area();
+
+			long start = System.nanoTime();
+			node(refs, box, 0);
+			if (RenderStats.ENABLED)
+				System.out.println(String.format("SBVH over %d surfaces: %d nodes, %d references, %.0f ms",
+				                                 surfaces.size(), nodes, primitiveCount,
+				                                 (System.nanoTime() - start) / 1e6));
+
+			FlatBVH bvh = new FlatBVH(surfaces, DoubleBuffer.wrap(Arrays.copyOf(bounds, FlatBVH.BOUNDS * nodes)),
+			                          IntBuffer.wrap(Arrays.copyOf(links, FlatBVH.LINKS * nodes)),
+			                          IntBuffer.wrap(Arrays.copyOf(primitives, primitiveCount))).reorder();
+			bvh.setBuilder(SpatialSplitBuilder.this);
+			return bvh;
+		}
+
+		/**
+		 * Emit the subtree for refs, whose boxes make up box, depth first.
+		 */
+		void node(List<Reference> refs, AxisAlignedBoundingBox box, int depth) {
+
+			int self = nodes++;
+			if (FlatBVH.BOUNDS * nodes > bounds.length) {
+				bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+				links = Arrays.copyOf(links, 2 * links.length);
+			}
+			int b = FlatBVH.BOUNDS * self;
+			bounds[b] = box.xMin;
+			bounds[b + 1] = box.yMin;
+			bounds[b + 2] = box.zMin;
+			bounds[b + 3] = box.xMax;
+			bounds[b + 4] = box.yMax;
+			bounds[b + 5] = box.zMax;
+
+			if (refs.size() < BoundingVolume.MAX_SURFACES_PER_LEAF || depth >= MAX_DEPTH) {
+				leaf(self, refs);
+				return;
+			}
+
+			ObjectSplit split = findObjectSplit(refs, box);
+			if (references < budget && split.overlap != null && split.overlap.area() > overlapThreshold * rootArea)
+				findSpatialSplit(refs, box, split);
+
+			ArrayList<Reference> left = new ArrayList<Reference>(), right = new ArrayList<Reference>();
+			AxisAlignedBoundingBox leftBox = new AxisAlignedBoundingBox(), rightBox = new AxisAlignedBoundingBox();
+			if (split.spatial)
+				partitionSpatial(refs, box, split, left, right);
+			else
+				partitionObject(refs, split, left, right);
+			if (left.isEmpty() || right.isEmpty()) {
+				// Everything fell on one side: fall back to halving in center order
+				left.clear();
+				right.clear();
+				sortByCenter(refs, box.longestAxis());
+				left.addAll(refs.subList(0, refs.size() / 2));
+				right.addAll(refs.subList(refs.size() / 2, refs.size()));
+				split.axis = box.longestAxis();
+			}
+			for (Reference ref : left)
+				leftBox.add(ref.box);
+			for (Reference ref : right)
+				rightBox.add(ref.box);
+			refs = null;
+
+			links[FlatBVH.LINKS * self + 1] = -(split.axis + 1);
+			node(left, leftBox, depth + 1);
+			links[FlatBVH.LINKS * self] = nodes;
+			node(right, rightBox, depth + 1);
+		}
+
+		void leaf(int self, List<Reference> refs) {
+
+			while (primitiveCount + refs.size() > primitives.length)
+				primitives = Arrays.copyOf(primitives, 2 * primitives.length);
+			links[FlatBVH.LINKS * self] = primitiveCount;
+			links[FlatBVH.LINKS * self + 1] = refs.size();
+			for (Reference ref : refs)
+				primitives[primitiveCount++] = ref.surface;
+		}
+
+		/**
+		 * The best object split over all three axes, by sweeping the references in
+		 * center order.  Leaves refs sorted along the best axis.
+		 */
+		ObjectSplit findObjectSplit(List<Reference> refs, AxisAlignedBoundingBox box) {
+
+			ObjectSplit best = new ObjectSplit();
+			int n = refs.size();
+			double[] rightAreas = new double[n];
+			AxisAlignedBoundingBox sweep = new AxisAlignedBoundingBox();
+			for (int axis = 0; axis < 3; axis++) {
+				sortByCenter(refs, axis);
+				sweep.clear();
+				for (int i = n - 1; i > 0; i--) {
+					sweep.add(refs.get(i).box);
+					rightAreas[i] = sweep.area();
+				}
+				sweep.clear();
+				for (int i = 1; i < n; i++) {
+					sweep.add(refs.get(i - 1).box);
+					double cost = sweep.area() * i + rightAreas[i] * (n - i);
+					if (cost < best.cost) {
+						best.cost = cost;
+						best.axis = axis;
+						best.count = i;
+					}
+				}
+			}
+			sortByCenter(refs, best.axis);
+
+			AxisAlignedBoundingBox leftBox = new AxisAlignedBoundingBox(), rightBox = new AxisAlignedBoundingBox();
+			for (int i = 0; i < n; i++)
+				(i < best.count ? leftBox : rightBox).add(refs.get(i).box);
+			leftBox.clip(rightBox);
+			best.overlap = leftBox.isEmpty() ? null : leftBox;
+			return best;
+		}
+
+		/**
+		 * Replace split by the best spatial split if that is cheaper.  Each reference is
+		 * clipped into the bins it spans; a plane between bins sends the references
+		 * entering before it left and those leaving after it right.
+		 */
+		void findSpatialSplit(List<Reference> refs, AxisAlignedBoundingBox box, Split split) {
+
+			AxisAlignedBoundingBox[] bins = new AxisAlignedBoundingBox[SPATIAL_BINS];
+			for (int i = 0; i < SPATIAL_BINS; i++)
+				bins[i] = new AxisAlignedBoundingBox();
+			int[] entries = new int[SPATIAL_BINS], exits = new int[SPATIAL_BINS];
+			double[] rightAreas = new double[SPATIAL_BINS];
+			int[] rightCounts = new int[SPATIAL_BINS];
+			AxisAlignedBoundingBox slab = new AxisAlignedBoundingBox();
+			AxisAlignedBoundingBox sweep = new AxisAlignedBoundingBox();
+
+			for (int axis = 0; axis < 3; axis++) {
+				double lo = min(box, axis), width = (max(box, axis) - lo) / SPATIAL_BINS;
+				if (!(width > 0))
+					continue;
+				for (int i = 0; i < SPATIAL_BINS; i++)
+					bins[i].clear();
+				Arrays.fill(entries, 0);
+				Arrays.fill(exits, 0);
+
+				for (Reference ref : refs) {
+					int first = bin(min(ref.box, axis), lo, width);
+					int last = bin(max(ref.box, axis), lo, width);
+					for (int i = first; i <= last; i++) {
+						slab.set(ref.box);
+						if (i > first)
+							setMin(slab, axis, lo + i * width);
+						if (i < last)
+							setMax(slab, axis, lo + (i + 1) * width);
+						surfaces.get(ref.surface).addClippedToBoundingBox(slab, bins[i]);
+					}
+					entries[first]++;
+					exits[last]++;
+				}
+
+				sweep.clear();
+				int count = 0;
+				for (int i = SPATIAL_BINS - 1; i > 0; i--) {
+					sweep.add(bins[i]);
+					count += exits[i];
+					rightAreas[i] = sweep.area();
+					rightCounts[i] = count;
+				}
+				sweep.clear();
+				count = 0;
+				for (int i = 1; i < SPATIAL_BINS; i++) {
+					sweep.add(bins[i - 1]);
+					count += entries[i - 1];
+					double cost = sweep.area() * count + rightAreas[i] * rightCounts[i];
+					if (cost < split.cost && references + count + rightCounts[i] - refs.size() <= budget) {
+						split.cost = cost;
+						split.axis = axis;
+						split.plane = lo + i * width;
+						split.spatial = true;
+					}
+				}
+			}
+		}
+
+		int bin(double x, double lo, double width) {
+			return Math.max(0, Math.min(SPATIAL_BINS - 1, (int) ((x - lo) / width)));
+		}
+
+		void partitionObject(List<Reference> refs, Split split, List<Reference> left, List<Reference> right) {
+
+			left.addAll(refs.subList(0, split.count));
+			right.addAll(refs.subList(split.count, refs.size()));
+		}
+
+		/**
+		 * Send each reference to the side of the plane it lies on, splitting those
+		 * that straddle it in two clipped references.
+		 */
+		void partitionSpatial(List<Reference> refs, AxisAlignedBoundingBox box, Split split,
+				List<Reference> left, List<Reference> right) {
+
+			int axis = split.axis;
+			AxisAlignedBoundingBox leftSide = new AxisAlignedBoundingBox(), rightSide = new AxisAlignedBoundingBox();
+			leftSide.set(box);
+			setMax(leftSide, axis, split.plane);
+			rightSide.set(box);
+			setMin(rightSide, axis, split.plane);
+
+			AxisAlignedBoundingBox clip = new AxisAlignedBoundingBox();
+			for (Reference ref : refs) {
+				if (max(ref.box, axis) <= split.plane) {
+					left.add(ref);
+				} else if (min(ref.box, axis) >= split.plane) {
+					right.add(ref);
+				} else {
+					Surface surface = surfaces.get(ref.surface);
+					Reference l = new Reference(ref.surface), r = new Reference(ref.surface);
+					clip.set(ref.box);
+					clip.clip(leftSide);
+					surface.addClippedToBoundingBox(clip, l.box);
+					clip.set(ref.box);
+					clip.clip(rightSide);
+					surface.addClippedToBoundingBox(clip, r.box);
+					if (!l.box.isEmpty())
+						left.add(l);
+					if (!r.box.isEmpty())
+						right.add(r);
+					if (!l.box.isEmpty() && !r.box.isEmpty())
+						references++;
+				}
+			}
+		}
+	}
+
+	/** An object split, with the overlap of its children's boxes */
+	private static final class ObjectSplit extends Split {
+		AxisAlignedBoundingBox overlap;
+	}
+
+	private static void sortByCenter(List<Reference> refs, int axis) {
+		refs.sort(Comparator.comparingDouble(ref -> ref.center(axis)));
+	}
+
+	private static double min(AxisAlignedBoundingBox box, int axis) {
+		return axis == AxisAlignedBoundingBox.X ? box.xMin : axis == AxisAlignedBoundingBox.Y ? box.yMin : box.zMin;
+	}
+
+	private static double max(AxisAlignedBoundingBox box, int axis) {
+		return axis == AxisAlignedBoundingBox.X ? box.xMax : axis == AxisAlignedBoundingBox.Y ? box.yMax : box.zMax;
+	}
+
+	private static void setMin(AxisAlignedBoundingBox box, int axis, double value) {
+		if (axis == AxisAlignedBoundingBox.X) box.xMin = value;
+		else if (axis == AxisAlignedBoundingBox.Y) box.yMin = value;
+		else box.zMin = value;
+	}
+
+	private static void setMax(AxisAlignedBoundingBox box, int axis, double value) {
+		if (axis == AxisAlignedBoundingBox.X) box.xMax = value;
+		else if (axis == AxisAlignedBoundingBox.Y) box.yMax = value;
+		else box.zMax = value;
+	}
+}
@@ -0,0 +1,478 @@
+package ray.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import ray.ParaRayTracer;
+import ray.accel.AccelerationStructure;
+import ray.accel.AxisAlignedBoundingBox;
+import ray.accel.BVHBuilder;
+import ray.accel.BVHCache;
+import ray.accel.BoundingVolume;
+import ray.accel.FlatBVH;
+import ray.accel.Grid;
+import ray.accel.QuantizedBVH;
+import ray.accel.SpatialSplitBuilder;
+import ray.camera.Camera;
+import ray.io.Parser;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.misc.IntersectionRecord;
+import ray.misc.Ray;
+import ray.misc.RayPacket;
+import ray.misc.RenderStats;
+import ray.misc.Scene;
+import ray.surface.Instance;
+import ray.surface.Mesh;
+import ray.surface.MeshTriangle;
+import ray.surface.Sphere;
+import ray.surface.Surface;
+import ray.surface.Triangle;
+
+/**
+ * Throughput benchmarks for the intersection hot paths: the primitive tests
+ * (Sphere, Triangle, MeshTriangle, AxisAlignedBoundingBox) and the traversal of
+ * the acceleration structures for first and any hits, on the shipped scenes with the fixed ray sets
+ * of {@link RaySet}.  Each benchmark runs a number of warmup passes over its rays
+ * so the JIT settles, then reports Mrays/sec as mean and standard deviation over
+ * the timed passes.  With RenderStats enabled (-Dray.stats=true) it also reports
+ * the nodes visited and the jumps per ray.
+ *
+ * Usage: IntersectBenchmark [-warmup n] [-iterations n] [-size n] [-dir sceneDir] [scene ...]
+ * where the scenes are any of cbox, bunny and monkey (all three by default) and
+ * forest, a field of FOREST_SIDE^2 bunny Instances sharing one mesh, and particles,
+ * PARTICLES small spheres, the case Grid is for.  Run it through the ant target
+ * bench, with bench.args holding the arguments.
+ *
+ * For the meshes it also compares rebuilding the BoundingVolume with updating it
+ * (refit plus the rebuilds its quality monitor asks for) while the mesh deforms.
+ */
+public class IntersectBenchmark {
+
+    /** Seed for all the ray sets, so runs are comparable */
+    public static final long SEED = 20051110L;
+
+    /** The ray count of the primitive ray sets */
+    public static final int PRIMITIVE_RAYS = 1 << 18;
+
+    /** The forest scene is a FOREST_SIDE x FOREST_SIDE grid of bunnies */
+    public static final int FOREST_SIDE = 32;
+
+    /** The particles scene is this many small spheres in a unit cube */
+    public static final int PARTICLES = 50000;
+
+    /** The subGridThreshold of the two level grid */
+    public static final int SUB_GRID_THRESHOLD = 16;
+
+    /** One benchmark: intersect every ray of a set once and count the hits */
+    private interface Kernel {
+        int run(RaySet rays, Ray work, IntersectionRecord iRec);
+    }
+
+    private int warmup = 5;
+    private int iterations = 10;
+    private int size = 256;
+    private String dir = "scene";
+
+    /** Sink for results so the JIT cannot drop the work */
+    private long sink;
+
+    public static void main(String[] args) {
+        IntersectBenchmark bench = new IntersectBenchmark();
+        ArrayList<String> scenes = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-warmup"))
+                bench.warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-iterations"))
+                bench.iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-size"))
+                bench.size = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-dir"))
+                bench.dir = args[++i];
+            else
+                scenes.add(args[i]);
+        }
+        if (scenes.isEmpty())
+            scenes.addAll(Arrays.asList("cbox", "bunny", "monkey"));
+
+        bench.runPrimitives();
+        for (String name : scenes)
+            bench.runScene(name);
+        for (String name : scenes)
+            if (!name.equals("cbox") && !name.equals("forest") && !name.equals("particles"))
+                bench.runRefit(name);
+        System.err.println("(sink " + bench.sink + ")");
+    }
+
+    /**
+     * Time the primitive tests in isolation.  The spheres and triangles are random;
+     * the mesh triangles and boxes come from the bunny, aimed at with a jitter of
+     * about the size of a triangle.
+     */
+    private void runPrimitives() {
+        Random random = new Random(SEED);
+
+        Sphere[] spheres = new Sphere[64];
+        for (int i = 0; i < spheres.length; i++) {
+            spheres[i] = new Sphere();
+            spheres[i].setCenter(new Point3(random.nextDouble() * 100, random.nextDouble() * 100,
+                                            random.nextDouble() * 100));
+            spheres[i].setRadius(1);
+        }
+        RaySet sphereRays = RaySet.primitiveRays("random", spheres, 10, 1.5, PRIMITIVE_RAYS, SEED);
+        report("primitive", "Sphere", sphereRays, (rays, work, iRec) -> {
+            int hits = 0;
+            for (int i = 0; i < rays.size(); i++) {
+                rays.load(i, work);
+                if (spheres[i % spheres.length].intersect(iRec, work)) hits++;
+            }
+            return hits;
+        });
+
+        Triangle[] triangles = new Triangle[64];
+        for (int i = 0; i < triangles.length; i++) {
+            Point3 v0 = new Point3(random.nextDouble() * 100, random.nextDouble() * 100,
+                                   random.nextDouble() * 100);
+            Point3 v1 = new Point3(v0.x + 2 * random.nextDouble(), v0.y + 2 * random.nextDouble(), v0.z);
+            Point3 v2 = new Point3(v0.x, v0.y + 2 * random.nextDouble(), v0.z + 2 * random.nextDouble());
+            triangles[i] = new Triangle(v0, v1, v2, null);
+        }
+        RaySet triangleRays = RaySet.primitiveRays("random", triangles, 10, 0.5, PRIMITIVE_RAYS, SEED);
+        report("primitive", "Triangle", triangleRays, (rays, work, iRec) -> {
+            int hits = 0;
+            for (int i = 0; i < rays.size(); i++) {
+                rays.load(i, work);
+                if (triangles[i % triangles.length].intersect(iRec, work)) hits++;
+            }
+            return hits;
+        });
+
+        Mesh bunny = new Mesh();
+        bunny.setData(dir + File.separator + "bunny.msh");
+        MeshTriangle[] meshTriangles = Arrays.copyOf(bunny.getTriangles(), 4096);
+        RaySet meshRays = RaySet.primitiveRays("bunny", meshTriangles, 0.05, 0.001, PRIMITIVE_RAYS, SEED);
+        report("primitive", "MeshTriangle", meshRays, (rays, work, iRec) -> {
+            int hits = 0;
+            for (int i = 0; i < rays.size(); i++) {
+                rays.load(i, work);
+                if (meshTriangles[i % meshTriangles.length].intersect(iRec, work)) hits++;
+            }
+            return hits;
+        });
+
+        AxisAlignedBoundingBox[] boxes = new AxisAlignedBoundingBox[meshTriangles.length];
+        for (int i = 0; i < boxes.length; i++) {
+            boxes[i] = new AxisAlignedBoundingBox();
+            meshTriangles[i].addToBoundingBox(boxes[i]);
+        }
+        report("primitive", "AABB", meshRays, (rays, work, iRec) -> {
+            int hits = 0;
+            for (int i = 0; i < rays.size(); i++) {
+                rays.load(i, work);
+                if (boxes[i % boxes.length].intersect(work)) hits++;
+            }
+            return hits;
+        });
+    }
+
+    /**
+     * Time the BoundingVolume build and the traversal of it, of its FlatBVH before
+     * and after FlatBVH.reorder(), of a spatial split FlatBVH, of the 8 bit
+     * QuantizedBVH of the FlatBVH and of one and two level Grids with camera, bounce
+     * and shadow rays, and the FlatBVH's round trip through BVHCache.  Last come the
+     * reordered FlatBVH's packet traversals, of camera rays in squares of pixels and
+     * of the bounce and shadow rays.
+     */
+    private void runScene(String name) {
+        Scene scene = loadScene(name);
+
+        long t0 = System.nanoTime();
+        BoundingVolume bvh = new BoundingVolume(scene.getSurfaces());
+        System.out.println(String.format("%-10s %-36s %8.1f ms", name, "BoundingVolume build",
+                                         (System.nanoTime() - t0) / 1e6));
+        FlatBVH flat = FlatBVH.flatten(bvh, scene.getSurfaces());
+        FlatBVH reordered = flat.reorder();
+        runCache(name, scene);
+
+        long t1 = System.nanoTime();
+        FlatBVH sbvh = new SpatialSplitBuilder().build(scene.getSurfaces());
+        System.out.println(String.format("%-10s %-36s %8.1f ms, SAH %.2f (BoundingVolume %.2f)", name,
+                                         "SpatialSplitBuilder build", (System.nanoTime() - t1) / 1e6,
+                                         sbvh.getCost(), bvh.getCost()));
+
+        long t2 = System.nanoTime();
+        Grid grid = new Grid(scene.getSurfaces());
+        int[] resolution = grid.getResolution();
+        System.out.println(String.format("%-10s %-36s %8.1f ms, %dx%dx%d cells", name, "Grid build",
+                                         (System.nanoTime() - t2) / 1e6, resolution[0], resolution[1],
+                                         resolution[2]));
+        long t3 = System.nanoTime();
+        Grid grid2 = new Grid();
+        grid2.setSubGridThreshold(SUB_GRID_THRESHOLD);
+        grid2.build(scene.getSurfaces());
+        System.out.println(String.format("%-10s %-36s %8.1f ms, %d cells with grids", name, "Grid build, two levels",
+                                         (System.nanoTime() - t3) / 1e6, grid2.getSubGridCount()));
+
+        QuantizedBVH quantized = new QuantizedBVH(flat, 8);
+        System.out.println(String.format("%-10s %-36s %8d bytes (FlatBVH %d)", name, "QuantizedBVH 8 bit nodes",
+                                         quantized.getNodeBytes(),
+                                         (long) flat.getNodeCount() * (8 * FlatBVH.BOUNDS + 4 * FlatBVH.LINKS)));
+
+        RaySet camera = RaySet.cameraRays(scene.getCamera(), size);
+        RaySet[] sets = { camera, RaySet.bounceRays(scene, camera, SEED),
+                          RaySet.shadowRays(scene, camera, SEED) };
+        for (RaySet set : sets) {
+            runTraversal(name, "", bvh, set);
+            runTraversal(name, "FlatBVH.", flat, set);
+            runTraversal(name, "Reordered.", reordered, set);
+            runTraversal(name, "SBVH.", sbvh, set);
+            runTraversal(name, "QBVH.", quantized, set);
+            runTraversal(name, "Grid.", grid, set);
+            runTraversal(name, "Grid2.", grid2, set);
+        }
+
+        // Packets: coherent camera rays in squares of pixels, then the incoherent sets
+        RaySet tiles = RaySet.cameraTiles(scene.getCamera(), size, ParaRayTracer.PACKET_SIDE);
+        runTraversal(name, "Reordered.", reordered, tiles);
+        for (RaySet set : new RaySet[] { tiles, sets[1], sets[2] })
+            runPackets(name, "Packet.", reordered, set);
+    }
+
+    /**
+     * Time the packet traversal, RayPacket.MAX_SIZE consecutive rays of the set at
+     * a time.
+     */
+    private void runPackets(String name, String prefix, AccelerationStructure accel, RaySet set) {
+        RayPacket packet = new RayPacket();
+        report(name, prefix + "getFirstIntersections", set, (rays, work, iRec) ->
+               tracePackets(rays, packet, p -> accel.getFirstIntersections(p)));
+        report(name, prefix + "getAnyIntersections", set, (rays, work, iRec) ->
+               tracePackets(rays, packet, p -> accel.getAnyIntersections(p)));
+    }
+
+    private static int tracePackets(RaySet rays, RayPacket packet, Consumer<RayPacket> trace) {
+        int hits = 0;
+        for (int i = 0; i < rays.size(); i += RayPacket.MAX_SIZE) {
+            packet.clear();
+            for (int j = i; j < Math.min(i + RayPacket.MAX_SIZE, rays.size()); j++)
+                rays.load(j, packet.add());
+            trace.accept(packet);
+            for (int j = 0; j < packet.size; j++)
+                if (packet.hits[j]) hits++;
+        }
+        return hits;
+    }
+
+    private void runTraversal(String name, String prefix, AccelerationStructure accel, RaySet set) {
+        report(name, prefix + "getFirstIntersection", set, (rays, work, iRec) -> {
+            int hits = 0;
+            for (int i = 0; i < rays.size(); i++) {
+                rays.load(i, work);
+                if (accel.getFirstIntersection(iRec, work)) hits++;
+            }
+            return hits;
+        });
+        report(name, prefix + "getAnyIntersection", set, (rays, work, iRec) -> {
+            int hits = 0;
+            for (int i = 0; i < rays.size(); i++) {
+                rays.load(i, work);
+                if (accel.getAnyIntersection(iRec, work)) hits++;
+            }
+            return hits;
+        });
+    }
+
+    /**
+     * Time getting the scene's tree from an empty BVHCache, which builds and writes
+     * it, against getting it again, which maps the file.
+     */
+    private void runCache(String name, Scene scene) {
+        try {
+            File dir = Files.createTempDirectory("bvhcache").toFile();
+            long t0 = System.nanoTime();
+            BVHCache.get(scene.getSurfaces(), dir, BVHBuilder.MEDIAN_SPLIT);
+            long t1 = System.nanoTime();
+            FlatBVH mapped = BVHCache.get(scene.getSurfaces(), dir, BVHBuilder.MEDIAN_SPLIT);
+            long t2 = System.nanoTime();
+            System.out.println(String.format("%-10s %-36s %8.1f ms build and write, %8.1f ms map%s",
+                                             name, "BVHCache get", (t1 - t0) / 1e6, (t2 - t1) / 1e6,
+                                             mapped.isMapped() ? "" : " (not mapped!)"));
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        } catch (IOException e) {
+            System.out.println(name + " BVHCache: " + e);
+        }
+    }
+
+    /**
+     * Time BoundingVolume.update() against a full build over frames of a wave
+     * travelling through the mesh, and report how the SAH cost holds up.
+     */
+    private void runRefit(String name) {
+        Mesh mesh = new Mesh();
+        mesh.setData(dir + File.separator + name + ".msh");
+        Scene scene = new Scene();
+        scene.addSurface(mesh);
+        BoundingVolume bvh = new BoundingVolume(scene.getSurfaces());
+        Vector3 extents = bvh.getBoundingBox().getExtents();
+        double amplitude = 0.05 * extents.length();
+        double wavelength = 0.5 * extents.y;
+
+        float[] rest = mesh.getVertices().clone();
+        float[] moved = new float[rest.length];
+        double buildMs = 0, updateMs = 0;
+        for (int frame = 0; frame < warmup + iterations; frame++) {
+            double phase = 0.3 * frame;
+            for (int v = 0; v < rest.length; v += 3) {
+                moved[v] = (float) (rest[v] + amplitude * Math.sin(2 * Math.PI * rest[v + 1] / wavelength + phase));
+                moved[v + 1] = rest[v + 1];
+                moved[v + 2] = rest[v + 2];
+            }
+            mesh.setVertexPositions(moved);
+
+            long t0 = System.nanoTime();
+            bvh.update();
+            long t1 = System.nanoTime();
+            BoundingVolume rebuilt = new BoundingVolume(scene.getSurfaces());
+            long t2 = System.nanoTime();
+            sink += (long) rebuilt.getCost();
+            if (frame >= warmup) {
+                updateMs += (t1 - t0) / 1e6;
+                buildMs += (t2 - t1) / 1e6;
+            }
+        }
+        System.out.println(String.format("%-10s %-36s %8.3f ms/frame update, %8.3f ms/frame build, " +
+                                         "SAH %.2f (full build %.2f)", name, "BoundingVolume refit",
+                                         updateMs / iterations, buildMs / iterations, bvh.getCost(),
+                                         new BoundingVolume(scene.getSurfaces()).getCost()));
+    }
+
+    /**
+     * cbox is the scene file; bunny and monkey are the bare meshes seen from a fixed
+     * diagonal viewpoint framing their bounds; forest is FOREST_SIDE^2 instances of
+     * the bunny, randomly turned, seen from above one corner; particles is PARTICLES
+     * random spheres in the unit cube, seen from the front.
+     */
+    private Scene loadScene(String name) {
+        if (name.equals("cbox")) {
+            Scene scene = (Scene) new Parser().parse(dir + File.separator + "cbox.xml", Scene.class);
+            scene.init();
+            scene.getCamera().setAspectRatioKeepYFOV(1);
+            return scene;
+        }
+        if (name.equals("forest"))
+            return loadForest();
+        if (name.equals("particles"))
+            return loadParticles();
+
+        Scene scene = new Scene();
+        Mesh mesh = new Mesh();
+        mesh.setData(dir + File.separator + name + ".msh");
+        scene.addSurface(mesh);
+        scene.init();
+
+        AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+        Point3 center = new Point3();
+        Point3 triCenter = new Point3();
+        MeshTriangle[] triangles = mesh.getTriangles();
+        for (MeshTriangle triangle : triangles) {
+            triangle.addToBoundingBox(box);
+            triangle.getCenter(triCenter);
+            center.add(triCenter);
+        }
+        center.scale(1. / triangles.length);
+        Vector3 view = new Vector3(0.4, 0.5, 1);
+        view.normalize();
+        Point3 eye = new Point3(center);
+        eye.scaleAdd(1.2 * box.getExtents().length(), view);
+        scene.setCamera(new Camera(eye, center, new Vector3(0, 1, 0), 40, 40));
+        return scene;
+    }
+
+    private Scene loadParticles() {
+        Scene scene = new Scene();
+        Random random = new Random(SEED);
+        for (int i = 0; i < PARTICLES; i++) {
+            Sphere sphere = new Sphere();
+            sphere.setCenter(new Point3(random.nextDouble(), random.nextDouble(), random.nextDouble()));
+            sphere.setRadius(0.002 + 0.004 * random.nextDouble());
+            scene.addSurface(sphere);
+        }
+        scene.init();
+        scene.setCamera(new Camera(new Point3(0.5, 0.5, 2.5), new Point3(0.5, 0.5, 0.5),
+                                   new Vector3(0, 1, 0), 30, 30));
+        return scene;
+    }
+
+    private Scene loadForest() {
+        Mesh bunny = new Mesh();
+        bunny.setData(dir + File.separator + "bunny.msh");
+        Scene scene = new Scene();
+        scene.addMesh(bunny);
+
+        // The bunny is about 0.2 across; stand one every 0.25 with its base at y = 0
+        Random random = new Random(SEED);
+        double spacing = 0.25;
+        for (int i = 0; i < FOREST_SIDE; i++)
+            for (int j = 0; j < FOREST_SIDE; j++) {
+                double angle = 2 * Math.PI * random.nextDouble();
+                double c = Math.cos(angle), s = Math.sin(angle);
+                scene.addSurface(new Instance(bunny, new double[] {
+                    c, 0, s, i * spacing,
+                    0, 1, 0, -0.2576,
+                    -s, 0, c, j * spacing }));
+            }
+        scene.init();
+        System.out.println(String.format("%-10s %d instances of %d triangles (%d if flattened)", "forest",
+                                         FOREST_SIDE * FOREST_SIDE, bunny.getNumTriangles(),
+                                         (long) FOREST_SIDE * FOREST_SIDE * bunny.getNumTriangles()));
+
+        double side = FOREST_SIDE * spacing;
+        Point3 target = new Point3(0.5 * side, 0, 0.5 * side);
+        Point3 eye = new Point3(-0.2 * side, 0.5 * side, -0.2 * side);
+        scene.setCamera(new Camera(eye, target, new Vector3(0, 1, 0), 40, 40));
+        return scene;
+    }
+
+    private void report(String scene, String name, RaySet rays, Kernel kernel) {
+        Ray work = new Ray();
+        IntersectionRecord iRec = new IntersectionRecord();
+        int hits = 0;
+        for (int i = 0; i < warmup; i++)
+            hits = kernel.run(rays, work, iRec);
+
+        double[] mrays = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            hits = kernel.run(rays, work, iRec);
+            mrays[i] = rays.size() / ((System.nanoTime() - t0) / 1e3);
+        }
+        sink += hits;
+
+        // One more pass to count the traversal work per ray, which is unknown without stats
+        String visitsPerRay = "-", jumpsPerRay = "-";
+        if (RenderStats.ENABLED) {
+            RenderStats stats = RenderStats.get();
+            long visits = stats.nodeVisits, jumps = stats.nodeJumps;
+            kernel.run(rays, work, iRec);
+            visitsPerRay = String.format("%.1f", (stats.nodeVisits - visits) / (double) rays.size());
+            jumpsPerRay = String.format("%.1f", (stats.nodeJumps - jumps) / (double) rays.size());
+        }
+
+        double mean = 0, var = 0;
+        for (double m : mrays) mean += m;
+        mean /= iterations;
+        for (double m : mrays) var += (m - mean) * (m - mean);
+        double stdDev = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+
+        System.out.println(String.format("%-10s %-36s %8d rays %5.1f%% hit %9.3f +- %7.3f Mrays/s %7s nodes %6s jumps",
+                                         scene, name + "/" + rays.name, rays.size(),
+                                         100. * hits / rays.size(), mean, stdDev, visitsPerRay, jumpsPerRay));
+    }
+}
@@ -0,0 +1,194 @@
+package ray.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import ray.camera.Camera;
+import ray.math.Geometry;
+import ray.math.Point2;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.misc.IntersectionRecord;
+import ray.misc.LuminaireSamplingRecord;
+import ray.misc.Ray;
+import ray.misc.Scene;
+import ray.surface.Surface;
+
+/**
+ * A fixed set of rays to time intersection code with.  Every set is generated from
+ * a seeded Random, so two runs (or two versions of an accelerator) see exactly the
+ * same rays.  Use {@link #load(int, Ray)} to get a fresh copy before each cast, since
+ * traversal shortens ray.end.
+ */
+public class RaySet {
+
+    /** The name reported with the timings */
+    public final String name;
+
+    /** The rays themselves; treat as read only */
+    public final Ray[] rays;
+
+    public RaySet(String name, Ray[] rays) {
+        this.name = name;
+        this.rays = rays;
+    }
+
+    public int size() {
+        return rays.length;
+    }
+
+    /**
+     * Copy ray i into outRay, resetting its extent.
+     */
+    public void load(int i, Ray outRay) {
+        Ray ray = rays[i];
+        outRay.origin.set(ray.origin);
+        outRay.direction.set(ray.direction);
+        outRay.updateShear();
+        outRay.start = ray.start;
+        outRay.end = ray.end;
+    }
+
+    /**
+     * Rays through the centers of an n by n grid of pixels.
+     */
+    public static RaySet cameraRays(Camera camera, int n) {
+        Ray[] rays = new Ray[n * n];
+        for (int iy = 0; iy < n; iy++)
+            for (int ix = 0; ix < n; ix++) {
+                Ray ray = new Ray();
+                camera.getRay(ray, (ix + 0.5) / n, (iy + 0.5) / n);
+                rays[iy * n + ix] = ray;
+            }
+        return new RaySet("camera", rays);
+    }
+
+    /**
+     * The rays of cameraRays(), ordered by squares of side by side pixels (n a
+     * multiple of side), so that runs of side^2 rays make the packets
+     * ParaRayTracer traces.
+     */
+    public static RaySet cameraTiles(Camera camera, int n, int side) {
+        Ray[] rays = new Ray[n * n];
+        int i = 0;
+        for (int ty = 0; ty < n; ty += side)
+            for (int tx = 0; tx < n; tx += side)
+                for (int iy = ty; iy < ty + side; iy++)
+                    for (int ix = tx; ix < tx + side; ix++) {
+                        Ray ray = new Ray();
+                        camera.getRay(ray, (ix + 0.5) / n, (iy + 0.5) / n);
+                        rays[i++] = ray;
+                    }
+        return new RaySet("tiles", rays);
+    }
+
+    /**
+     * Cosine distributed rays leaving the first hits of the primary rays, as a path
+     * tracer's first bounce would.  Primary rays that miss produce no bounce.
+     */
+    public static RaySet bounceRays(Scene scene, RaySet primary, long seed) {
+        Random random = new Random(seed);
+        ArrayList<Ray> rays = new ArrayList<Ray>();
+        IntersectionRecord iRec = new IntersectionRecord();
+        Ray work = new Ray();
+        Point2 sample = new Point2();
+        Vector3 dir = new Vector3();
+        for (int i = 0; i < primary.size(); i++) {
+            primary.load(i, work);
+            if (!scene.getFirstIntersection(iRec, work))
+                continue;
+            // face the frame towards the incoming ray
+            if (iRec.frame.w.dot(work.direction) > 0) {
+                iRec.frame.u.scale(-1);
+                iRec.frame.w.scale(-1);
+            }
+            sample.set(random.nextDouble(), random.nextDouble());
+            Geometry.squareToPSAHemisphere(sample, dir);
+            iRec.frame.frameToCanonical(dir);
+            Ray ray = new Ray(iRec.frame.o, dir);
+            ray.makeOffsetRay(iRec);
+            rays.add(ray);
+        }
+        return new RaySet("bounce", rays.toArray(new Ray[rays.size()]));
+    }
+
+    /**
+     * Segments from the first hits of the primary rays to points chosen on the scene's
+     * luminaires.  Scenes without luminaires get targets spread uniformly over twice
+     * the box of surface centers, which keeps a mix of occluded and unoccluded segments.
+     */
+    public static RaySet shadowRays(Scene scene, RaySet primary, long seed) {
+        Random random = new Random(seed);
+
+        ArrayList<Surface> luminaires = new ArrayList<Surface>();
+        Point3 min = new Point3(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE);
+        Point3 max = new Point3(-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        Point3 center = new Point3();
+        for (Surface surface : scene.getSurfaces()) {
+            if (surface.getMaterial().isEmitter())
+                luminaires.add(surface);
+            surface.getCenter(center);
+            min.set(Math.min(min.x, center.x), Math.min(min.y, center.y), Math.min(min.z, center.z));
+            max.set(Math.max(max.x, center.x), Math.max(max.y, center.y), Math.max(max.z, center.z));
+        }
+
+        ArrayList<Ray> rays = new ArrayList<Ray>();
+        IntersectionRecord iRec = new IntersectionRecord();
+        LuminaireSamplingRecord lRec = new LuminaireSamplingRecord();
+        Ray work = new Ray();
+        Point2 sample = new Point2();
+        Point3 target = new Point3();
+        for (int i = 0; i < primary.size(); i++) {
+            primary.load(i, work);
+            if (!scene.getFirstIntersection(iRec, work))
+                continue;
+            if (luminaires.size() > 0) {
+                Surface luminaire = luminaires.get(random.nextInt(luminaires.size()));
+                sample.set(random.nextDouble(), random.nextDouble());
+                luminaire.chooseSamplePoint(iRec.frame.o, sample, lRec);
+                target.set(lRec.frame.o);
+            } else {
+                target.set(min.x + (2 * random.nextDouble() - 0.5) * (max.x - min.x),
+                           min.y + (2 * random.nextDouble() - 0.5) * (max.y - min.y),
+                           min.z + (2 * random.nextDouble() - 0.5) * (max.z - min.z));
+            }
+            Ray ray = new Ray();
+            ray.set(iRec.frame.o, target);
+            ray.makeOffsetSegment(iRec, 1.0 - Ray.EPSILON);
+            rays.add(ray);
+        }
+        return new RaySet("shadow", rays.toArray(new Ray[rays.size()]));
+    }
+
+    /**
+     * Rays from random points on a sphere of the given radius around the surfaces'
+     * centers, each aimed at a point within jitter of one of the centers.  Used to
+     * time a primitive test on its own, with a hit rate set by the jitter rather than
+     * by any camera.
+     */
+    public static RaySet primitiveRays(String name, Surface[] surfaces, double radius, 
+                                       double jitter, int n, long seed) {
+        Random random = new Random(seed);
+        Ray[] rays = new Ray[n];
+        Point2 sample = new Point2();
+        Vector3 dir = new Vector3();
+        Point3 center = new Point3();
+        Point3 origin = new Point3();
+        for (int i = 0; i < n; i++) {
+            surfaces[i % surfaces.length].getCenter(center);
+            sample.set(random.nextDouble(), random.nextDouble());
+            Geometry.squareToSphere(sample, dir);
+            origin.set(center);
+            origin.scaleAdd(radius, dir);
+            center.x += (2 * random.nextDouble() - 1) * jitter;
+            center.y += (2 * random.nextDouble() - 1) * jitter;
+            center.z += (2 * random.nextDouble() - 1) * jitter;
+            Ray ray = new Ray();
+            ray.set(origin, center);
+            ray.direction.normalize();
+            ray.makeOffsetRay();
+            rays[i] = ray;
+        }
+        return new RaySet(name, rays);
+    }
+}
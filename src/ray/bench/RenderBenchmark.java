@@ -0,0 +1,252 @@
+package ray.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ray.ParaRayTracer;
+import ray.io.Parser;
+import ray.misc.Color;
+import ray.misc.Image;
+import ray.misc.RenderStats;
+import ray.misc.Scene;
+import ray.sampling.JitteredSampler;
+
+/**
+ * End-to-end render benchmark.  Renders a fixed set of scene files headless with a
+ * fixed number of samples per pixel and threads, and records for each the wall time,
+ * rays per second, peak heap and allocation rate of the render threads, along with
+ * the RMSE and relative MSE against a stored reference.  The results go to a JSON
+ * report, so two versions of the renderer can be compared at equal error rather than
+ * at equal sample count.
+ *
+ * References are PFM images named after the scene in the reference directory; run
+ * with -update (and a high -spp) to write them from the current renderer.  The error
+ * is measured on the linear radiance the render loop leaves in the image, before
+ * tonemapping, so clipped highlights still count.
+ *
+ * With -wavefront, scenes whose renderer is a PathTracer are rendered with a
+ * WavefrontPathTracer of the same depth limit instead, so the record's renderer,
+ * rays per second and error compare the two on the same scene.  Scenes are set up
+ * as ParaRayTracer sets them up, so packet renderers and the wavefront path tracer
+ * trace the same FlatBVH here as there.
+ *
+ * The ray and traversal counts need RenderStats enabled (-Dray.stats=true);
+ * without it they are reported as null.
+ *
+ * Usage: RenderBenchmark [-spp n] [-threads n] [-width n] [-runs n] [-refs dir]
+ *                        [-out report.json] [-update] [-wavefront] [scene.xml ...]
+ */
+public class RenderBenchmark {
+
+    /** The scenes rendered when none are given */
+    public static final String[] DEFAULT_SCENES = {
+        "scene/cbox-direct.xml", "scene/cbox-ao.xml", "scene/cbox-global.xml",
+        "scene/cbox-RR.xml", "scene/cbox-texture-submit.xml", "scene/phong_test.xml"
+    };
+
+    /** Offset in the denominator of the relative MSE, so black pixels do not dominate */
+    public static final double REL_MSE_EPSILON = 1e-2;
+
+    private int spp = 16;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int width = 0;
+    private int runs = 1;
+    private String refDir = "scene/reference";
+    private String reportFile = "render-benchmark.json";
+    private boolean update = false;
+    private boolean wavefront = false;
+
+    public static void main(String[] args) {
+        RenderBenchmark bench = new RenderBenchmark();
+        List<String> scenes = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-spp"))
+                bench.spp = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-threads"))
+                bench.threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-width"))
+                bench.width = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-runs"))
+                bench.runs = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-refs"))
+                bench.refDir = args[++i];
+            else if (args[i].equals("-out"))
+                bench.reportFile = args[++i];
+            else if (args[i].equals("-update"))
+                bench.update = true;
+            else if (args[i].equals("-wavefront"))
+                bench.wavefront = true;
+            else
+                scenes.add(args[i]);
+        }
+        if (scenes.isEmpty())
+            scenes.addAll(Arrays.asList(DEFAULT_SCENES));
+
+        List<String> results = new ArrayList<String>();
+        for (String scene : scenes)
+            for (int run = 0; run < bench.runs; run++)
+                results.add(bench.run(scene, run));
+        bench.writeReport(results);
+    }
+
+    /**
+     * Render one scene and return its JSON result record.
+     */
+    private String run(String sceneFile, int run) {
+        Scene scene = (Scene) new Parser().parse(sceneFile, Scene.class);
+        int sppSide = (int) Math.round(Math.sqrt(spp));
+        scene.setSampler(new JitteredSampler(sppSide, sppSide));
+        ParaRayTracer.configureScene(scene, false, wavefront);
+        if (width > 0) {
+            Image image = scene.getImage();
+            scene.setImage(new Image(width, Math.max(1, width * image.getHeight() / image.getWidth())));
+        }
+        scene.init();
+        Image image = scene.getImage();
+
+        // Render threads are ours so their allocation can be read before they exit
+        List<Thread> workers = new ArrayList<Thread>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "render-benchmark");
+            synchronized (workers) {
+                workers.add(t);
+            }
+            return t;
+        });
+
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        if (RenderStats.ENABLED)
+            RenderStats.reset();
+        long t0 = System.nanoTime();
+        List<Future<?>> blocks = ParaRayTracer.renderImage(scene, executor, false);
+        try {
+            for (Future<?> block : blocks)
+                block.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new Error("RenderBenchmark: render of " + sceneFile + " failed", e);
+        }
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        System.out.println();
+
+        RenderStats stats = RenderStats.collect();
+        long rays = stats.getRays();
+        if (RenderStats.ENABLED)
+            System.out.print(stats.report(seconds));
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools)
+            peakHeap += pool.getPeakUsage().getUsed();
+        long allocated = allocatedBytes(workers);
+        executor.shutdown();
+
+        String name = new File(sceneFile).getName().replaceFirst("\\.xml$", "");
+        File refFile = new File(refDir, name + ".pfm");
+        String quality = "\"rmse\": null, \"relMSE\": null";
+        if (update && run == 0) {
+            refFile.getParentFile().mkdirs();
+            image.writePFM(refFile.getPath());
+            System.out.println("Wrote reference " + refFile);
+        } else if (refFile.exists()) {
+            Image ref = Image.readPFM(refFile.getPath());
+            if (ref.getWidth() != image.getWidth() || ref.getHeight() != image.getHeight())
+                System.err.println("Reference " + refFile + " has a different size; skipping error");
+            else
+                quality = String.format(Locale.ROOT, "\"rmse\": %.6g, \"relMSE\": %.6g",
+                                        Math.sqrt(mse(image, ref, 0)), mse(image, ref, REL_MSE_EPSILON));
+        }
+
+        String counters = "\"rays\": null, \"raysPerSecond\": null, \"cameraRays\": null, \"bounceRays\": null, " +
+                          "\"shadowRays\": null, \"nodesPerRay\": null, \"nodeJumpsPerRay\": null, \"primitiveTestsPerRay\": null";
+        if (RenderStats.ENABLED)
+            counters = String.format(Locale.ROOT,
+                "\"rays\": %d, \"raysPerSecond\": %.1f, \"cameraRays\": %d, \"bounceRays\": %d, \"shadowRays\": %d, " +
+                "\"nodesPerRay\": %.3f, \"nodeJumpsPerRay\": %.3f, \"primitiveTestsPerRay\": %.3f",
+                rays, rays / seconds, stats.cameraRays, stats.firstHitRays - stats.cameraRays, stats.anyHitRays,
+                stats.nodeVisits / (double) Math.max(1, rays), stats.nodeJumps / (double) Math.max(1, rays),
+                stats.primitiveTests / (double) Math.max(1, rays));
+        String record = String.format(Locale.ROOT,
+            "{\"scene\": \"%s\", \"renderer\": \"%s\", \"run\": %d, \"width\": %d, \"height\": %d, \"spp\": %d, " +
+            "\"threads\": %d, \"seconds\": %.4f, %s, " +
+            "\"peakHeapBytes\": %d, \"allocatedBytes\": %d, \"allocBytesPerSecond\": %.1f, %s}",
+            name, scene.getRenderer().getClass().getSimpleName(), run, image.getWidth(), image.getHeight(), sppSide * sppSide, threads, seconds,
+            counters, peakHeap, allocated, allocated < 0 ? -1 : allocated / seconds, quality);
+        System.out.println(record);
+        return record;
+    }
+
+    /**
+     * Bytes allocated so far by the given threads, or -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes(List<Thread> threads) {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled())
+            return -1;
+        long total = 0;
+        synchronized (threads) {
+            for (Thread t : threads)
+                total += Math.max(0, bean.getThreadAllocatedBytes(t.getId()));
+        }
+        return total;
+    }
+
+    /**
+     * Mean over pixels and channels of (a - b)^2 / (b^2 + epsilon), or the plain MSE
+     * when epsilon is 0.
+     */
+    private static double mse(Image image, Image ref, double epsilon) {
+        Color a = new Color();
+        Color b = new Color();
+        double sum = 0;
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.getPixelColor(a, x, y);
+                ref.getPixelColor(b, x, y);
+                sum += sqrError(a.r, b.r, epsilon) + sqrError(a.g, b.g, epsilon) +
+                       sqrError(a.b, b.b, epsilon);
+            }
+        return sum / (3. * image.getWidth() * image.getHeight());
+    }
+
+    private static double sqrError(double a, double b, double epsilon) {
+        double d = a - b;
+        return epsilon == 0 ? d * d : d * d / (b * b + epsilon);
+    }
+
+    private void writeReport(List<String> results) {
+        try (PrintWriter out = new PrintWriter(new FileWriter(reportFile))) {
+            out.println("{");
+            out.println("  \"jvm\": \"" + System.getProperty("java.vm.name") + " " +
+                        System.getProperty("java.version") + "\",");
+            out.println("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",");
+            out.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++)
+                out.println("    " + results.get(i) + (i + 1 < results.size() ? "," : ""));
+            out.println("  ]");
+            out.println("}");
+        } catch (IOException e) {
+            throw new Error("RenderBenchmark: cannot write " + reportFile, e);
+        }
+        System.out.println("Wrote " + reportFile);
+    }
+}
@@ -0,0 +1,74 @@
+package ray.brdf;
+
+/**
+ * This class is for computing the fresnel term of the microfacet BRDF models
+ * (Microfacet and GGX), for a dielectric of relative index n.
+ */
+class Fresnel {
+    
+    /** Number of intervals of the table over cosine in [0, 1]; linear interpolation stays within 1e-5 */
+    private static final int TABLE_SIZE = 1024;
+    
+    private double k = 1.5*1.5 - 1.;
+    
+    /** 
+     * Term tabulated for the current k, or null when k <= 0 where total
+     * internal reflection makes the term non smooth 
+     */
+    private double[] table;
+    
+    //public Fresnel(double n) {
+    //    k = n*n - 1.;
+    //}
+    
+    public Fresnel() { 
+        buildTable();
+    }
+    
+    public void setN(double n) {
+        k = n*n - 1.;
+        buildTable();
+    }
+    
+    private void buildTable() {
+        if ( k <= 0 ) {
+            table = null;
+            return;
+        }
+        table = new double[TABLE_SIZE + 2];
+        for (int i = 0; i <= TABLE_SIZE; i++)
+            table[i] = evalExact((double) i / TABLE_SIZE);
+        table[TABLE_SIZE + 1] = table[TABLE_SIZE];
+    }
+    
+    /**
+     * @param vecIn incident angle
+     * @param vecMid Half angle
+     * @return
+     */
+    //public double eval(Vector3 vecIn, Vector3 vecMid) {
+    //    return eval(vecIn.dot(vecMid));
+    //}
+    
+    /**
+     * @param cosine The consine value of the angle between
+     * @return
+     */
+    public double eval(double cosine) {
+        if ( table == null || cosine < 0 || cosine > 1 ) return evalExact(cosine);
+        double x = cosine * TABLE_SIZE;
+        int i = (int) x;
+        double f = x - i;
+        return table[i] + f * (table[i+1] - table[i]);
+    }
+    
+    public double evalExact(double cosine) {
+        double g = Math.sqrt(k + cosine*cosine);
+        double gpc = g + cosine;
+        double gmc = g - cosine;
+        double vu  = cosine*gpc - 1.;
+        double vd  = cosine*gmc + 1.;
+
+        return 0.5*gmc*gmc*(1. + (vu*vu)/(vd*vd))/(gpc*gpc);
+    }    
+}
@@ -0,0 +1,325 @@
+package ray.brdf;
+
+import ray.math.Frame3;
+import ray.math.Geometry;
+import ray.math.Point2;
+import ray.math.Vector3;
+import ray.misc.Color;
+import ray.misc.Image;
+
+/**
+ * A microfacet BRDF with the GGX (Trowbridge-Reitz) normal distribution over a
+ * Lambertian base.  The specular lobe uses the height-correlated Smith shadowing
+ * term, which for GGX is closed form, and it is importance sampled from the
+ * distribution of normals visible from the fixed direction (Heitz 2018), so far
+ * fewer samples land below the surface than with half-vector sampling.
+ *
+ * The lobe to sample is chosen by splitting seed.x, so stratification of the seed
+ * carries over to both lobes.
+ */
+public class GGX implements BRDF {
+
+    // The reflectance of the diffuse component of the BRDF, divided by pi
+    private Color diffuseBrdf = new Color();
+
+    private Fresnel fresnel = new Fresnel();
+
+    /** The relative weight for sampling the specular component */
+    private double specularSamplingWeight = 0.5;
+
+    /** GGX roughness */
+    private double alpha = 0.1;
+    /** square of the GGX roughness */
+    private double alphaSqr = 0.01;
+
+    // For the benefit of the parser
+    public GGX() {}
+
+    public void setDiffuseReflectance(Color diffuseReflectance) {
+        this.diffuseBrdf.set(diffuseReflectance);
+        this.diffuseBrdf.scale(1 / Math.PI);
+    }
+
+    public void setAlpha(double alpha) {
+        this.alpha = alpha;
+        this.alphaSqr = alpha * alpha;
+    }
+
+    public void setN(double n) {
+        fresnel.setN(n);
+    }
+
+    public void setSpecularSamplingWeight(double specularSamplingWeight) {
+        this.specularSamplingWeight = specularSamplingWeight;
+    }
+
+    /**
+     * @see ray.brdf.BRDF#evaluate(ray.math.Frame3, ray.math.Vector3,
+     *      ray.math.Vector3, ray.misc.Color)
+     */
+    public void evaluate(Frame3 frame, Vector3 incDir, Vector3 reflDir, Color outBRDFValue) {
+        outBRDFValue.set(diffuseBrdf);
+
+        double din = incDir.dot(frame.w);
+        double don = reflDir.dot(frame.w);
+        if ( din <= 0 || don <= 0 ) return;
+
+        Vector3 vecM = new Vector3(incDir);
+        vecM.add(reflDir);
+        vecM.normalize();
+
+        double dim = incDir.dot(vecM);
+        double dmn = vecM.dot(frame.w);
+
+        outBRDFValue.add(fresnel.eval(dim) * shadowing(din, don) * distribution(dmn) /
+                         (4 * din * don));
+    }
+
+    /**
+     * Choose the lobe by seed.x, then sample either the projected solid angle or the
+     * visible normals and reflect the fixed direction about the sampled normal.
+     *
+     * @see ray.brdf.BRDF#generate(ray.math.Frame3, ray.math.Vector3,
+     *      ray.math.Vector3, ray.math.Point2, ray.misc.Color)
+     */
+    public void generate(Frame3 frame, Vector3 fixedDir, Vector3 dir,
+                         Point2 seed, Color outWeight) {
+        double don = fixedDir.dot(frame.w);
+        if ( don <= 0 ) {
+            outWeight.set(0);
+            return;
+        }
+
+        Vector3 vecM = new Vector3();
+        if ( seed.x >= specularSamplingWeight ) {
+            Point2 lobeSeed = new Point2((seed.x - specularSamplingWeight) /
+                                         (1 - specularSamplingWeight), seed.y);
+            Geometry.squareToPSAHemisphere(lobeSeed, dir);
+            frame.frameToCanonical(dir);
+
+            vecM.set(fixedDir);
+            vecM.add(dir);
+            vecM.normalize();
+        } else {
+            Vector3 localDir = new Vector3(fixedDir);
+            frame.canonicalToFrame(localDir);
+            sampleVisibleNormal(localDir, seed.x / specularSamplingWeight, seed.y, vecM);
+            frame.frameToCanonical(vecM);
+
+            dir.set(vecM);
+            dir.scale(2 * fixedDir.dot(vecM));
+            dir.sub(fixedDir);
+        }
+
+        double din = dir.dot(frame.w);
+        if ( din <= 0 ) {
+            outWeight.set(0);
+            return;
+        }
+
+        double dim = dir.dot(vecM);
+        double dmn = vecM.dot(frame.w);
+        double nd = distribution(dmn);
+
+        outWeight.set(diffuseBrdf);
+        outWeight.add(fresnel.eval(dim) * shadowing(din, don) * nd / (4 * din * don));
+        outWeight.scale(din / pdf(nd, din, don));
+    }
+
+    /**
+     * The sampled normal has density G1(o) (o.m) D(m) / (o.n), and the reflection
+     * about it divides that by 4 (o.m), so the specular density is G1(o) D(m) / (4 o.n).
+     *
+     * @see ray.brdf.BRDF#pdf(ray.math.Frame3, ray.math.Vector3, ray.math.Vector3)
+     */
+    public double pdf(Frame3 frame, Vector3 fixedDir, Vector3 dir) {
+        double din = dir.dot(frame.w);
+        double don = fixedDir.dot(frame.w);
+        if ( din <= 0 || don <= 0 ) return 0;
+
+        Vector3 vecM = new Vector3(fixedDir);
+        vecM.add(dir);
+        vecM.normalize();
+
+        return pdf(distribution(vecM.dot(frame.w)), din, don);
+    }
+
+    private double pdf(double nd, double din, double don) {
+        return specularSamplingWeight * monoDirShadowing(don) * nd / (4 * don) +
+               (1 - specularSamplingWeight) * din / Math.PI;
+    }
+
+    /**
+     * @param cosine the cosine of the angle between the normal and the half vector
+     * @return the GGX distribution of normals
+     */
+    private double distribution(double cosine) {
+        if ( cosine <= 0 ) return 0;
+        double d = cosine * cosine * (alphaSqr - 1) + 1;
+        return alphaSqr / (Math.PI * d * d);
+    }
+
+    /** Smith's lambda for GGX as a function of the cosine with the normal */
+    private double lambda(double cosine) {
+        double c2 = cosine * cosine;
+        return 0.5 * (Math.sqrt(1 + alphaSqr * (1 - c2) / c2) - 1);
+    }
+
+    private double monoDirShadowing(double cosine) {
+        return 1 / (1 + lambda(cosine));
+    }
+
+    /** The height correlated masking-shadowing term */
+    private double shadowing(double din, double don) {
+        return 1 / (1 + lambda(din) + lambda(don));
+    }
+
+    /**
+     * Sample a normal from the distribution of normals visible from a direction.  The
+     * configuration is stretched to unit roughness, where the visible normals project
+     * to a disc, half of it foreshortened by the view direction.
+     *
+     * @param dir the direction in frame coordinates, above the surface
+     * @param u1 first uniform random number
+     * @param u2 second uniform random number
+     * @param outNormal the sampled normal in frame coordinates
+     */
+    private void sampleVisibleNormal(Vector3 dir, double u1, double u2, Vector3 outNormal) {
+        Vector3 vh = new Vector3(alpha * dir.x, alpha * dir.y, dir.z);
+        vh.normalize();
+
+        // orthonormal basis around vh
+        double lensq = vh.x * vh.x + vh.y * vh.y;
+        Vector3 t1 = lensq > 0 ? new Vector3(-vh.y / Math.sqrt(lensq), vh.x / Math.sqrt(lensq), 0)
+                               : new Vector3(1, 0, 0);
+        Vector3 t2 = new Vector3();
+        t2.cross(vh, t1);
+
+        // uniform point on the disc, warped onto the visible half
+        double r = Math.sqrt(u1);
+        double phi = 2 * Math.PI * u2;
+        double p1 = r * Math.cos(phi);
+        double p2 = r * Math.sin(phi);
+        double s = 0.5 * (1 + vh.z);
+        p2 = (1 - s) * Math.sqrt(1 - p1 * p1) + s * p2;
+        double p3 = Math.sqrt(Math.max(0, 1 - p1 * p1 - p2 * p2));
+
+        // unstretch
+        outNormal.set(alpha * (p1 * t1.x + p2 * t2.x + p3 * vh.x),
+                      alpha * (p1 * t1.y + p2 * t2.y + p3 * vh.y),
+                      Math.max(0, p1 * t1.z + p2 * t2.z + p3 * vh.z));
+        outNormal.normalize();
+    }
+
+    // handy testing functions
+    public static void main(String argv[]) {
+
+        int n = 200;
+
+        Vector3 incDir = new Vector3(-2, 0, 1);
+        incDir.normalize();
+
+        GGX brdf = new GGX();
+        brdf.setDiffuseReflectance(new Color(.3, .3, .3));
+        brdf.setAlpha(0.2);
+        brdf.setN(1.5);
+
+        Frame3 frame = new Frame3();
+        Vector3 outDir = new Vector3();
+        Color brdfVal = new Color();
+        Color wt = new Color();
+        Point2 seed = new Point2();
+
+        // Estimate the albedo both from the samples and by integrating f cos / pdf,
+        // and count the samples that land below the surface
+        System.err.println("Checking weights");
+        Image img = new Image(n, n);
+        Color pixVal = new Color();
+        double albedo = 0, intPDF = 0;
+        int wasted = 0;
+        int m = 1000;
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < m; j++) {
+                seed.set((i + Math.random()) / m, (j + Math.random()) / m);
+
+                brdf.generate(frame, incDir, outDir, seed, wt);
+                if ( wt.r == 0 ) {
+                    wasted++;
+                } else {
+                    albedo += wt.r;
+                    int ix = (int) (n * (outDir.x + 1) / 2);
+                    int iy = (int) (n * (outDir.y + 1) / 2);
+                    img.getPixelColor(pixVal, ix, iy);
+                    double pixSA = (2.0 / n) * (2.0 / n) / outDir.z;
+                    pixVal.g += 1.0 / pixSA / (m*m);
+                    img.setPixelColor(pixVal, ix, iy);
+                }
+
+                Geometry.squareToHemisphere(seed, outDir);
+                intPDF += brdf.pdf(frame, incDir, outDir);
+            }
+        }
+        albedo /= m*m;
+        intPDF *= 2 * Math.PI / (m*m);
+
+        double intAlbedo = 0;
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < m; j++) {
+                seed.set((i + 0.5) / m, (j + 0.5) / m);
+                Geometry.squareToHemisphere(seed, outDir);
+                brdf.evaluate(frame, incDir, outDir, brdfVal);
+                intAlbedo += brdfVal.r * outDir.z;
+            }
+        }
+        intAlbedo *= 2 * Math.PI / (m*m);
+
+        img.write("ggx-test_hist.png");
+        System.err.println("PDF integrates to " + intPDF);
+        System.err.println("Albedo by sampling " + albedo + ", by quadrature " + intAlbedo);
+        System.err.println("Samples below the surface " + (double) wasted / (m*m));
+
+        // Histogram the generated directions over equal solid angle bins (cos theta,
+        // phi) and compare each bin with the integral of pdf() over it, and check
+        // that every weight is f cos / pdf for the direction it belongs to
+        System.err.println("Checking sampled against evaluated pdf");
+        int nz = 8, nphi = 16;
+        double[] sampled = new double[nz * nphi];
+        double maxWeightErr = 0;
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < m; j++) {
+                seed.set((i + Math.random()) / m, (j + Math.random()) / m);
+                brdf.generate(frame, incDir, outDir, seed, wt);
+                if ( wt.r == 0 ) continue;
+                int iz = Math.min(nz - 1, (int) (nz * outDir.z));
+                double phi = Math.atan2(outDir.y, outDir.x) + Math.PI;
+                int iphi = Math.min(nphi - 1, (int) (nphi * phi / (2 * Math.PI)));
+                sampled[iz * nphi + iphi] += 1.0 / (m*m);
+
+                brdf.evaluate(frame, incDir, outDir, brdfVal);
+                double expected = brdfVal.r * outDir.z / brdf.pdf(frame, incDir, outDir);
+                maxWeightErr = Math.max(maxWeightErr, Math.abs(wt.r - expected) / expected);
+            }
+        }
+        int q = 64;
+        double maxBinErr = 0;
+        for (int iz = 0; iz < nz; iz++) {
+            for (int iphi = 0; iphi < nphi; iphi++) {
+                double evaluated = 0;
+                for (int a = 0; a < q; a++) {
+                    for (int b = 0; b < q; b++) {
+                        double z = (iz + (a + 0.5) / q) / nz;
+                        double phi = 2 * Math.PI * (iphi + (b + 0.5) / q) / nphi - Math.PI;
+                        double r = Math.sqrt(1 - z * z);
+                        outDir.set(r * Math.cos(phi), r * Math.sin(phi), z);
+                        evaluated += brdf.pdf(frame, incDir, outDir);
+                    }
+                }
+                evaluated *= 2 * Math.PI / (nz * nphi * q * q);
+                // bins with little mass are dominated by sampling noise
+                if ( evaluated > 1e-3 )
+                    maxBinErr = Math.max(maxBinErr, Math.abs(sampled[iz * nphi + iphi] - evaluated) / evaluated);
+            }
+        }
+        System.err.println("Max relative bin error " + maxBinErr + ", max relative weight error " + maxWeightErr);
+    }
+}
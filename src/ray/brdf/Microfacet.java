@@ -29,6 +29,9 @@ public class Microfacet implements BRDF {
     private double roughness = 0.1;
     /** square of the beckmann roughness */
     private double roughnessSqr = 0.01;
+    /** 1 / roughnessSqr and 1 / (PI * roughnessSqr), cached for the distribution */
+    private double invRoughnessSqr = 100.;
+    private double beckmannNorm = 100. / Math.PI;
     
 
     // For the benefit of the parser
@@ -42,6 +45,8 @@ public class Microfacet implements BRDF {
     public void setAlpha_b(double alpha_b) {
         roughness = alpha_b;
         roughnessSqr = alpha_b * alpha_b;      
+        invRoughnessSqr = 1. / roughnessSqr;
+        beckmannNorm = 1. / (Math.PI * roughnessSqr);
     }
     
     public void setN(double n) {
@@ -189,9 +194,8 @@ public class Microfacet implements BRDF {
             if ( co < MathExt.DOUBLE_EPS ) return 0;
             double ta = Math.sqrt(1. - co * co) / co;
             if ( ta < MathExt.DOUBLE_EPS ) return 1;
-            double a = 1. / (roughness * ta);
             
-            return 2. / (1. + MathExt.erf(a) + Math.exp(-a*a)*MathExt.M_1_SQRTPI);
+            return SmithTable.eval(1. / (roughness * ta));
         }
     }
     
@@ -217,51 +221,10 @@ public class Microfacet implements BRDF {
             if ( cosine < MathExt.DOUBLE_EPS ) return 0.;
             double c2 = cosine * cosine;    // cosine square
             double t2 = (1. - c2) / c2;     // tangent square
-            return Math.exp(-t2/roughnessSqr) / (Math.PI*roughnessSqr*c2*c2);
+            return Math.exp(-t2*invRoughnessSqr) * beckmannNorm / (c2*c2);
         }
     }
     
-    /**
-     * This class is for computing the fresneal term in macrofacet BRDF model
-     */
-    private class Fresnel {
-        
-        private double k = 1.5*1.5 - 1.;
-        
-        //public Fresnel(double n) {
-        //    k = n*n - 1.;
-        //}
-        
-        public Fresnel() { }
-        
-        public void setN(double n) {
-            k = n*n - 1.;
-        }
-        
-        /**
-         * @param vecIn incident angle
-         * @param vecMid Half angle
-         * @return
-         */
-        //public double eval(Vector3 vecIn, Vector3 vecMid) {
-        //    return eval(vecIn.dot(vecMid));
-        //}
-        
-        /**
-         * @param cosine The consine value of the angle between
-         * @return
-         */
-        public double eval(double cosine) {
-            double g = Math.sqrt(k + cosine*cosine);
-            double gpc = g + cosine;
-            double gmc = g - cosine;
-            double vu  = cosine*gpc - 1.;
-            double vd  = cosine*gmc + 1.;
-
-            return 0.5*gmc*gmc*(1. + (vu*vu)/(vd*vd))/(gpc*gpc);
-        }    
-    }
-    
     // handy testing functions
     public static void main(String argv[]) {
         
@@ -281,6 +244,14 @@ public class Microfacet implements BRDF {
         
         Frame3 frame = new Frame3();
         
+        System.err.println("Checking Fresnel table");
+        double maxErr = 0;
+        for (int i = 0; i <= 1000000; i++) {
+            double c = i / 1000000.;
+            maxErr = Math.max(maxErr, Math.abs(brdf.fresnel.eval(c) - brdf.fresnel.evalExact(c)));
+        }
+        System.err.println("Max abs error " + maxErr);
+        
         System.err.println("Testing eval");
         Vector3 outDir = new Vector3();
         Color brdfVal = new Color();
@@ -181,20 +181,86 @@ public class Camera {
    */
   public void getRay(Ray outRay, double inU, double inV) {
 
+    // Set the output ray
+    outRay.origin.set(location);
+    computeDirection(outRay.direction, inU, inV);
+    outRay.makeOffsetRay();
+    outRay.hasDifferentials = false;
+
+  }
+
+  /**
+   * Same as above, but also fills in the ray differentials of outRay: the rays
+   * through the image points offset by inDU in u and inDV in v. These are
+   * usually the size of one pixel (or one pixel divided by the square root of
+   * the number of samples per pixel) and determine the texture filter width.
+   *
+   * @param outRay The output ray
+   * @param inU The u coord of the image point
+   * @param inV The v coord of the image point
+   * @param inDU The offset of the x differential in image u coords
+   * @param inDV The offset of the y differential in image v coords
+   */
+  public void getRay(Ray outRay, double inU, double inV, double inDU, double inDV) {
+
+    getRay(outRay, inU, inV);
+
+    outRay.dxOrigin.set(location);
+    computeDirection(outRay.dxDirection, inU + inDU, inV);
+    outRay.dyOrigin.set(location);
+    computeDirection(outRay.dyDirection, inU, inV + inDV);
+    outRay.hasDifferentials = true;
+
+  }
+
+  /**
+   * Compute the normalized direction from the camera through the image point (inU, inV).
+   *
+   * @param outDir The output direction
+   * @param inU The u coord of the image point
+   * @param inV The v coord of the image point
+   */
+  private void computeDirection(Vector3 outDir, double inU, double inV) {
+
     // Remap the UV coordinates
     inU = inU * 2 - 1;
     inV = inV * 2 - 1;
 
-    // Set the output ray
-    outRay.origin.set(location);
-    outRay.direction.set(back);
-    outRay.direction.scale(-1);
-    outRay.direction.scaleAdd(-inU * tanHalfXFOV, right); // Move the direction
+    outDir.set(back);
+    outDir.scale(-1);
+    outDir.scaleAdd(-inU * tanHalfXFOV, right); // Move the direction
     // along the right/left axis
-    outRay.direction.scaleAdd(-inV * tanHalfYFOV, up); // Move the direction along
+    outDir.scaleAdd(-inV * tanHalfYFOV, up); // Move the direction along
     // the up/down axis
-    outRay.direction.normalize(); // Normalize
-    outRay.makeOffsetRay();
+    outDir.normalize(); // Normalize
+
+  }
+
+  /**
+   * @param outEye set to the location of the camera
+   */
+  public void getEye(Point3 outEye) {
+
+    outEye.set(location);
+
+  }
+
+  /**
+   * @param outDir set to the (normalized) direction the camera looks in
+   */
+  public void getViewDirection(Vector3 outDir) {
+
+    outDir.set(back);
+    outDir.scale(-1);
+
+  }
+
+  /**
+   * @param outUp set to the up direction of the camera
+   */
+  public void getUp(Vector3 outUp) {
+
+    outUp.set(up);
 
   }
 
@@ -0,0 +1,150 @@
+package ray.camera;
+
+import java.util.ArrayList;
+
+import ray.math.Point3;
+import ray.math.Tuple3;
+import ray.math.Vector3;
+
+/**
+ * A camera fly-through given by keyframes, parsed from its own file:
+ *
+ *   <path>
+ *     <frames>120</frames>
+ *     <keyframe>
+ *       <time>0</time>
+ *       <eye>278 273 -800</eye>
+ *       <target>278 273 0</target>
+ *     </keyframe>
+ *     <keyframe>
+ *       <time>1</time>
+ *       <eye>400 300 -600</eye>
+ *       <target>278 200 280</target>
+ *       <yFOV>50</yFOV>
+ *     </keyframe>
+ *   </path>
+ *
+ * The frames are spaced evenly from the first keyframe's time to the last.  Eye and
+ * target follow Catmull-Rom splines through the keyframes, so the motion has no
+ * kinks at them; up and yFOV are interpolated linearly.  Up and yFOV may be left
+ * out, in which case the scene camera's are used.
+ */
+public class CameraPath {
+
+    public static class Keyframe {
+
+        protected double time;
+        protected final Point3 eye = new Point3();
+        protected final Point3 target = new Point3();
+        protected Vector3 up = null;
+        protected double yFOV = Double.NaN;
+
+        public void setTime(double time) {
+            this.time = time;
+        }
+
+        public void setEye(Point3 eye) {
+            this.eye.set(eye);
+        }
+
+        public void setTarget(Point3 target) {
+            this.target.set(target);
+        }
+
+        public void setUp(Vector3 up) {
+            this.up = new Vector3(up);
+        }
+
+        public void setYFOV(double yFOV) {
+            this.yFOV = yFOV;
+        }
+    }
+
+    /** The keyframes, in order of time */
+    protected final ArrayList<Keyframe> keyframes = new ArrayList<Keyframe>();
+
+    /** The number of frames to render along the path */
+    protected int frames = 2;
+
+    public void addKeyframe(Keyframe keyframe) {
+        int i = keyframes.size();
+        while (i > 0 && keyframes.get(i - 1).time > keyframe.time)
+            i--;
+        keyframes.add(i, keyframe);
+    }
+
+    public void setFrames(int frames) {
+        this.frames = frames;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the time of the given frame
+     */
+    public double getTime(int frame) {
+        double t0 = keyframes.get(0).time;
+        double t1 = keyframes.get(keyframes.size() - 1).time;
+        return frames > 1 ? t0 + (t1 - t0) * frame / (frames - 1) : t0;
+    }
+
+    /**
+     * The camera for a frame of the path.
+     *
+     * @param frame the frame number, from 0 to getFrames() - 1
+     * @param base the scene's camera, which gives up and yFOV where the keyframes don't
+     * @return a new camera
+     */
+    public Camera getCamera(int frame, Camera base) {
+        if (keyframes.isEmpty())
+            throw new Error("CameraPath: no keyframes");
+        double t = getTime(frame);
+
+        // Find the segment [k1, k2] holding t
+        int i = 0;
+        while (i < keyframes.size() - 2 && keyframes.get(i + 1).time <= t)
+            i++;
+        Keyframe k1 = keyframes.get(i);
+        Keyframe k2 = keyframes.get(Math.min(i + 1, keyframes.size() - 1));
+        Keyframe k0 = keyframes.get(Math.max(i - 1, 0));
+        Keyframe k3 = keyframes.get(Math.min(i + 2, keyframes.size() - 1));
+        double u = k2.time > k1.time ? (t - k1.time) / (k2.time - k1.time) : 0;
+        u = Math.max(0, Math.min(1, u));
+
+        Point3 eye = new Point3();
+        Point3 target = new Point3();
+        catmullRom(eye, k0.eye, k1.eye, k2.eye, k3.eye, u);
+        catmullRom(target, k0.target, k1.target, k2.target, k3.target, u);
+
+        Vector3 baseUp = new Vector3();
+        base.getUp(baseUp);
+        Vector3 up1 = k1.up != null ? k1.up : baseUp;
+        Vector3 up2 = k2.up != null ? k2.up : baseUp;
+        Vector3 up = new Vector3((1 - u) * up1.x + u * up2.x, (1 - u) * up1.y + u * up2.y,
+                                 (1 - u) * up1.z + u * up2.z);
+
+        double fov1 = Double.isNaN(k1.yFOV) ? base.getYFOV() : k1.yFOV;
+        double fov2 = Double.isNaN(k2.yFOV) ? base.getYFOV() : k2.yFOV;
+
+        Camera camera = new Camera();
+        camera.lookAt(eye, target, up);
+        camera.setYFOV((1 - u) * fov1 + u * fov2);
+        return camera;
+    }
+
+    /**
+     * Uniform Catmull-Rom interpolation between p1 and p2.
+     */
+    private static void catmullRom(Tuple3 out, Tuple3 p0, Tuple3 p1, Tuple3 p2, Tuple3 p3, double u) {
+        double u2 = u * u, u3 = u2 * u;
+        double w0 = -0.5 * u3 + u2 - 0.5 * u;
+        double w1 = 1.5 * u3 - 2.5 * u2 + 1;
+        double w2 = -1.5 * u3 + 2 * u2 + 0.5 * u;
+        double w3 = 0.5 * u3 - 0.5 * u2;
+        out.set(w0 * p0.x + w1 * p1.x + w2 * p2.x + w3 * p3.x,
+                w0 * p0.y + w1 * p1.y + w2 * p2.y + w3 * p3.y,
+                w0 * p0.z + w1 * p1.z + w2 * p2.z + w3 * p3.z);
+    }
+}
@@ -3,6 +3,7 @@ package ray.io;
 import java.io.File;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -20,6 +21,7 @@ import org.w3c.dom.NodeList;
 import ray.math.Tuple3;
 import ray.misc.Color;
 import ray.misc.Image;
+import ray.misc.RenderEvents;
 import ray.surface.Mesh;
 
 
@@ -445,6 +447,13 @@ public class Parser {
 					foundMethod.invoke(resultingObject, new Object[] { childValue });
 					
 				}
+				catch (InvocationTargetException e) {
+					// Other errors are reported and the parse goes on, but not these
+					if (e.getCause() instanceof SceneError)
+						throw (SceneError) e.getCause();
+					System.err.println("Error invoking the method " + foundMethod.getName() + ".");
+					e.printStackTrace();
+				}
 				catch (Exception e) {
 					System.err.println("Error invoking the method " + foundMethod.getName() + ".");
 					e.printStackTrace();
@@ -472,6 +481,8 @@ public class Parser {
 	public Object parse(String filename, Class<?> c) {
 		
 		File file = new File(filename);
+		RenderEvents.SceneParse event = new RenderEvents.SceneParse();
+		event.begin();
 		
 		// Parse the XML
 		Object result = null;
@@ -485,6 +496,8 @@ public class Parser {
 			e.printStackTrace();
 		}
 		
+		event.file = filename;
+		event.commit();
 		return result;
 	}
 	
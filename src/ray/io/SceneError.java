@@ -0,0 +1,15 @@
+package ray.io;
+
+/**
+ * Thrown by scene objects for scene data that cannot be rendered correctly.  The
+ * Parser reports most failures of a setter and goes on parsing, but it lets this
+ * one through, so the scene fails to load instead of rendering wrongly.
+ */
+public class SceneError extends Error {
+
+	private static final long serialVersionUID = 1L;
+
+	public SceneError(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,25 @@
+package ray.material;
+
+import ray.brdf.Lambertian;
+import ray.misc.Color;
+
+/**
+ * Caller-owned scratch space for evaluating a material at a shading point.
+ * Materials whose BRDF varies over the surface write its parameters into the
+ * BRDF objects held here instead of allocating a new BRDF for every hit.
+ * 
+ * A context is not thread safe, and a BRDF returned through it stays valid
+ * only until the next call to {@link Material#getBRDF(IntersectionRecord, BRDFContext)}
+ * with the same context.  Renderers keep one context per thread.
+ */
+public class BRDFContext {
+	
+	/** Lambertian BRDF for materials with a spatially varying reflectance */
+	public final Lambertian lambertian = new Lambertian();
+	
+	/** Work space for texture lookups */
+	public final Color color = new Color();
+	
+	public BRDFContext() { }
+	
+}
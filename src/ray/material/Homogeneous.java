@@ -19,7 +19,7 @@ public class Homogeneous implements Material {
 
 	public void setBRDF(BRDF brdf) { this.brdf = brdf; }
 
-	public BRDF getBRDF(IntersectionRecord iRec) {
+	public BRDF getBRDF(IntersectionRecord iRec, BRDFContext context) {
 		return brdf;
 	}
 
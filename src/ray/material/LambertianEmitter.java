@@ -21,7 +21,7 @@ public class LambertianEmitter implements Material {
 	public void setBRDF(BRDF brdf) { this.brdf = brdf; }
 	public void setRadiance(Color emittedRadiance) { this.radiance.set(emittedRadiance); }
 
-	public BRDF getBRDF(IntersectionRecord iRec) {
+	public BRDF getBRDF(IntersectionRecord iRec, BRDFContext context) {
 		return brdf;
 	}
 
@@ -20,10 +20,13 @@ public interface Material {
 
 	/**
 	 * Get the BRDF of this material at the intersection described in iRec.
+	 * Spatially varying materials write their BRDF into context rather than
+	 * allocating one, so the result is only valid until context is used again.
 	 * @param iRec The intersection record, which holds the location, normal, etc.
+	 * @param context Caller-owned work space that may back the returned BRDF
 	 * @return The BRDF for this material at this point
 	 */
-	public BRDF getBRDF(IntersectionRecord iRec);
+	public BRDF getBRDF(IntersectionRecord iRec, BRDFContext context);
 
 	/**
 	 * Get the emitted radiance of this material at the location and direction described
@@ -7,6 +7,10 @@ import ray.misc.Color;
 import ray.misc.Image;
 import ray.misc.IntersectionRecord;
 import ray.misc.LuminaireSamplingRecord;
+import ray.misc.MipMap;
+import ray.misc.Texture;
+import ray.misc.TextureCache;
+import ray.misc.TiledTexture;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -16,7 +20,7 @@ import java.io.IOException;
 public class TextureMaterial implements Material {
 
     BRDF brdf = new Lambertian();
-    Image image;
+    Texture texture;
     Color radiance = new Color();
     public TextureMaterial() {
     }
@@ -27,20 +31,32 @@ public class TextureMaterial implements Material {
 
     public void setRadiance(Color emittedRadiance) { this.radiance.set(emittedRadiance); }
 
+    /**
+     * Load the texture.  With the tiled texture cache enabled (ray.texcache.mb)
+     * the image is paged in from a tiled copy on demand; otherwise the whole
+     * pyramid is decoded into memory.
+     *
+     * @param fileName the texture image
+     */
     public void setData(String fileName){
         try {
+            if (TextureCache.isEnabled()) {
+                texture = TiledTexture.open(fileName, TextureCache.getGlobal());
+                return;
+            }
             BufferedImage bi = ImageIO.read(new File(fileName));
-            image = Image.createFromBufferedImage(bi);
+            texture = new MipMap(Image.createFromBufferedImage(bi));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-    public BRDF getBRDF(IntersectionRecord iRec) {
+    public BRDF getBRDF(IntersectionRecord iRec, BRDFContext context) {
         Point2 texCoords = iRec.texCoords;
-        Color color = new Color();
-        image.addTextureLookup(color, texCoords.x, texCoords.y);
-        Lambertian lambertian = new Lambertian(color);
-        return lambertian;
+        Color color = context.color;
+        color.set(0);
+        texture.addTextureLookup(color, texCoords.x, texCoords.y, Texture.filterWidth(iRec));
+        context.lambertian.setReflectance(color);
+        return context.lambertian;
     }
 
     public void emittedRadiance(LuminaireSamplingRecord lRec, Color outRadiance) {
@@ -7,6 +7,18 @@ package ray.math;
  */
 public class Geometry {
 
+	/** Half the spacing of the doubles around 1: the relative error of one rounding */
+	public static final double MACHINE_EPSILON = Math.ulp(1.0) * 0.5;
+
+	/**
+	 * @param n a number of successive roundings
+	 * @return a bound on their relative error, (n eps) / (1 - n eps), for the error
+	 * bounds of the intersection tests
+	 */
+	public static double gamma(int n) {
+		return (n * MACHINE_EPSILON) / (1 - n * MACHINE_EPSILON);
+	}
+
 	/**
 	 * @param seed A point randomly distributed in the unit square. seed.x and see.y are two
 	 * independently and uniformly sampled random numbers in [0,1].
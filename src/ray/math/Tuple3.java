@@ -95,6 +95,14 @@ public class Tuple3 {
     this.z = inZ;
   }
 
+  /**
+   * @param i the axis: 0, 1 or 2
+   * @return the x, y or z coordinate
+   */
+  public double get(int i) {
+    return i == 0 ? x : i == 1 ? y : z;
+  }
+
   /**
    * @see Object#toString()
    */
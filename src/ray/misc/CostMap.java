@@ -0,0 +1,78 @@
+package ray.misc;
+
+import java.util.Arrays;
+
+/**
+ * An arbitrary output image holding the cost of rendering each pixel, either the
+ * wall clock nanoseconds spent on it or the acceleration structure work it caused
+ * (nodes visited plus primitives tested, which needs RenderStats enabled).  It is
+ * written next to the beauty render both as raw floats and as a false color PNG.
+ */
+public class CostMap {
+
+    public enum Metric { TIME, TRAVERSAL }
+
+    /** Fraction of pixels below the cost shown at full intensity, so outliers don't wash out the map */
+    public static final double NORMALIZE_PERCENTILE = 0.99;
+
+    /** Color ramp from cheap to expensive, evenly spaced */
+    private static final double[][] RAMP = {
+        { 0.00, 0.00, 0.02 }, { 0.34, 0.06, 0.43 }, { 0.87, 0.27, 0.18 },
+        { 0.99, 0.80, 0.15 }, { 0.99, 1.00, 0.64 }
+    };
+
+    public final Metric metric;
+
+    /** The cost of each pixel, in all three channels */
+    public final Image image;
+
+    public CostMap(Metric metric, int width, int height) {
+        if (metric == Metric.TRAVERSAL && !RenderStats.ENABLED)
+            throw new Error("CostMap: traversal cost needs the counters of RenderStats (-Dray.stats=true)");
+        this.metric = metric;
+        this.image = new Image(width, height);
+    }
+
+    public void setCost(double cost, int x, int y) {
+        image.setPixelRGB(cost, cost, cost, x, y);
+    }
+
+    /**
+     * Write fileName.cost.pfm with the raw costs and fileName.cost.png in false color.
+     */
+    public void write(String fileName) {
+        image.writePFM(fileName + ".cost.pfm");
+        falseColor().write(fileName + ".cost.png");
+    }
+
+    /**
+     * @return the costs mapped through the color ramp, scaled so the cost at
+     *         NORMALIZE_PERCENTILE reaches the top of the ramp
+     */
+    public Image falseColor() {
+        int width = image.getWidth(), height = image.getHeight();
+        Color pixel = new Color();
+        double[] costs = new double[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                image.getPixelColor(pixel, x, y);
+                costs[y * width + x] = pixel.r;
+            }
+        double[] sorted = costs.clone();
+        Arrays.sort(sorted);
+        double max = sorted[Math.min(sorted.length - 1, (int) (NORMALIZE_PERCENTILE * sorted.length))];
+        if (max <= 0) max = 1;
+
+        Image out = new Image(width, height);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++) {
+                double s = Math.min(1, costs[y * width + x] / max) * (RAMP.length - 1);
+                int i = Math.min((int) s, RAMP.length - 2);
+                double f = s - i;
+                out.setPixelRGB((1 - f) * RAMP[i][0] + f * RAMP[i+1][0],
+                                (1 - f) * RAMP[i][1] + f * RAMP[i+1][1],
+                                (1 - f) * RAMP[i][2] + f * RAMP[i+1][2], x, y);
+            }
+        return out;
+    }
+}
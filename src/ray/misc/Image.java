@@ -5,11 +5,28 @@ import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferFloat;
 import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import javax.imageio.ImageIO;
 
@@ -54,8 +71,7 @@ public class Image {
 	public Image(Image oldImage) {
 		
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width * height * 3; i++)
-			data[i] = oldImage.data[i];
+		System.arraycopy(oldImage.data, 0, data, 0, data.length);
 	}
 	
 	/**
@@ -173,6 +189,42 @@ public class Image {
 		
 	}
 	
+	/**
+	 * Bilinearly interpolates the color value at the given texture coordinates and
+	 * adds weight times that value to the given color.  Texels outside the image
+	 * are clamped to the edge.
+	 * @param outColor  output color to be added by the texture
+	 * @param texX  coordinate x of texture
+	 * @param texY  coordinate y of texture
+	 * @param weight  the weight of this lookup in outColor
+	 */
+	public void addBilinearLookup(Color outColor, double texX, double texY, double weight) {
+		
+		double fx = width * texX - 0.5;
+		double fy = height * texY - 0.5;
+		int x0 = (int) Math.floor(fx);
+		int y0 = (int) Math.floor(fy);
+		double ax = fx - x0;
+		double ay = fy - y0;
+		int x1 = Math.min(Math.max(x0 + 1, 0), width - 1);
+		int y1 = Math.min(Math.max(y0 + 1, 0), height - 1);
+		x0 = Math.min(Math.max(x0, 0), width - 1);
+		y0 = Math.min(Math.max(y0, 0), height - 1);
+		
+		double w00 = weight * (1 - ax) * (1 - ay);
+		double w10 = weight * ax * (1 - ay);
+		double w01 = weight * (1 - ax) * ay;
+		double w11 = weight * ax * ay;
+		int i00 = calcIdx(x0, y0);
+		int i10 = calcIdx(x1, y0);
+		int i01 = calcIdx(x0, y1);
+		int i11 = calcIdx(x1, y1);
+		outColor.r += w00 * data[i00] + w10 * data[i10] + w01 * data[i01] + w11 * data[i11];
+		outColor.g += w00 * data[i00+1] + w10 * data[i10+1] + w01 * data[i01+1] + w11 * data[i11+1];
+		outColor.b += w00 * data[i00+2] + w10 * data[i10+2] + w01 * data[i01+2] + w11 * data[i11+2];
+		
+	}
+	
 	/** Return a BufferedImage (Java's internal image format) version of this image.
 	 * The returned image is backed by the same data as this image, so changes to that image
 	 * will affect this image.  This is needed to make the updates to the display window fast
@@ -240,31 +292,166 @@ public class Image {
 	}
 	
 	/**
-	 * Write this image to the filename.  The output is always written as a PNG regardless
-	 * of the extension on the filename given.
+	 * Write this image to the filename.  Names ending in .pfm get the unclamped floats
+	 * (see writePFM()); anything else is written as a PNG regardless of the extension.
 	 * @param fileName the output filename
 	 */
 	public void write(String fileName) {
 		
-		//For some reason java can't write the BufferedImages produced directly from the
-		//image data, so we have to recreate the image to produce one for output.
-		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-		Color pixelColor = new Color();
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				int rgb = pixelColor.toInt();
-				bufferedImage.setRGB(x, (height - 1 - y), rgb);
-			}
+		if (fileName.toLowerCase().endsWith(".pfm")) {
+			writePFM(fileName);
+			return;
 		}
 		
+		RenderEvents.ImageWrite event = new RenderEvents.ImageWrite();
+		event.begin();
 		try {
-			ImageIO.write(bufferedImage, "PNG", new File(fileName));
+			File file = new File(fileName);
+			ImageIO.write(toBufferedImage8(), "PNG", file);
+			event.bytes = file.length();
 		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
 			System.err.println(e);
 			e.printStackTrace();
 		}
+		event.file = fileName;
+		event.width = width;
+		event.height = height;
+		event.commit();
+	}
+	
+	/**
+	 * Write a snapshot of this image on a background thread, so rendering into this
+	 * image can continue while the file is encoded.  Writes happen one at a time,
+	 * in the order they were requested.
+	 * @param fileName the output filename, as for write()
+	 * @return completes when the file has been written
+	 */
+	public Future<?> writeAsync(String fileName) {
+		
+		final Image snapshot = new Image(this);
+		return ASYNC_WRITER.submit(() -> snapshot.write(fileName));
+	}
+	
+	/** 
+	 * Single background thread for writeAsync().  The thread exits when idle, so
+	 * pending writes finish before the JVM does but never keep it alive.
+	 */
+	private static final ExecutorService ASYNC_WRITER = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), r -> new Thread(r, "image-writer"));
+	
+	/** Rows converted per task by toBufferedImage8() */
+	private static final int STRIPE_ROWS = 64;
+	
+	/**
+	 * Convert to an 8 bit BGR BufferedImage, clamping and rounding like Color.toInt().
+	 * The conversion goes straight into the raster's byte array in parallel stripes
+	 * of rows.  Our data array already runs top to bottom, as the raster does.
+	 * @return the 8 bit image
+	 */
+	public BufferedImage toBufferedImage8() {
+		
+		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		final byte[] bytes = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
+		int stripes = (height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+		IntStream.range(0, stripes).parallel().forEach(stripe -> {
+			int end = Math.min(height, (stripe + 1) * STRIPE_ROWS) * width * 3;
+			for (int i = stripe * STRIPE_ROWS * width * 3; i < end; i += 3) {
+				bytes[i + 0] = toByte(data[i + 2]);
+				bytes[i + 1] = toByte(data[i + 1]);
+				bytes[i + 2] = toByte(data[i + 0]);
+			}
+		});
+		return bufferedImage;
+	}
+	
+	private static byte toByte(float v) {
+		
+		return (byte) (int) (255.0 * Math.max(Math.min(v, 1.0), 0.0) + 0.5);
+	}
+	
+	/**
+	 * Write this image, unclamped, as a little-endian Portable Float Map (PFM), so the
+	 * floating point values survive for later comparison.
+	 * @param fileName the output filename
+	 */
+	public void writePFM(String fileName) {
+		
+		RenderEvents.ImageWrite event = new RenderEvents.ImageWrite();
+		event.begin();
+		try (OutputStream out = new FileOutputStream(fileName)) {
+			event.bytes = writePFM(out);
+		}
+		catch (IOException e) {
+			System.out.println("Error occured while attempting to write file: "+fileName);
+			System.err.println(e);
+			e.printStackTrace();
+		}
+		event.file = fileName;
+		event.width = width;
+		event.height = height;
+		event.commit();
+	}
+	
+	/**
+	 * Write this image as a PFM, as writePFM(String) does, to a stream.
+	 * @param out where to write the image; left open
+	 * @return the number of bytes written
+	 * @throws IOException if the stream fails
+	 */
+	public long writePFM(OutputStream out) throws IOException {
+		
+		byte[] header = ("PF\n" + width + " " + height + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer buf = ByteBuffer.allocate(data.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		//PFM rows run bottom to top, our data array top to bottom
+		for (int row = height - 1; row >= 0; row--)
+			for (int i = row * width * 3; i < (row + 1) * width * 3; i++)
+				buf.putFloat(data[i]);
+		out.write(header);
+		out.write(buf.array());
+		return header.length + buf.capacity();
+	}
+	
+	/**
+	 * Read an RGB Portable Float Map as written by writePFM().
+	 * @param fileName the input filename
+	 * @return the image
+	 */
+	public static Image readPFM(String fileName) {
+		
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)))) {
+			if (!readToken(in).equals("PF"))
+				throw new Error("Image.readPFM(): not an RGB PFM file: " + fileName);
+			int w = Integer.parseInt(readToken(in));
+			int h = Integer.parseInt(readToken(in));
+			double scale = Double.parseDouble(readToken(in));
+			
+			Image image = new Image(w, h);
+			byte[] bytes = new byte[image.data.length * 4];
+			in.readFully(bytes);
+			ByteBuffer buf = ByteBuffer.wrap(bytes).order(scale < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			for (int row = h - 1; row >= 0; row--)
+				for (int i = row * w * 3; i < (row + 1) * w * 3; i++)
+					image.data[i] = buf.getFloat();
+			return image;
+		}
+		catch (IOException e) {
+			throw new Error("Image.readPFM(): Error reading " + fileName, e);
+		}
+	}
+	
+	/** Read a whitespace delimited header token, consuming the single whitespace after it */
+	private static String readToken(InputStream in) throws IOException {
+		
+		StringBuilder token = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (Character.isWhitespace(c)) {
+				if (token.length() > 0) break;
+			}
+			else token.append((char) c);
+		}
+		return token.toString();
 	}
 }
@@ -2,6 +2,7 @@ package ray.misc;
 
 import ray.math.Frame3;
 import ray.math.Point2;
+import ray.math.Vector3;
 import ray.surface.Surface;
 
 /**
@@ -23,6 +24,20 @@ public class IntersectionRecord {
 
   /** The t value along the ray at which the intersection occurred. */
   public double t = 0;
+
+  /**
+   * Screen-space derivatives of the texture coordinates, estimated from the
+   * ray differentials.  All zero when the ray carried no differentials.
+   */
+  public double dudx = 0, dvdx = 0, dudy = 0, dvdy = 0;
+
+  /**
+   * A bound on the error of frame.o, as a vector along the geometric normal:
+   * frame.o plus or minus offset lies on that side of the surface, whatever the
+   * rounding (see Ray.makeOffsetRay(IntersectionRecord)).  Zero when the surface
+   * does not bound its error.
+   */
+  public final Vector3 offset = new Vector3();
   
   /**
    * Set this intersection record to the value of inRecord
@@ -35,6 +50,11 @@ public class IntersectionRecord {
     texCoords.set(inRecord.texCoords);
     surface = inRecord.surface;
     t = inRecord.t;
+    dudx = inRecord.dudx;
+    dvdx = inRecord.dvdx;
+    dudy = inRecord.dudy;
+    dvdy = inRecord.dvdy;
+    offset.set(inRecord.offset);
 
   }
 
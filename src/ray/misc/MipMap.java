@@ -0,0 +1,92 @@
+package ray.misc;
+
+/**
+ * An in-memory texture pyramid.  Each level is a float Image built from the
+ * previous one with a 2x2 box filter.
+ */
+public class MipMap extends Texture {
+	
+	/** The pyramid levels, finest first */
+	protected Image[] levels;
+	
+	/**
+	 * Build the pyramid for the given image.  The image becomes level 0 and
+	 * is not copied.
+	 * 
+	 * @param base the full resolution image
+	 */
+	public MipMap(Image base) {
+		
+		int numLevels = countLevels(base.width, base.height);
+		levels = new Image[numLevels];
+		levels[0] = base;
+		for (int i = 1; i < numLevels; i++)
+			levels[i] = downsample(levels[i-1]);
+	}
+	
+	/**
+	 * @see ray.misc.Texture#getNumLevels()
+	 */
+	public int getNumLevels() {
+		
+		return levels.length;
+	}
+	
+	/**
+	 * @param level the level index, 0 is the finest
+	 * @return the image of that level
+	 */
+	public Image getLevel(int level) {
+		
+		return levels[level];
+	}
+	
+	/**
+	 * @see ray.misc.Texture#getLevelWidth(int)
+	 */
+	public int getLevelWidth(int level) {
+		
+		return levels[level].width;
+	}
+	
+	/**
+	 * @see ray.misc.Texture#getLevelHeight(int)
+	 */
+	public int getLevelHeight(int level) {
+		
+		return levels[level].height;
+	}
+	
+	/**
+	 * @see ray.misc.Texture#addBilinearLookup(Color, int, double, double, double)
+	 */
+	public void addBilinearLookup(Color outColor, int level, double texX, double texY, double weight) {
+		
+		levels[level].addBilinearLookup(outColor, texX, texY, weight);
+	}
+	
+	/**
+	 * Box filter an image down to half its size in each dimension.  For odd
+	 * sizes the last row or column is repeated.
+	 */
+	private static Image downsample(Image src) {
+		
+		Image dst = new Image((src.width + 1) / 2, (src.height + 1) / 2);
+		for (int y = 0; y < dst.height; y++) {
+			int sy0 = 2 * y;
+			int sy1 = Math.min(2 * y + 1, src.height - 1);
+			for (int x = 0; x < dst.width; x++) {
+				int sx0 = 2 * x;
+				int sx1 = Math.min(2 * x + 1, src.width - 1);
+				int i00 = src.calcIdx(sx0, sy0);
+				int i10 = src.calcIdx(sx1, sy0);
+				int i01 = src.calcIdx(sx0, sy1);
+				int i11 = src.calcIdx(sx1, sy1);
+				int idx = dst.calcIdx(x, y);
+				for (int c = 0; c < 3; c++)
+					dst.data[idx + c] = 0.25f * (src.data[i00 + c] + src.data[i10 + c] + src.data[i01 + c] + src.data[i11 + c]);
+			}
+		}
+		return dst;
+	}
+}
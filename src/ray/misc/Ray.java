@@ -37,10 +37,35 @@ public class Ray {
   /** Ending t value of the ray **/
   public double end;
 
+  /**
+   * Ray differentials: the rays through the neighboring pixels in x and y.
+   * They are only meaningful when hasDifferentials is set, which is the case
+   * for camera rays.  Surfaces use them to estimate the texture footprint.
+   */
+  public boolean hasDifferentials = false;
+  public final Point3 dxOrigin = new Point3();
+  public final Vector3 dxDirection = new Vector3();
+  public final Point3 dyOrigin = new Point3();
+  public final Vector3 dyDirection = new Vector3();
+
+  /**
+   * The per-ray constants of the watertight triangle test (Woop et al.), set by
+   * updateShear(): kz is the axis along which the direction is largest and kx, ky
+   * follow it cyclically; shearing by (sx, sy) and scaling by sz along kz maps the
+   * direction to (0, 0, 1).
+   */
+  public int kx, ky, kz;
+  public double sx, sy, sz;
+
+  /** The origin's coordinates along kx, ky and kz, set by updateShear() */
+  public double okx, oky, okz;
+
   /**
    * Default constructor generates a trivial ray.
    */
-  public Ray() {}
+  public Ray() {
+    updateShear();
+  }
 
   /**
    * The explicit constructor.  This is the only constructor with any real
@@ -53,6 +78,7 @@ public class Ray {
 
     origin.set(newOrigin);
     direction.set(newDirection);
+    updateShear();
   }
   
   public Ray(Ray ray) {
@@ -60,6 +86,20 @@ public class Ray {
 	  this.direction.set(ray.direction);
 	  this.start = ray.start;
 	  this.end = ray.end;
+	  this.hasDifferentials = ray.hasDifferentials;
+	  this.dxOrigin.set(ray.dxOrigin);
+	  this.dxDirection.set(ray.dxDirection);
+	  this.dyOrigin.set(ray.dyOrigin);
+	  this.dyDirection.set(ray.dyDirection);
+	  this.kx = ray.kx;
+	  this.ky = ray.ky;
+	  this.kz = ray.kz;
+	  this.sx = ray.sx;
+	  this.sy = ray.sy;
+	  this.sz = ray.sz;
+	  this.okx = ray.okx;
+	  this.oky = ray.oky;
+	  this.okz = ray.okz;
   }
 
   /**
@@ -71,6 +111,7 @@ public class Ray {
 
     origin.set(newOrigin);
     direction.set(newDirection);
+    updateShear();
   }
 
   /**
@@ -82,6 +123,38 @@ public class Ray {
 
     this.origin.set(origin);
     direction.sub(destination, origin);
+    updateShear();
+  }
+
+  /**
+   * Computes the shear constants for the current direction, and the permuted
+   * origin.  The constructors, set() and the makeOffset methods call it, so the
+   * triangle tests read the constants as they are; code that writes origin or
+   * direction directly must call it (or a makeOffset method) before tracing.
+   */
+  public void updateShear() {
+    double dx = direction.x, dy = direction.y, dz = direction.z;
+    double x = origin.x, y = origin.y, z = origin.z;
+    double ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+    if (ax > ay && ax > az) {
+      kx = 1; ky = 2; kz = 0;
+      sz = 1 / dx;
+      sx = -dy * sz;
+      sy = -dz * sz;
+      okx = y; oky = z; okz = x;
+    } else if (ay > az) {
+      kx = 2; ky = 0; kz = 1;
+      sz = 1 / dy;
+      sx = -dz * sz;
+      sy = -dx * sz;
+      okx = z; oky = x; okz = y;
+    } else {
+      kx = 0; ky = 1; kz = 2;
+      sz = 1 / dz;
+      sx = -dx * sz;
+      sy = -dy * sz;
+      okx = x; oky = y; okz = z;
+    }
   }
 
   /**
@@ -103,6 +176,7 @@ public class Ray {
 
     start = EPSILON;
     end = Double.POSITIVE_INFINITY;
+    updateShear();
 
   }
 
@@ -114,7 +188,50 @@ public class Ray {
 
     start = EPSILON;
     end = newEnd;
+    updateShear();
 
+  }
 
+  /**
+   * Starts the ray, whose direction is set, at the hit point of iRec: the origin is
+   * moved off the surface by iRec.offset, to the side the ray leaves towards, so the
+   * ray can start at t = 0 without finding the same surface again.  Surfaces that
+   * do not bound their error leave the offset zero, and the ray is offset by
+   * EPSILON instead, as by makeOffsetRay().
+   * @param iRec the intersection the ray leaves from
+   */
+  public void makeOffsetRay(IntersectionRecord iRec) {
+
+    makeOffsetSegment(iRec, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * makeOffsetRay(iRec), ending the ray at newEnd.
+   * @param iRec the intersection the ray leaves from
+   * @param newEnd the endpoint of the ray.
+   */
+  public void makeOffsetSegment(IntersectionRecord iRec, double newEnd) {
+
+    Vector3 offset = iRec.offset;
+    origin.set(iRec.frame.o);
+    end = newEnd;
+    if (offset.x == 0 && offset.y == 0 && offset.z == 0) {
+      start = EPSILON;
+    } else {
+      double side = offset.dot(direction) < 0 ? -1 : 1;
+      origin.x = away(origin.x + side * offset.x, side * offset.x);
+      origin.y = away(origin.y + side * offset.y, side * offset.y);
+      origin.z = away(origin.z + side * offset.z, side * offset.z);
+      start = 0;
+    }
+    updateShear();
+  }
+
+  /**
+   * @return x rounded one more double in the direction of delta, so the offset
+   *         origin is not rounded back towards the surface
+   */
+  private static double away(double x, double delta) {
+    return delta > 0 ? Math.nextUp(x) : delta < 0 ? Math.nextDown(x) : x;
   }
 }
\ No newline at end of file
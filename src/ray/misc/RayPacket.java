@@ -0,0 +1,56 @@
+package ray.misc;
+
+/**
+ * Up to MAX_SIZE rays traced together, e.g. the camera rays through a small square
+ * of pixels, which take nearly the same path through the acceleration structure
+ * (see AccelerationStructure.getFirstIntersections()).  Each ray has its own
+ * intersection record and hit flag, filled in by the traversal.
+ *
+ * The rays and records are allocated once and reused: clear() the packet, then set
+ * up each ray returned by add().
+ */
+public class RayPacket {
+
+  /** Rays per packet; the active rays of a packet are tracked in an int mask */
+  public static final int MAX_SIZE = 16;
+
+  public final Ray[] rays = new Ray[MAX_SIZE];
+
+  /** records[i] is the hit of rays[i], if hits[i] */
+  public final IntersectionRecord[] records = new IntersectionRecord[MAX_SIZE];
+
+  public final boolean[] hits = new boolean[MAX_SIZE];
+
+  /** The number of rays in the packet */
+  public int size;
+
+  public RayPacket() {
+    for (int i = 0; i < MAX_SIZE; i++) {
+      rays[i] = new Ray();
+      records[i] = new IntersectionRecord();
+    }
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * @return the next ray of the packet, without differentials, to be set up by the
+   *         caller
+   */
+  public Ray add() {
+    if (size == MAX_SIZE)
+      throw new Error("RayPacket.add(): the packet already holds " + MAX_SIZE + " rays");
+    hits[size] = false;
+    rays[size].hasDifferentials = false;
+    return rays[size++];
+  }
+
+  /**
+   * @return a mask with the bits of all rays in the packet set
+   */
+  public int getMask() {
+    return (1 << size) - 1;
+  }
+}
@@ -0,0 +1,100 @@
+package ray.misc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the phases of a render, so a recording (e.g. with
+ * -XX:StartFlightRecording) shows scene loading, BVH construction, every tile and
+ * the image output on the thread timeline in JMC.  JFR supplies the start time,
+ * duration and thread of each event; the fields here add the sizes.  When no
+ * recording is running the events cost next to nothing.
+ *
+ * Usage follows the JFR pattern: create the event, begin(), do the work, fill in
+ * the fields and commit().
+ */
+public final class RenderEvents {
+
+    private RenderEvents() {}
+
+    @Name("ray.SceneParse")
+    @Label("Scene Parse")
+    @Category({ "Ray Tracer", "Scene" })
+    @Description("Parsing a scene file, including the meshes it loads")
+    public static final class SceneParse extends Event {
+        @Label("File")
+        public String file;
+    }
+
+    @Name("ray.MeshLoad")
+    @Label("Mesh Load")
+    @Category({ "Ray Tracer", "Scene" })
+    public static final class MeshLoad extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Vertices")
+        public int vertices;
+
+        @Label("Triangles")
+        public int triangles;
+    }
+
+    @Name("ray.SceneInit")
+    @Label("Scene Init")
+    @Category({ "Ray Tracer", "Scene" })
+    @Description("Building the acceleration structure")
+    public static final class SceneInit extends Event {
+        @Label("Surfaces")
+        public int surfaces;
+
+        @Label("Luminaires")
+        public int luminaires;
+
+        @Label("Cached")
+        @Description("Whether the tree was mapped from the BVH cache")
+        public boolean cached;
+    }
+
+    @Name("ray.TileRender")
+    @Label("Tile Render")
+    @Category({ "Ray Tracer", "Render" })
+    public static final class TileRender extends Event {
+        @Label("X")
+        public int x;
+
+        @Label("Y")
+        public int y;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Samples per Pixel")
+        public int samples;
+    }
+
+    @Name("ray.ImageWrite")
+    @Label("Image Write")
+    @Category({ "Ray Tracer", "Output" })
+    public static final class ImageWrite extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Width")
+        public int width;
+
+        @Label("Height")
+        public int height;
+
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+    }
+}
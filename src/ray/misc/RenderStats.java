@@ -0,0 +1,213 @@
+package ray.misc;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Per-thread ray and traversal counters.  Each render thread counts into its own
+ * instance with plain field increments, and the instances are merged once the frame
+ * is done, so counting costs no synchronization.  The counters of threads that have
+ * ended are folded into one retired total, so short-lived threads, like those of the
+ * render server's jobs, do not pile up.  Code that counts should test
+ * ENABLED first: with it false the counting compiles away entirely.  The counters
+ * are off unless the system property ray.stats is set to true.
+ *
+ * Camera rays are counted where they are generated; every other ray passing through
+ * Scene.getFirstIntersection is counted as a bounce ray and every one through
+ * Scene.getAnyIntersection as a shadow ray.
+ */
+public final class RenderStats {
+
+    /** Whether the counters are on (-Dray.stats=true); fixed at class load so the JIT can fold it */
+    public static final boolean ENABLED = Boolean.getBoolean("ray.stats");
+
+    /** Paths at least this long share the last histogram bin */
+    public static final int MAX_PATH_LENGTH = 16;
+
+    /** The counters of every live thread that has counted anything */
+    private static final ArrayList<RenderStats> threadStats = new ArrayList<RenderStats>();
+
+    /** The counts of the threads that have ended since the last reset */
+    private static final RenderStats retired = new RenderStats();
+
+    private static final ThreadLocal<RenderStats> local = ThreadLocal.withInitial(() -> {
+        RenderStats stats = new RenderStats(Thread.currentThread());
+        synchronized (threadStats) {
+            retireEndedThreads();
+            threadStats.add(stats);
+        }
+        return stats;
+    });
+
+    /** The thread counting into this instance, not kept alive by it */
+    private final WeakReference<Thread> owner;
+
+    /** Rays generated by the camera */
+    public long cameraRays;
+
+    /** Rays traced by Scene.getFirstIntersection, including the camera rays */
+    public long firstHitRays;
+
+    /** Rays traced by Scene.getAnyIntersection */
+    public long anyHitRays;
+
+    /** Acceleration structure nodes visited */
+    public long nodeVisits;
+
+    /**
+     * Node visits that do not go to the node right after the one visited before it
+     * in memory, a proxy for cache misses in trees laid out as arrays
+     */
+    public long nodeJumps;
+
+    /** Ray-primitive intersection tests */
+    public long primitiveTests;
+
+    /** pathLengths[i] is the number of paths with i surface vertices */
+    public final long[] pathLengths = new long[MAX_PATH_LENGTH + 1];
+
+    /** Vertices of the path being traced by this thread */
+    private int pathLength;
+
+    /**
+     * Counters that belong to no thread, e.g. for totals.
+     */
+    public RenderStats() {
+        this(null);
+    }
+
+    private RenderStats(Thread owner) {
+        this.owner = owner == null ? null : new WeakReference<Thread>(owner);
+    }
+
+    /**
+     * @return the counters of the calling thread
+     */
+    public static RenderStats get() {
+        return local.get();
+    }
+
+    public void beginPath() {
+        pathLength = 0;
+    }
+
+    /**
+     * Note that the path being traced has reached a surface vertex at the given depth.
+     */
+    public void pathVertex(int level) {
+        if (level + 1 > pathLength)
+            pathLength = level + 1;
+    }
+
+    public void endPath() {
+        pathLengths[Math.min(pathLength, MAX_PATH_LENGTH)]++;
+    }
+
+    /**
+     * Count a finished path of the given number of surface vertices, for renderers
+     * that do not trace a path from beginning to end in one go.
+     */
+    public void endPath(int vertices) {
+        pathLengths[Math.min(vertices, MAX_PATH_LENGTH)]++;
+    }
+
+    public long getRays() {
+        return firstHitRays + anyHitRays;
+    }
+
+    public void add(RenderStats stats) {
+        cameraRays += stats.cameraRays;
+        firstHitRays += stats.firstHitRays;
+        anyHitRays += stats.anyHitRays;
+        nodeVisits += stats.nodeVisits;
+        nodeJumps += stats.nodeJumps;
+        primitiveTests += stats.primitiveTests;
+        for (int i = 0; i <= MAX_PATH_LENGTH; i++)
+            pathLengths[i] += stats.pathLengths[i];
+    }
+
+    /**
+     * Merge the counters of all threads.  Only meaningful once the frame is finished,
+     * i.e. after the render threads have been joined or their blocks waited for.
+     *
+     * @return the totals
+     */
+    public static RenderStats collect() {
+        RenderStats total = new RenderStats();
+        synchronized (threadStats) {
+            retireEndedThreads();
+            total.add(retired);
+            for (RenderStats stats : threadStats)
+                total.add(stats);
+        }
+        return total;
+    }
+
+    /**
+     * Zero the counters of all threads, before a frame starts.
+     */
+    public static void reset() {
+        synchronized (threadStats) {
+            retireEndedThreads();
+            retired.clear();
+            for (RenderStats stats : threadStats)
+                stats.clear();
+        }
+    }
+
+    private void clear() {
+        cameraRays = firstHitRays = anyHitRays = 0;
+        nodeVisits = nodeJumps = primitiveTests = 0;
+        Arrays.fill(pathLengths, 0);
+    }
+
+    /**
+     * Fold the counters of the threads that have ended into the retired total and
+     * drop them.  A thread's counts are final once isAlive() has returned false.
+     * Call with the lock on threadStats held.
+     */
+    private static void retireEndedThreads() {
+        for (Iterator<RenderStats> it = threadStats.iterator(); it.hasNext(); ) {
+            RenderStats stats = it.next();
+            Thread thread = stats.owner.get();
+            if (thread == null || !thread.isAlive()) {
+                retired.add(stats);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A human readable summary of these counters for a frame of the given duration.
+     */
+    public String report(double seconds) {
+        StringBuilder out = new StringBuilder();
+        long rays = getRays();
+        out.append(String.format(Locale.ROOT, "Rays: %d (%.3f Mrays/s)%n", rays, rays / seconds / 1e6));
+        out.append(String.format(Locale.ROOT, "  camera: %12d (%.3f Mrays/s)%n", cameraRays,
+                                 cameraRays / seconds / 1e6));
+        out.append(String.format(Locale.ROOT, "  bounce: %12d (%.3f Mrays/s)%n", firstHitRays - cameraRays,
+                                 (firstHitRays - cameraRays) / seconds / 1e6));
+        out.append(String.format(Locale.ROOT, "  shadow: %12d (%.3f Mrays/s)%n", anyHitRays,
+                                 anyHitRays / seconds / 1e6));
+        out.append(String.format(Locale.ROOT, "Per ray: %.2f nodes visited (%.2f jumps), %.2f primitive tests%n",
+                                 nodeVisits / (double) Math.max(1, rays),
+                                 nodeJumps / (double) Math.max(1, rays),
+                                 primitiveTests / (double) Math.max(1, rays)));
+
+        long paths = 0;
+        for (long n : pathLengths) paths += n;
+        if (paths > 0) {
+            out.append("Path lengths:");
+            for (int i = 0; i <= MAX_PATH_LENGTH; i++)
+                if (pathLengths[i] > 0)
+                    out.append(String.format(Locale.ROOT, " %s%d: %.1f%%", i == MAX_PATH_LENGTH ? ">=" : "",
+                                             i, 100. * pathLengths[i] / paths));
+            out.append(String.format("%n"));
+        }
+        return out.toString();
+    }
+}
@@ -1,13 +1,21 @@
 package ray.misc;
 
+import java.io.File;
 import java.util.ArrayList;
 
 import ray.light.PointLight;
 import ray.accel.AccelerationStructure;
+import ray.accel.AxisAlignedBoundingBox;
+import ray.accel.BVHBuilder;
+import ray.accel.BVHCache;
 import ray.accel.BoundingVolume;
+import ray.accel.FlatBVH;
+import ray.accel.Grid;
+import ray.accel.QuantizedBVH;
 import ray.background.Background;
 import ray.background.Uniform;
 import ray.camera.Camera;
+import ray.io.SceneError;
 import ray.material.Material;
 import ray.math.Point2;
 import ray.math.Point3;
@@ -16,6 +24,7 @@ import ray.renderer.DirectOnlyRenderer;
 import ray.renderer.Renderer;
 import ray.sampling.IndependentSampler;
 import ray.sampling.SampleGenerator;
+import ray.surface.Instance;
 import ray.surface.Mesh;
 import ray.surface.MeshTriangle;
 import ray.surface.Surface;
@@ -38,6 +47,9 @@ public class Scene {
     /** The list of surfaces in the scene that happen to be emitters. */
     protected ArrayList<Surface> luminaires = new ArrayList<Surface>();
     
+    /** Meshes declared as assets for Instances, not rendered by themselves. */
+    protected ArrayList<Mesh> meshes = new ArrayList<Mesh>();
+    
     protected ArrayList<PointLight> pointLights = new ArrayList<PointLight>();
     
     /** The list of materials in the scene. */
@@ -55,6 +67,18 @@ public class Scene {
     /** Image to be produced by the renderer **/
     protected Image outputImage;
     
+    /** Builds the BVH, or null for the BoundingVolume median split. */
+    protected BVHBuilder builder = null;
+    
+    /** Bits per coordinate of the quantized BVH, or 0 for full precision. */
+    protected int quantization = 0;
+    
+    /** A grid to use instead of a BVH, or null. */
+    protected Grid grid = null;
+    
+    /** Maps the linear radiance in the output image to display values. */
+    protected Tonemapper tonemapper = new Tonemapper();
+    
     /**
      * Work space for an intersection record needed in the
      * getFirstIntersctionMethod(). Avoids creating a new record each ray cast,
@@ -83,6 +107,14 @@ public class Scene {
         this.outputImage = outputImage;
     }
     
+    public Tonemapper getTonemapper() {
+        return tonemapper;
+    }
+    
+    public void setTonemapper(Tonemapper tonemapper) {
+        this.tonemapper = tonemapper;
+    }
+    
     /**
      * @return Returns the camera.
      */
@@ -169,12 +201,61 @@ public class Scene {
             }
             System.err.println(triangles.length + " triangles added");
         } else {
+            if (toAdd instanceof Instance && toAdd.getMaterial().isEmitter())
+                throw new SceneError("Scene.addSurface(): instanced meshes cannot be luminaires; add the mesh itself.");
             surfaces.add(toAdd);
             if (toAdd.getMaterial().isEmitter())
                 luminaires.add(toAdd);
         }
     }
     
+    public BVHBuilder getBuilder() {
+        return builder;
+    }
+    
+    /**
+     * @param builder builds the BVH in init(), e.g. a SpatialSplitBuilder for final
+     *        renders; null for the BoundingVolume median split
+     */
+    public void setBuilder(BVHBuilder builder) {
+        this.builder = builder;
+    }
+    
+    public int getQuantization() {
+        return quantization;
+    }
+    
+    /**
+     * @param bits 8 or 16 to keep the BVH as a QuantizedBVH, for scenes whose full
+     *        precision tree does not fit in memory; 0 for full precision
+     */
+    public void setQuantization(int bits) {
+        this.quantization = bits;
+    }
+    
+    public Grid getGrid() {
+        return grid;
+    }
+    
+    /**
+     * @param grid a grid to sort the surfaces into in init() instead of building a
+     *        BVH, for scenes of many small surfaces like particles; null for a BVH
+     */
+    public void setGrid(Grid grid) {
+        this.grid = grid;
+    }
+    
+    /**
+     * Adds a mesh that Instances place in the scene.  The mesh itself is not
+     * rendered, and its triangles are not added to the scene's surfaces.
+     *
+     * @param toAdd the mesh to add
+     */
+    public void addMesh(Mesh toAdd) {
+        
+        meshes.add(toAdd);
+    }
+    
     public void addLight(PointLight plight) {
     	pointLights.add(plight);
     }
@@ -193,8 +274,44 @@ public class Scene {
         materials.add(toAdd);    
     }
     
+    /**
+     * Update the acceleration structure after surfaces have moved, e.g. after
+     * Mesh.setVertexPositions().  Much cheaper than init() as long as no surfaces
+     * were added or removed.  Instanced meshes are refit before the instances.
+     */
+    public void update() {
+    	if (accel == null) {
+    		init();
+    		return;
+    	}
+    	for (Mesh mesh : meshes)
+    		mesh.update();
+    	accel.update();
+    }
+    
+    /**
+     * Build the acceleration structure, with the scene's builder if it has one.
+     * With a BVH cache directory set (see BVHCache), the tree is mapped from the
+     * cache when the geometry is unchanged.  With a quantization set, the tree is
+     * then compressed into a QuantizedBVH.  A scene with a grid uses that instead.
+     */
     public void init() {
-    	accel = new BoundingVolume(surfaces);
+    	RenderEvents.SceneInit event = new RenderEvents.SceneInit();
+    	event.begin();
+    	File cacheDir = BVHCache.getDirectory();
+    	if (grid != null) {
+    		grid.build(surfaces);
+    		accel = grid;
+    	} else if (cacheDir != null || builder != null || quantization > 0) {
+    		BVHBuilder b = builder != null ? builder : BVHBuilder.MEDIAN_SPLIT;
+    		FlatBVH bvh = cacheDir != null ? BVHCache.get(surfaces, cacheDir, b) : b.build(surfaces);
+    		event.cached = bvh.isMapped();
+    		accel = quantization > 0 ? new QuantizedBVH(bvh, quantization) : bvh;
+    	} else
+    		accel = new BoundingVolume(surfaces);
+    	event.surfaces = surfaces.size();
+    	event.luminaires = luminaires.size();
+    	event.commit();
     }
     /**
      * Set outRecord to the first intersection of ray with the scene. Return true
@@ -207,7 +324,39 @@ public class Scene {
      */
     public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
         
-        return accel.getFirstIntersection(outRecord, ray);
+        if (RenderStats.ENABLED)
+            RenderStats.get().firstHitRays++;
+        if (!accel.getFirstIntersection(outRecord, ray))
+            return false;
+        
+        computeTextureDifferentials(outRecord, ray);
+        return true;
+    }
+    
+    /**
+     * getFirstIntersection() for every ray of a packet, traced together.
+     *
+     * @param packet the rays; their hit flags and records are set
+     */
+    public void getFirstIntersections(RayPacket packet) {
+        
+        if (RenderStats.ENABLED)
+            RenderStats.get().firstHitRays += packet.size;
+        accel.getFirstIntersections(packet);
+        for (int i = 0; i < packet.size; i++)
+            if (packet.hits[i])
+                computeTextureDifferentials(packet.records[i], packet.rays[i]);
+    }
+    
+    /**
+     * Estimate the texture footprint, only for the surviving hit.
+     */
+    private void computeTextureDifferentials(IntersectionRecord outRecord, Ray ray) {
+        
+        if (ray.hasDifferentials)
+            outRecord.surface.computeTextureDifferentials(outRecord, ray);
+        else
+            outRecord.dudx = outRecord.dvdx = outRecord.dudy = outRecord.dvdy = 0;
     }
     
     /**
@@ -220,23 +369,55 @@ public class Scene {
      */
     public boolean getAnyIntersection(IntersectionRecord outRecord, Ray ray) {
         
+        if (RenderStats.ENABLED)
+            RenderStats.get().anyHitRays++;
         return accel.getAnyIntersection(outRecord, ray);
     }
+    
+    /**
+     * getAnyIntersection() for every ray of a packet, traced together.
+     *
+     * @param packet the rays; their hit flags are set
+     */
+    public void getAnyIntersections(RayPacket packet) {
+        
+        if (RenderStats.ENABLED)
+            RenderStats.get().anyHitRays += packet.size;
+        accel.getAnyIntersections(packet);
+    }
 
     public Vector3 getBoundingBoxExtents() {
     	
-    	return ((BoundingVolume)accel).getBoundingBox().getExtents();
+    	return accel.getBoundingBox().getExtents();
+    }
+    
+    public AxisAlignedBoundingBox getBoundingBox() {
+    	
+    	return accel.getBoundingBox();
     }
     
     public boolean chooseVisiblePointOnLuminaire(Point2 seed, IntersectionRecord iRec, 
                                                  LuminaireSamplingRecord lRec) {
+        if (!choosePointOnLuminaire(seed, iRec, lRec))
+            return false;
+        //// check visibility
+        if (getAnyIntersection(new IntersectionRecord(), lRec.shadowRay)) 
+            return false;
+        return true;
+    }
+    
+    /**
+     * chooseVisiblePointOnLuminaire() without the visibility test: lRec.shadowRay
+     * is set up but not traced, so the caller can trace many of them together.
+     */
+    public boolean choosePointOnLuminaire(Point2 seed, IntersectionRecord iRec, 
+                                          LuminaireSamplingRecord lRec) {
         if (luminaires.size() == 0) return false;
         double d = seed.x * luminaires.size();
         int iLum = (int)d;
         seed.x = d - (double)iLum;
         lRec.surface = (Surface)luminaires.get(iLum);
         lRec.surface.chooseSamplePoint(iRec.frame.o, seed, lRec);
-        //// check visibility
         // emitDir is from lRec.o to iRec.o
         if ( (lRec.iCosine = lRec.emitDir.dot(iRec.frame.w)) > 0) 
             return false;
@@ -244,13 +425,9 @@ public class Scene {
             return false;
 
         lRec.shadowRay.set(iRec.frame.o, lRec.frame.o); // from surface to luminaire
-        lRec.shadowRay.makeOffsetSegment(1.0 - Ray.EPSILON);
-        if (getAnyIntersection(new IntersectionRecord(), lRec.shadowRay)) 
-            return false;
+        lRec.shadowRay.makeOffsetSegment(iRec, 1.0 - Ray.EPSILON);
         lRec.pdf /= luminaires.size();
         return true;
-        //} 
-        //return false;
     }
     
     public boolean chooseVisiblePointOnLuminaire(Point2 seed, Point3 p, 
@@ -0,0 +1,105 @@
+package ray.misc;
+
+/**
+ * A filtered texture stored as an image pyramid.  Level 0 is the full
+ * resolution image and every following level halves both dimensions
+ * (rounding up), down to a single texel.  Subclasses decide where the
+ * texels live; this class implements the trilinear lookup on top of their
+ * bilinear one.
+ */
+public abstract class Texture {
+	
+	/**
+	 * @return the number of levels in the pyramid
+	 */
+	public abstract int getNumLevels();
+	
+	/**
+	 * @param level the level index, 0 is the finest
+	 * @return the width of that level in texels
+	 */
+	public abstract int getLevelWidth(int level);
+	
+	/**
+	 * @param level the level index, 0 is the finest
+	 * @return the height of that level in texels
+	 */
+	public abstract int getLevelHeight(int level);
+	
+	/**
+	 * Bilinearly interpolate one level at the given texture coordinates and add
+	 * weight times the result to outColor.
+	 * 
+	 * @param outColor  output color to be added by the texture
+	 * @param level  the pyramid level
+	 * @param texX  coordinate x of texture
+	 * @param texY  coordinate y of texture
+	 * @param weight  the weight of this lookup in outColor
+	 */
+	public abstract void addBilinearLookup(Color outColor, int level, double texX, double texY, double weight);
+	
+	/**
+	 * Looks up the filtered color value at the given texture coordinates and adds
+	 * that value to the given color.  The filter width selects a fractional level
+	 * and the bilinear lookups in the two nearest levels are blended.  Coordinates
+	 * outside [0,1] contribute nothing, like {@link Image#addTextureLookup(Color, double, double)}.
+	 * 
+	 * @param outColor  output color to be added by the texture
+	 * @param texX  coordinate x of texture
+	 * @param texY  coordinate y of texture
+	 * @param filterWidth  the width of the footprint in texture coordinates; 0 samples the finest level
+	 */
+	public void addTextureLookup(Color outColor, double texX, double texY, double filterWidth) {
+		
+		if (texX < 0 || texX > 1 || texY < 0 || texY > 1)
+			return;
+		
+		// The level at which one texel covers the footprint
+		int numLevels = getNumLevels();
+		double lod = Math.log(filterWidth * Math.max(getLevelWidth(0), getLevelHeight(0))) / Math.log(2);
+		
+		if (!(lod > 0)) {
+			addBilinearLookup(outColor, 0, texX, texY, 1);
+			return;
+		}
+		if (lod >= numLevels - 1) {
+			addBilinearLookup(outColor, numLevels - 1, texX, texY, 1);
+			return;
+		}
+		
+		int level = (int) lod;
+		double blend = lod - level;
+		addBilinearLookup(outColor, level, texX, texY, 1 - blend);
+		addBilinearLookup(outColor, level + 1, texX, texY, blend);
+	}
+	
+	/**
+	 * The number of levels of a full pyramid over a width x height image.
+	 * 
+	 * @param width the width of level 0
+	 * @param height the height of level 0
+	 * @return the number of levels down to a single texel
+	 */
+	public static int countLevels(int width, int height) {
+		
+		int numLevels = 1;
+		for (int w = width, h = height; w > 1 || h > 1; numLevels++) {
+			w = (w + 1) / 2;
+			h = (h + 1) / 2;
+		}
+		return numLevels;
+	}
+	
+	/**
+	 * The filter width matching a pixel footprint, as the longer of the two
+	 * screen-space texture coordinate derivatives in iRec.
+	 * 
+	 * @param iRec the intersection with its texture derivatives filled in
+	 * @return the filter width in texture coordinates
+	 */
+	public static double filterWidth(IntersectionRecord iRec) {
+		
+		return Math.max(Math.sqrt(iRec.dudx * iRec.dudx + iRec.dvdx * iRec.dvdx),
+		                Math.sqrt(iRec.dudy * iRec.dudy + iRec.dvdy * iRec.dvdy));
+	}
+}
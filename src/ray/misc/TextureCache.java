@@ -0,0 +1,171 @@
+package ray.misc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A cache of texture tiles shared by all TiledTextures and all render threads.
+ * Tiles are paged in from disk on first access and the total size of the
+ * resident tiles is kept under a byte budget.
+ * 
+ * Finding a resident tile takes no lock: the tile is read from the texture's
+ * tile table and its reference bit is set.  Only misses synchronize on the
+ * cache, to insert the loaded tile and evict others.  Eviction uses the clock
+ * (second chance) approximation of LRU: the clock hand sweeps the resident
+ * tiles, clearing reference bits, and evicts the first tile that has not been
+ * touched since the hand last passed it.
+ * 
+ * The global cache is enabled by setting the system property ray.texcache.mb
+ * to the budget in megabytes.
+ */
+public class TextureCache {
+	
+	/** The cache used by TextureMaterial, null until first requested */
+	private static TextureCache global = null;
+	
+	/** The maximum number of bytes of resident tiles */
+	protected final long budget;
+	
+	/** The number of bytes of resident tiles */
+	protected long residentBytes = 0;
+	
+	/** The resident tiles, in the order the clock hand visits them */
+	private final ArrayList<Entry> resident = new ArrayList<Entry>();
+	
+	/** The position of the clock hand in resident */
+	private int hand = 0;
+	
+	/** Counters for reporting */
+	protected long misses = 0, evictions = 0;
+	
+	/**
+	 * Create a cache.
+	 * @param budget the maximum number of bytes of resident tiles
+	 */
+	public TextureCache(long budget) {
+		
+		this.budget = budget;
+	}
+	
+	/**
+	 * @return true if the ray.texcache.mb system property asks for the tiled texture cache
+	 */
+	public static boolean isEnabled() {
+		
+		return Long.getLong("ray.texcache.mb", 0) > 0;
+	}
+	
+	/**
+	 * @return the global cache, with the budget given by ray.texcache.mb
+	 */
+	public static synchronized TextureCache getGlobal() {
+		
+		if (global == null)
+			global = new TextureCache(Math.max(Long.getLong("ray.texcache.mb", 256), 1) << 20);
+		return global;
+	}
+	
+	/**
+	 * Return the texels of a tile, reading it from disk if it is not resident.
+	 * 
+	 * @param tex the texture that owns the tile
+	 * @param tile the index of the tile in the texture
+	 * @return the RGB bytes of the tile
+	 */
+	public byte[] getTile(TiledTexture tex, int tile) {
+		
+		byte[] data = tex.tiles.get(tile);
+		if (data != null) {
+			tex.referenced[tile] = 1;
+			return data;
+		}
+		return loadTile(tex, tile);
+	}
+	
+	/**
+	 * Miss path: read the tile outside the lock, then publish it and evict
+	 * until the budget holds again.  If another thread loaded the same tile in
+	 * the meantime its copy wins.
+	 */
+	private byte[] loadTile(TiledTexture tex, int tile) {
+		
+		byte[] data;
+		try {
+			data = tex.readTile(tile);
+		} catch (IOException e) {
+			throw new Error("ray.misc.TextureCache: Error reading tile " + tile + " of " + tex, e);
+		}
+		
+		synchronized (this) {
+			byte[] existing = tex.tiles.get(tile);
+			if (existing != null)
+				return existing;
+			
+			misses++;
+			tex.tiles.set(tile, data);
+			tex.referenced[tile] = 1;
+			resident.add(new Entry(tex, tile));
+			residentBytes += data.length;
+			
+			while (residentBytes > budget && resident.size() > 1)
+				evictOne();
+		}
+		return data;
+	}
+	
+	/**
+	 * Advance the clock hand to the first unreferenced tile and evict it.
+	 * Must be called with the lock held.
+	 */
+	private void evictOne() {
+		
+		while (true) {
+			if (hand >= resident.size())
+				hand = 0;
+			Entry e = resident.get(hand);
+			if (e.tex.referenced[e.tile] != 0) {
+				e.tex.referenced[e.tile] = 0;
+				hand++;
+				continue;
+			}
+			
+			// Remove by moving the last entry into this slot
+			Entry last = resident.remove(resident.size() - 1);
+			if (last != e)
+				resident.set(hand, last);
+			byte[] data = e.tex.tiles.getAndSet(e.tile, null);
+			residentBytes -= data.length;
+			evictions++;
+			return;
+		}
+	}
+	
+	/**
+	 * @return the number of bytes of resident tiles
+	 */
+	public synchronized long getResidentBytes() {
+		
+		return residentBytes;
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		
+		return "TextureCache: " + (residentBytes >> 10) + "/" + (budget >> 10) + " KB resident, " +
+		       misses + " misses, " + evictions + " evictions";
+	}
+	
+	/** A resident tile */
+	private static final class Entry {
+		
+		final TiledTexture tex;
+		final int tile;
+		
+		Entry(TiledTexture tex, int tile) {
+			this.tex = tex;
+			this.tile = tile;
+		}
+	}
+}
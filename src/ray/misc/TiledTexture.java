@@ -0,0 +1,339 @@
+package ray.misc;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A texture pyramid that lives on disk and is paged in tile by tile through a
+ * TextureCache.  Texels are stored as 8-bit RGB, so a resident tile costs a
+ * quarter of the float Image it replaces, and only the tiles that are actually
+ * looked up are ever read.
+ * 
+ * The first time an image is opened it is converted to a tiled file in the
+ * cache directory (the system property ray.texcache.dir, by default
+ * ray-texcache in the temporary directory).  Later runs reuse that file
+ * without decoding the image again.  The file holds a header, followed by the
+ * tiles of every level, finest level first and row-major within a level.  Edge
+ * tiles are padded to the full tile size so that every tile has the same size.
+ */
+public class TiledTexture extends Texture {
+	
+	/** Identifies tiled texture files ("RTEX") */
+	private static final int MAGIC = 0x52544558;
+	
+	/** Edge length of a tile in texels */
+	public static final int DEFAULT_TILE_SIZE = 64;
+	
+	/** The tiled file */
+	protected final File file;
+	
+	/** The tiled file mapped read only, read with absolute (thread safe) gets */
+	private final MappedByteBuffer data;
+	
+	/** The cache that holds the resident tiles */
+	protected final TextureCache cache;
+	
+	/** Edge length of a tile in texels */
+	protected int tileSize;
+	
+	/** Size of a tile in bytes */
+	protected int tileBytes;
+	
+	/** Offset of the first tile in the file */
+	protected long dataOffset;
+	
+	/** Per level: size in texels, number of tiles across, index of the first tile */
+	protected int[] widths, heights, tilesX, firstTile;
+	
+	/** The resident tiles, null if not loaded.  Written by the cache only. */
+	final AtomicReferenceArray<byte[]> tiles;
+	
+	/** Reference bits for the clock eviction of the cache */
+	final byte[] referenced;
+	
+	/**
+	 * Open an existing tiled file.
+	 * 
+	 * @param file the tiled file
+	 * @param cache the cache that will hold its tiles
+	 * @throws IOException if the file cannot be read or is not a tiled texture
+	 */
+	public TiledTexture(File file, TextureCache cache) throws IOException {
+		
+		this.file = file;
+		this.cache = cache;
+		
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a tiled texture: " + file);
+			tileSize = in.readInt();
+			int numLevels = in.readInt();
+			widths = new int[numLevels];
+			heights = new int[numLevels];
+			tilesX = new int[numLevels];
+			firstTile = new int[numLevels + 1];
+			for (int i = 0; i < numLevels; i++) {
+				widths[i] = in.readInt();
+				heights[i] = in.readInt();
+				tilesX[i] = (widths[i] + tileSize - 1) / tileSize;
+				int tilesY = (heights[i] + tileSize - 1) / tileSize;
+				firstTile[i + 1] = firstTile[i] + tilesX[i] * tilesY;
+			}
+			dataOffset = 4 * (3 + 2 * numLevels);
+		} finally {
+			in.close();
+		}
+		
+		tileBytes = 3 * tileSize * tileSize;
+		tiles = new AtomicReferenceArray<byte[]>(firstTile[widths.length]);
+		referenced = new byte[firstTile[widths.length]];
+		
+		// The mapping stays valid after the channel is closed
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			long size = dataOffset + (long) firstTile[widths.length] * tileBytes;
+			if (channel.size() < size)
+				throw new IOException("Unexpected end of tiled texture " + file);
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Tiled texture too large to map: " + file);
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+	}
+	
+	/**
+	 * Open the tiled version of an image file, converting the image first if
+	 * no up to date tiled file exists.
+	 * 
+	 * @param imageFileName the source image (any format ImageIO reads)
+	 * @param cache the cache that will hold its tiles
+	 * @return the texture
+	 * @throws IOException if the image or the tiled file cannot be read or written
+	 */
+	public static TiledTexture open(String imageFileName, TextureCache cache) throws IOException {
+		
+		File source = new File(imageFileName);
+		File dir = new File(System.getProperty("ray.texcache.dir",
+				System.getProperty("java.io.tmpdir") + File.separator + "ray-texcache"));
+		
+		// Key the tiled file on the source path and version so that edits invalidate it
+		long key = source.getAbsolutePath().hashCode();
+		key = 31 * key + source.lastModified();
+		key = 31 * key + source.length();
+		File tiled = new File(dir, source.getName() + "-" + Long.toHexString(key) + ".rtex");
+		
+		if (!tiled.exists()) {
+			dir.mkdirs();
+			convert(source, tiled, DEFAULT_TILE_SIZE);
+		}
+		return new TiledTexture(tiled, cache);
+	}
+	
+	/**
+	 * Convert an image to a tiled file.  The file is written under a temporary
+	 * name and renamed when complete, so concurrent runs never see a partial file.
+	 * 
+	 * @param source the source image
+	 * @param out the tiled file to write
+	 * @param tileSize edge length of a tile in texels
+	 * @throws IOException if the image cannot be read or the file cannot be written
+	 */
+	public static void convert(File source, File out, int tileSize) throws IOException {
+		
+		BufferedImage bi = ImageIO.read(source);
+		if (bi == null)
+			throw new IOException("Unsupported image format: " + source);
+		int width = bi.getWidth();
+		int height = bi.getHeight();
+		
+		// Level 0 in the orientation of Image lookups: texel (x, y) is image pixel (x, y)
+		byte[] level = new byte[3 * width * height];
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			bi.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				int idx = 3 * (y * width + x);
+				level[idx + 0] = (byte) (row[x] >> 16);
+				level[idx + 1] = (byte) (row[x] >> 8);
+				level[idx + 2] = (byte) row[x];
+			}
+		}
+		bi = null;
+		
+		int numLevels = countLevels(width, height);
+		File tmp = File.createTempFile(out.getName(), ".tmp", out.getAbsoluteFile().getParentFile());
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(tileSize);
+			dos.writeInt(numLevels);
+			for (int i = 0, w = width, h = height; i < numLevels; i++, w = (w + 1) / 2, h = (h + 1) / 2) {
+				dos.writeInt(w);
+				dos.writeInt(h);
+			}
+			
+			byte[] tile = new byte[3 * tileSize * tileSize];
+			for (int i = 0, w = width, h = height; i < numLevels; i++) {
+				writeTiles(dos, level, w, h, tileSize, tile);
+				if (i + 1 < numLevels) {
+					level = downsample(level, w, h);
+					w = (w + 1) / 2;
+					h = (h + 1) / 2;
+				}
+			}
+		} finally {
+			dos.close();
+		}
+		
+		try {
+			Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Write one level as tiles, padding the edge tiles by repeating the last texel.
+	 */
+	private static void writeTiles(DataOutputStream dos, byte[] level, int w, int h,
+			int tileSize, byte[] tile) throws IOException {
+		
+		for (int ty = 0; ty < h; ty += tileSize) {
+			for (int tx = 0; tx < w; tx += tileSize) {
+				for (int y = 0; y < tileSize; y++) {
+					int sy = Math.min(ty + y, h - 1);
+					for (int x = 0; x < tileSize; x++) {
+						int sx = Math.min(tx + x, w - 1);
+						int src = 3 * (sy * w + sx);
+						int dst = 3 * (y * tileSize + x);
+						tile[dst + 0] = level[src + 0];
+						tile[dst + 1] = level[src + 1];
+						tile[dst + 2] = level[src + 2];
+					}
+				}
+				dos.write(tile);
+			}
+		}
+	}
+	
+	/**
+	 * Box filter an 8-bit RGB level down to half its size in each dimension.
+	 */
+	private static byte[] downsample(byte[] src, int w, int h) {
+		
+		int dw = (w + 1) / 2;
+		int dh = (h + 1) / 2;
+		byte[] dst = new byte[3 * dw * dh];
+		for (int y = 0; y < dh; y++) {
+			int sy0 = 2 * y;
+			int sy1 = Math.min(2 * y + 1, h - 1);
+			for (int x = 0; x < dw; x++) {
+				int sx0 = 2 * x;
+				int sx1 = Math.min(2 * x + 1, w - 1);
+				for (int c = 0; c < 3; c++) {
+					int sum = (src[3 * (sy0 * w + sx0) + c] & 0xff) + (src[3 * (sy0 * w + sx1) + c] & 0xff) +
+					          (src[3 * (sy1 * w + sx0) + c] & 0xff) + (src[3 * (sy1 * w + sx1) + c] & 0xff);
+					dst[3 * (y * dw + x) + c] = (byte) ((sum + 2) >> 2);
+				}
+			}
+		}
+		return dst;
+	}
+	
+	/**
+	 * Read a tile from the file.  Called by the cache on a miss.
+	 * 
+	 * @param tile the tile index
+	 * @return the RGB bytes of the tile
+	 * @throws IOException if the read fails
+	 */
+	byte[] readTile(int tile) throws IOException {
+		
+		byte[] bytes = new byte[tileBytes];
+		data.get((int) (dataOffset + (long) tile * tileBytes), bytes);
+		return bytes;
+	}
+	
+	/**
+	 * @see ray.misc.Texture#getNumLevels()
+	 */
+	public int getNumLevels() {
+		
+		return widths.length;
+	}
+	
+	/**
+	 * @see ray.misc.Texture#getLevelWidth(int)
+	 */
+	public int getLevelWidth(int level) {
+		
+		return widths[level];
+	}
+	
+	/**
+	 * @see ray.misc.Texture#getLevelHeight(int)
+	 */
+	public int getLevelHeight(int level) {
+		
+		return heights[level];
+	}
+	
+	/**
+	 * @see ray.misc.Texture#addBilinearLookup(Color, int, double, double, double)
+	 */
+	public void addBilinearLookup(Color outColor, int level, double texX, double texY, double weight) {
+		
+		int width = widths[level];
+		int height = heights[level];
+		double fx = width * texX - 0.5;
+		double fy = height * texY - 0.5;
+		int x0 = (int) Math.floor(fx);
+		int y0 = (int) Math.floor(fy);
+		double ax = fx - x0;
+		double ay = fy - y0;
+		int x1 = Math.min(Math.max(x0 + 1, 0), width - 1);
+		int y1 = Math.min(Math.max(y0 + 1, 0), height - 1);
+		x0 = Math.min(Math.max(x0, 0), width - 1);
+		y0 = Math.min(Math.max(y0, 0), height - 1);
+		
+		addTexel(outColor, level, x0, y0, weight * (1 - ax) * (1 - ay));
+		addTexel(outColor, level, x1, y0, weight * ax * (1 - ay));
+		addTexel(outColor, level, x0, y1, weight * (1 - ax) * ay);
+		addTexel(outColor, level, x1, y1, weight * ax * ay);
+	}
+	
+	/**
+	 * Add weight times texel (x, y) of a level to outColor.
+	 */
+	private void addTexel(Color outColor, int level, int x, int y, double weight) {
+		
+		int tile = firstTile[level] + (y / tileSize) * tilesX[level] + (x / tileSize);
+		byte[] data = cache.getTile(this, tile);
+		int idx = 3 * ((y % tileSize) * tileSize + (x % tileSize));
+		double scale = weight / 255.0;
+		outColor.r += scale * (data[idx + 0] & 0xff);
+		outColor.g += scale * (data[idx + 1] & 0xff);
+		outColor.b += scale * (data[idx + 2] & 0xff);
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		
+		return "TiledTexture " + file;
+	}
+}
@@ -0,0 +1,205 @@
+package ray.misc;
+
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * Turns the linear radiance the renderers leave in the image into display values:
+ * an exposure scale, a tone curve that brings the radiance into [0, 1] and the
+ * transfer function (OETF) of the display.  The defaults (no exposure, clamping,
+ * gamma 2.2) give the same PNGs as the old render loops, which gamma corrected and
+ * clamped every pixel before storing it.
+ *
+ * A scene holds one, parsed like this:
+ *
+ *   <tonemapper>
+ *     <exposure>1</exposure>
+ *     <operator>aces</operator>
+ *     <transfer>srgb</transfer>
+ *   </tonemapper>
+ *
+ * The transfer function is read from a table indexed by the square root of the
+ * value, which is far cheaper than a Math.pow per channel and spaces the entries
+ * densely near black, where the curve is steep.
+ */
+public class Tonemapper {
+
+    public enum Operator {
+        /** Clip to [0, 1] */
+        CLAMP,
+        /** x / (1 + x) */
+        REINHARD,
+        /** Narkowicz's fit of the ACES filmic curve */
+        ACES
+    }
+
+    public enum Transfer { GAMMA, SRGB }
+
+    /** Intervals in the transfer function table */
+    public static final int TABLE_SIZE = 4096;
+
+    /** Rows tonemapped per task by apply() */
+    private static final int STRIPE_ROWS = 64;
+
+    /** Exposure adjustment in stops */
+    protected double exposure = 0;
+
+    protected Operator operator = Operator.CLAMP;
+
+    protected Transfer transfer = Transfer.GAMMA;
+
+    /** Display gamma, used by the GAMMA transfer function */
+    protected double gamma = 2.2;
+
+    /** table[i] is the transfer function at (i / TABLE_SIZE)^2 */
+    private float[] table;
+
+    public Tonemapper() {
+        buildTable();
+    }
+
+    public void setExposure(double exposure) {
+        this.exposure = exposure;
+    }
+
+    public void setOperator(String operator) {
+        this.operator = Operator.valueOf(operator.toUpperCase(Locale.ROOT));
+    }
+
+    public void setTransfer(String transfer) {
+        this.transfer = Transfer.valueOf(transfer.toUpperCase(Locale.ROOT));
+        buildTable();
+    }
+
+    public void setGamma(double gamma) {
+        this.gamma = gamma;
+        buildTable();
+    }
+
+    private void buildTable() {
+        float[] newTable = new float[TABLE_SIZE + 2];
+        for (int i = 0; i <= TABLE_SIZE; i++) {
+            double u = i / (double) TABLE_SIZE;
+            newTable[i] = (float) transferExact(u * u);
+        }
+        newTable[TABLE_SIZE + 1] = newTable[TABLE_SIZE];
+        table = newTable;
+    }
+
+    /**
+     * The transfer function evaluated directly.
+     */
+    public double transferExact(double v) {
+        if (transfer == Transfer.SRGB)
+            return v <= 0.0031308 ? 12.92 * v : 1.055 * Math.pow(v, 1 / 2.4) - 0.055;
+        return Math.pow(v, 1 / gamma);
+    }
+
+    /**
+     * The transfer function from the table, for v in [0, 1].
+     */
+    public float transfer(float v) {
+        float u = (float) Math.sqrt(v) * TABLE_SIZE;
+        int i = (int) u;
+        float f = u - i;
+        return table[i] + f * (table[i + 1] - table[i]);
+    }
+
+    /**
+     * The tone curve, clamped to [0, 1].
+     */
+    private float tone(float v) {
+        switch (operator) {
+        case REINHARD:
+            v = v / (1 + v);
+            break;
+        case ACES:
+            v = (v * (2.51f * v + 0.03f)) / (v * (2.43f * v + 0.59f) + 0.14f);
+            break;
+        default:
+            break;
+        }
+        return v > 1 ? 1 : v > 0 ? v : 0;
+    }
+
+    private float scale() {
+        return (float) Math.pow(2, exposure);
+    }
+
+    /**
+     * Map a single linear color to display values in place, e.g. for a preview.
+     */
+    public void map(Color color) {
+        float scale = scale();
+        color.r = transfer(tone(scale * (float) color.r));
+        color.g = transfer(tone(scale * (float) color.g));
+        color.b = transfer(tone(scale * (float) color.b));
+    }
+
+    /**
+     * @return a new image holding the display values of the linear image
+     */
+    public Image apply(Image linear) {
+        Image out = new Image(linear.getWidth(), linear.getHeight());
+        apply(linear, out);
+        return out;
+    }
+
+    /**
+     * Tonemap the linear image into out, which must be the same size, in parallel
+     * stripes of rows.  The two may be the same image.
+     */
+    public void apply(Image linear, Image out) {
+        if (linear.width != out.width || linear.height != out.height)
+            throw new Error("Tonemapper: image sizes differ");
+        final float[] in = linear.data;
+        final float[] result = out.data;
+        final float scale = scale();
+        final int rowSize = linear.width * 3;
+        int stripes = (linear.height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+        IntStream.range(0, stripes).parallel().forEach(stripe -> {
+            int end = Math.min(linear.height, (stripe + 1) * STRIPE_ROWS) * rowSize;
+            for (int i = stripe * STRIPE_ROWS * rowSize; i < end; i++)
+                result[i] = transfer(tone(scale * in[i]));
+        });
+    }
+
+    /**
+     * Handy testing function: compares the table with the exact transfer functions
+     * and times it against Math.pow.
+     */
+    public static void main(String[] args) {
+        Tonemapper tm = new Tonemapper();
+        for (Transfer transfer : Transfer.values()) {
+            tm.setTransfer(transfer.name());
+            double maxErr = 0;
+            for (int i = 0; i <= 1000000; i++) {
+                float v = i / 1000000f;
+                maxErr = Math.max(maxErr, Math.abs(tm.transfer(v) - tm.transferExact(v)));
+            }
+            System.out.println(transfer + ": max error " + maxErr + " (" + maxErr * 255 + " of an 8 bit step)");
+        }
+
+        tm.setTransfer("gamma");
+        Image image = new Image(1024, 1024);
+        for (int i = 0; i < image.data.length; i++)
+            image.data[i] = (i % 7919) / 7919f;
+        Image out = new Image(image.width, image.height);
+        Color c = new Color();
+        for (int rep = 0; rep < 5; rep++) {
+            long t0 = System.nanoTime();
+            tm.apply(image, out);
+            long t1 = System.nanoTime();
+            for (int y = 0; y < image.height; y++)
+                for (int x = 0; x < image.width; x++) {
+                    image.getPixelColor(c, x, y);
+                    c.gammaCorrect(2.2);
+                    c.clamp(0, 1);
+                    out.setPixelColor(c, x, y);
+                }
+            long t2 = System.nanoTime();
+            System.out.println(String.format(Locale.ROOT, "apply %.2f ms, Math.pow per pixel %.2f ms",
+                                             (t1 - t0) / 1e6, (t2 - t1) / 1e6));
+        }
+    }
+}
@@ -6,6 +6,7 @@ import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RayPacket;
 import ray.misc.Scene;
 import ray.sampling.SampleGenerator;
 
@@ -14,7 +15,7 @@ import ray.sampling.SampleGenerator;
  * 
  * @author cxz (at Columbia)
  */
-public class AmbientOcclusion implements Renderer {
+public class AmbientOcclusion implements PacketRenderer {
 
     /**
     * the length of the shadow ray. If the shadow ray is longer than
@@ -23,6 +24,9 @@ public class AmbientOcclusion implements Renderer {
     */
     private double length = 0.1;
     
+    /** The occlusion rays of packetRadiance(), reused per thread */
+    private final ThreadLocal<RayPacket> shadowPacket = ThreadLocal.withInitial(RayPacket::new);
+    
     public AmbientOcclusion() { }
     
     public void setLength(double d) {
@@ -63,7 +67,7 @@ public class AmbientOcclusion implements Renderer {
             iRec.frame.frameToCanonical(incDir);
             
             Ray shadowRay = new Ray(iRec.frame.o, incDir);
-            shadowRay.makeOffsetRay();
+            shadowRay.makeOffsetRay(iRec);
             
             if ( !scene.getFirstIntersection(iRec, shadowRay) ) {
                 outColor.set(0.8);
@@ -80,5 +84,47 @@ public class AmbientOcclusion implements Renderer {
         
         scene.getBackground().evaluate(ray.direction, outColor);
     }
+    
+    /**
+     * Trace the camera rays as a packet, then the occlusion rays from their hits as
+     * another.  An occlusion ray only needs to know whether anything is closer
+     * than the cutoff length, so it is an any-hit ray ending there.
+     *
+     * @see ray.renderer.PacketRenderer#packetRadiance(ray.misc.Scene, ray.misc.RayPacket,
+     * ray.sampling.SampleGenerator[], int, ray.misc.Color[])
+     */
+    @Override
+    public void packetRadiance(Scene scene, RayPacket packet, SampleGenerator[] samplers,
+            int sampleIndex, Color[] outColors) {
+        
+        scene.getFirstIntersections(packet);
+        
+        RayPacket shadowRays = shadowPacket.get();
+        shadowRays.clear();
+        int[] pixel = new int[packet.size];
+        double cutoff = length * scene.getBoundingBoxExtents().length();
+        Point2 directSeed = new Point2();
+        Vector3 incDir = new Vector3();
+        for (int i = 0; i < packet.size; i++) {
+            if (!packet.hits[i]) {
+                scene.getBackground().evaluate(packet.rays[i].direction, outColors[i]);
+                continue;
+            }
+            IntersectionRecord iRec = packet.records[i];
+            samplers[i].sample(1, sampleIndex, directSeed);
+            Geometry.squareToHemisphere(directSeed, incDir);
+            iRec.frame.frameToCanonical(incDir);
+            
+            Ray shadowRay = shadowRays.add();
+            shadowRay.set(iRec.frame.o, incDir);
+            shadowRay.makeOffsetRay(iRec);
+            shadowRay.end = cutoff;
+            pixel[shadowRays.size - 1] = i;
+        }
+        
+        scene.getAnyIntersections(shadowRays);
+        for (int k = 0; k < shadowRays.size; k++)
+            outColors[pixel[k]].set(shadowRays.hits[k] ? 0. : 0.8);
+    }
 
 }
@@ -0,0 +1,28 @@
+package ray.renderer;
+
+import ray.misc.Color;
+import ray.misc.RayPacket;
+import ray.misc.Scene;
+import ray.sampling.SampleGenerator;
+
+/**
+ * A Renderer that can also shade a packet of coherent camera rays at once,
+ * tracing them, and the rays it spawns from their hits, as packets.
+ *
+ * @see ray.accel.AccelerationStructure#getFirstIntersections(RayPacket)
+ */
+public interface PacketRenderer extends Renderer {
+
+	/**
+	 * Like rayRadiance(), for every ray of the packet.  This method must be
+	 * thread-safe.
+	 *
+	 * @param scene scene to be rendered
+	 * @param packet the camera rays
+	 * @param samplers samplers[i] is the sampler of the pixel ray i is for
+	 * @param sampleIndex index of the sample the rays are in their pixels
+	 * @param outColors outColors[i] gets the radiance along ray i
+	 */
+	void packetRadiance(Scene scene, RayPacket packet, SampleGenerator[] samplers, int sampleIndex,
+	                    Color[] outColors);
+}
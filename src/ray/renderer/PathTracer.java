@@ -5,11 +5,13 @@ import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
 import ray.misc.Ray;
+import ray.misc.RenderStats;
 import ray.misc.Scene;
 import ray.sampling.SampleGenerator;
 
 import ray.math.Geometry;
 import ray.brdf.BRDF;
+import ray.material.BRDFContext;
 import ray.material.Material;
 
 /**
@@ -28,6 +30,13 @@ public abstract class PathTracer extends DirectOnlyRenderer {
      */
     protected int backgroundIllumination = 1;
 
+    /**
+     * Per-thread work space for material evaluation.  One context per thread is
+     * enough because the BRDF of a vertex is no longer used once the path has
+     * been extended past it.
+     */
+    private final ThreadLocal<BRDFContext> brdfContext = ThreadLocal.withInitial(BRDFContext::new);
+
     /**
      * Set the depthLimit. This function will be called by the parser to
      * set the parameter value from scene configuration file.
@@ -40,7 +49,11 @@ public abstract class PathTracer extends DirectOnlyRenderer {
 
     @Override
     public void rayRadiance(Scene scene, Ray ray, SampleGenerator sampler, int sampleIndex, Color outColor) {
+        if (RenderStats.ENABLED)
+            RenderStats.get().beginPath();
         rayRadianceRecursive(scene, ray, sampler, sampleIndex, 0, outColor);
+        if (RenderStats.ENABLED)
+            RenderStats.get().endPath();
     }
 
     protected abstract void rayRadianceRecursive(Scene scene, Ray ray, SampleGenerator sampler, int sampleIndex, int level, Color outColor);
@@ -80,6 +93,9 @@ public abstract class PathTracer extends DirectOnlyRenderer {
     	// Here you need to use Geometry.squareToPSAHemisphere that you implemented earlier in this function
 
       if(level <= depthLimit){
+          if (RenderStats.ENABLED)
+              RenderStats.get().pathVertex(level);
+
         // Generate seed
           Point2 seed = new Point2();
           sampler.sample(1, sampleIndex, seed);
@@ -94,14 +110,14 @@ public abstract class PathTracer extends DirectOnlyRenderer {
 
           // Create intersector ray
           Ray ray = new Ray(iRec.frame.o, sampled_direction);
-          ray.makeOffsetRay();
+          ray.makeOffsetRay(iRec);
 
           // Initialize intersection record
           IntersectionRecord current_intersection_record = new IntersectionRecord();
 
           Color current_irradiance = new Color();
           Material material = iRec.surface.getMaterial();
-          BRDF brdf = material.getBRDF(iRec);
+          BRDF brdf = material.getBRDF(iRec, brdfContext.get());
           double factor = brdf.pdf(iRec.frame, outDir, sampled_direction);
 
           boolean does_intersect = scene.getFirstIntersection(current_intersection_record, ray);
@@ -2,6 +2,7 @@ package ray.renderer;
 
 import ray.light.PointLight;
 import ray.brdf.BRDF;
+import ray.material.BRDFContext;
 import ray.math.Vector3;
 import ray.misc.Color;
 import ray.misc.IntersectionRecord;
@@ -21,6 +22,9 @@ public class PhongShader implements Renderer {
      */
     private double phongCoeff = 2.5;
     
+    /** Per-thread work space for material evaluation */
+    private final ThreadLocal<BRDFContext> brdfContext = ThreadLocal.withInitial(BRDFContext::new);
+    
     public PhongShader() { }
     
     /**
@@ -44,19 +48,19 @@ public class PhongShader implements Renderer {
             Vector3 viewDir = new Vector3(ray.direction);
             viewDir.scale(-1.);
             
+            BRDF brdf = iRec.surface.getMaterial().getBRDF(iRec, brdfContext.get());
             for(PointLight pl : scene.getPointLights()) {
-                applyPhongShading(iRec, viewDir, pl, outColor);
+                applyPhongShading(iRec, brdf, viewDir, pl, outColor);
             }
         }
     }
-    private void applyPhongShading(IntersectionRecord iRec, Vector3 viewDir, PointLight pt, Color outColor) {
+    private void applyPhongShading(IntersectionRecord iRec, BRDF brdf, Vector3 viewDir, PointLight pt, Color outColor) {
         
         //// diffuse component
         Vector3 lDir = new Vector3();
         lDir.sub(pt.location, iRec.frame.o);
         lDir.normalize();
         
-        BRDF brdf = iRec.surface.getMaterial().getBRDF(iRec);
         Color brdfVal = new Color();
         brdf.evaluate(iRec.frame, viewDir, lDir, brdfVal);
                 
@@ -11,6 +11,7 @@ import ray.misc.Ray;
 import ray.math.Geometry;
 
 import ray.brdf.BRDF;
+import ray.material.BRDFContext;
 import ray.material.Material;
 
 /**
@@ -22,6 +23,8 @@ import ray.material.Material;
  */
 public class ProjSolidAngleIlluminator extends DirectIlluminator {
 
+    /** Per-thread work space for material evaluation */
+    private final ThreadLocal<BRDFContext> brdfContext = ThreadLocal.withInitial(BRDFContext::new);
 
     public void directIllumination(Scene scene, Vector3 incDir, Vector3 outDir,
             IntersectionRecord iRec, Point2 seed, Color outColor) {
@@ -54,13 +57,13 @@ public class ProjSolidAngleIlluminator extends DirectIlluminator {
 
       // create ray used for direct illumination tester
       Ray ray = new Ray(iRec.frame.o, incDir);
-      ray.makeOffsetRay(); // avoid self intersection
+      ray.makeOffsetRay(iRec); // avoid self intersection
 
       IntersectionRecord tester_intersection_record = new IntersectionRecord();
       // obtain edge case test conditions
       boolean is_emitter_value = scene.getFirstIntersection(tester_intersection_record, ray) && tester_intersection_record.surface.getMaterial().isEmitter();
       Material material = iRec.surface.getMaterial();
-      BRDF surface_brdf = material.getBRDF(iRec);
+      BRDF surface_brdf = material.getBRDF(iRec, brdfContext.get());
       boolean surface_valid = surface_brdf != null;
       // check if surface is not empty and is emitter
       if (is_emitter_value && surface_valid){
@@ -0,0 +1,547 @@
+package ray.renderer;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import ray.accel.AxisAlignedBoundingBox;
+import ray.brdf.BRDF;
+import ray.camera.Camera;
+import ray.material.BRDFContext;
+import ray.material.Material;
+import ray.math.Geometry;
+import ray.math.Point2;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.misc.Color;
+import ray.misc.Image;
+import ray.misc.IntersectionRecord;
+import ray.misc.LuminaireSamplingRecord;
+import ray.misc.Ray;
+import ray.misc.RayPacket;
+import ray.misc.RenderStats;
+import ray.misc.Scene;
+import ray.sampling.SampleGenerator;
+
+/**
+ * A path tracer that renders a block of pixels as a stream of paths rather than
+ * one path at a time.  Up to batchSize paths are in flight, their state held in
+ * parallel primitive arrays (see Batch), and each round takes all of them through
+ * the same stages in turn:
+ *
+ *   generate  new camera paths fill the free slots, a sample of every pixel of
+ *             the block at a time, until all samples have been started;
+ *   intersect the rays are sorted by direction octant, direction and origin, and
+ *             traced in packets of RayPacket.MAX_SIZE consecutive rays;
+ *   shade     the hits, grouped by material, add their emission (camera hits
+ *             only), sample a point on a luminaire and choose the next direction;
+ *   shadow    the shadow rays, sorted like the others, are traced in packets and
+ *             the unoccluded ones add their light;
+ *   compact   the paths that go on move to the front of the arrays.
+ *
+ * Each stage runs one small loop over many paths, so its code and data stay in
+ * cache and its branches go the same way, where the recursive tracers alternate
+ * between traversal and shading for every vertex.
+ *
+ * The estimator is that of BruteForcePathTracer with next event estimation: light
+ * reaching a vertex after a bounce is sampled on the luminaires instead of being
+ * found by the bounce ray, and bounces are chosen by projected solid angle as
+ * there.  Both converge to the same image, the wavefront one with less noise;
+ * with a JitteredSampler, BruteForcePathTracer draws every bounce from the same
+ * stratum, which makes its indirect light brighter, so compare the two with
+ * uncorrelated samples.
+ * rayRadiance() is BruteForcePathTracer's, and is what renderers that trace one
+ * ray at a time (RayTracer, or ParaRayTracer recording a cost map) get.
+ */
+public class WavefrontPathTracer extends BruteForcePathTracer {
+
+    /** The default number of paths in flight per thread */
+    public static final int DEFAULT_BATCH_SIZE = 1 << 12;
+
+    /** Paths in flight per thread */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** The path state of each render thread, reused from block to block */
+    private final ThreadLocal<Batch> batches = ThreadLocal.withInitial(Batch::new);
+
+    /** Per-thread work space for material evaluation */
+    private final ThreadLocal<BRDFContext> brdfContext = ThreadLocal.withInitial(BRDFContext::new);
+
+    public WavefrontPathTracer() { }
+
+    /**
+     * A wavefront tracer with the depth limit and background setting of another
+     * path tracer, to render the same scene with.
+     */
+    public WavefrontPathTracer(PathTracer settings) {
+        depthLimit = settings.depthLimit;
+        backgroundIllumination = settings.backgroundIllumination;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1)
+            throw new Error("WavefrontPathTracer: batch size must be positive, not " + batchSize);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The state of the paths in flight, one entry of each array per path, so that
+     * a stage reads only the arrays it needs, in order.  Paths 0 to size - 1 are
+     * live; the shadow arrays hold the shadow rays of the current round.
+     */
+    private static final class Batch {
+
+        int capacity, size;
+
+        /** The path's pixel, as an index into the block, and its sample index */
+        int[] pixel, sample;
+
+        /** The surface vertex the current ray will reach: 0 for camera rays */
+        int[] depth;
+
+        /** The current ray, and its start: 0 from an offset origin, else Ray.EPSILON */
+        double[] ox, oy, oz, dx, dy, dz, start;
+
+        /** The image point of a camera ray, to rebuild it with differentials */
+        double[] u, v;
+
+        /** The path throughput */
+        double[] betaR, betaG, betaB;
+
+        /** Set by intersect for rays that hit, and their hit records */
+        boolean[] hit;
+        IntersectionRecord[] records;
+
+        /** Set by shade for paths that go on */
+        boolean[] alive;
+
+        /** The material id of each hit, and the hits in material order */
+        int[] material, order;
+
+        int shadowSize;
+        int[] shadowPixel;
+        double[] shadowOx, shadowOy, shadowOz, shadowDx, shadowDy, shadowDz, shadowStart;
+        double[] shadowR, shadowG, shadowB;
+
+        /** Sort keys with the path index in the low half */
+        long[] keys;
+
+        /** Material ids, in the order the materials are met */
+        final IdentityHashMap<Material, Integer> materialIds = new IdentityHashMap<Material, Integer>();
+
+        final RayPacket packet = new RayPacket();
+        final LuminaireSamplingRecord lRec = new LuminaireSamplingRecord();
+
+        /** For offsetting bounce rays off their surface */
+        final Ray bounce = new Ray();
+
+        /** The scene's bounds, to quantize ray origins for sorting */
+        double minX, minY, minZ, scaleX, scaleY, scaleZ;
+
+        void ensureCapacity(int n) {
+            if (capacity == n)
+                return;
+            capacity = n;
+            pixel = new int[n];
+            sample = new int[n];
+            depth = new int[n];
+            ox = new double[n];
+            oy = new double[n];
+            oz = new double[n];
+            dx = new double[n];
+            dy = new double[n];
+            dz = new double[n];
+            start = new double[n];
+            u = new double[n];
+            v = new double[n];
+            betaR = new double[n];
+            betaG = new double[n];
+            betaB = new double[n];
+            hit = new boolean[n];
+            records = new IntersectionRecord[n];
+            for (int i = 0; i < n; i++)
+                records[i] = new IntersectionRecord();
+            alive = new boolean[n];
+            material = new int[n];
+            order = new int[n];
+            shadowPixel = new int[n];
+            shadowOx = new double[n];
+            shadowOy = new double[n];
+            shadowOz = new double[n];
+            shadowDx = new double[n];
+            shadowDy = new double[n];
+            shadowDz = new double[n];
+            shadowStart = new double[n];
+            shadowR = new double[n];
+            shadowG = new double[n];
+            shadowB = new double[n];
+            keys = new long[n];
+        }
+
+        void setBounds(AxisAlignedBoundingBox box) {
+            Vector3 extents = box.getExtents();
+            Point3 corner = new Point3();
+            box.getCorner(0, corner);
+            minX = corner.x;
+            minY = corner.y;
+            minZ = corner.z;
+            scaleX = extents.x > 0 ? 32 / extents.x : 0;
+            scaleY = extents.y > 0 ? 32 / extents.y : 0;
+            scaleZ = extents.z > 0 ? 32 / extents.z : 0;
+        }
+
+        /**
+         * A sort key putting rays of similar direction and origin next to each
+         * other: the direction octant, then each direction component quantized to 3
+         * bits, then the origin's 5 bit per axis Morton code in the scene bounds.
+         */
+        int sortKey(double ox, double oy, double oz, double dx, double dy, double dz) {
+            int octant = (dx < 0 ? 4 : 0) | (dy < 0 ? 2 : 0) | (dz < 0 ? 1 : 0);
+            double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            int qx = (int) (7.999 * Math.abs(dx) / length);
+            int qy = (int) (7.999 * Math.abs(dy) / length);
+            int qz = (int) (7.999 * Math.abs(dz) / length);
+            int mx = clamp5((ox - minX) * scaleX);
+            int my = clamp5((oy - minY) * scaleY);
+            int mz = clamp5((oz - minZ) * scaleZ);
+            int morton = 0;
+            for (int bit = 4; bit >= 0; bit--)
+                morton = (morton << 3) | ((mx >> bit & 1) << 2) | ((my >> bit & 1) << 1) | (mz >> bit & 1);
+            return octant << 24 | (qx << 6 | qy << 3 | qz) << 15 | morton;
+        }
+
+        private static int clamp5(double x) {
+            return x <= 0 ? 0 : x >= 31 ? 31 : (int) x;
+        }
+
+        /**
+         * Move path i to slot j, during compaction (j < i).
+         */
+        void move(int i, int j) {
+            pixel[j] = pixel[i];
+            sample[j] = sample[i];
+            depth[j] = depth[i];
+            ox[j] = ox[i];
+            oy[j] = oy[i];
+            oz[j] = oz[i];
+            dx[j] = dx[i];
+            dy[j] = dy[i];
+            dz[j] = dz[i];
+            start[j] = start[i];
+            u[j] = u[i];
+            v[j] = v[i];
+            betaR[j] = betaR[i];
+            betaG[j] = betaG[i];
+            betaB[j] = betaB[i];
+        }
+    }
+
+    /**
+     * Render a block of the image, as ParaRayTracer.renderBlock() does with
+     * rayRadiance().  This method must be thread-safe.
+     *
+     * @param scene scene to be rendered
+     * @param outImg the image the pixels go to
+     * @param offsetX the x coordinate of the block's corner
+     * @param offsetY the y coordinate of the block's corner
+     * @param sizeX the width of the block
+     * @param sizeY the height of the block
+     */
+    public void renderBlock(Scene scene, Image outImg, int offsetX, int offsetY, int sizeX, int sizeY) {
+        Batch batch = batches.get();
+        batch.ensureCapacity(batchSize);
+        batch.setBounds(scene.getBoundingBox());
+        batch.size = 0;
+
+        // The jittered strata depend on the sample index only, so one sampler
+        // serves every pixel of the block
+        SampleGenerator sampler = scene.getSampler().thread_safe_clone();
+        sampler.generate();
+        int pixels = sizeX * sizeY;
+        long total = (long) pixels * sampler.getNumSamples();
+        double[] radiance = new double[3 * pixels];
+
+        long next = 0;
+        while (next < total || batch.size > 0) {
+            next = generate(scene, batch, sampler, next, total, outImg, offsetX, offsetY, sizeX);
+            intersect(scene, batch, outImg);
+            shade(scene, batch, sampler, radiance);
+            shadow(scene, batch, radiance);
+            compact(batch);
+        }
+
+        Color pixelColor = new Color();
+        for (int i = 0; i < pixels; i++) {
+            pixelColor.set(radiance[3 * i], radiance[3 * i + 1], radiance[3 * i + 2]);
+            pixelColor.scale(1.0 / sampler.getNumSamples());
+            outImg.setPixelColor(pixelColor, offsetX + i % sizeX, offsetY + i / sizeX);
+        }
+    }
+
+    /**
+     * Start camera paths in the free slots.  Samples are taken in order of sample
+     * index, then pixel, so the rays in flight together cover the whole block.
+     *
+     * @return the index of the next sample to start
+     */
+    private long generate(Scene scene, Batch batch, SampleGenerator sampler, long next, long total,
+                          Image outImg, int offsetX, int offsetY, int sizeX) {
+        Camera cam = scene.getCamera();
+        Ray ray = batch.packet.rays[0];
+        Point2 pixelSeed = new Point2();
+        int pixels = (int) (total / sampler.getNumSamples());
+        int i = batch.size;
+        for (; i < batch.capacity && next < total; i++, next++) {
+            int pixel = (int) (next % pixels), sampleIndex = (int) (next / pixels);
+            sampler.sample(0, sampleIndex, pixelSeed);
+            batch.pixel[i] = pixel;
+            batch.sample[i] = sampleIndex;
+            batch.depth[i] = 0;
+            batch.u[i] = (offsetX + pixel % sizeX + pixelSeed.x) / outImg.getWidth();
+            batch.v[i] = (offsetY + pixel / sizeX + pixelSeed.y) / outImg.getHeight();
+            cam.getRay(ray, batch.u[i], batch.v[i]);
+            batch.ox[i] = ray.origin.x;
+            batch.oy[i] = ray.origin.y;
+            batch.oz[i] = ray.origin.z;
+            batch.dx[i] = ray.direction.x;
+            batch.dy[i] = ray.direction.y;
+            batch.dz[i] = ray.direction.z;
+            batch.betaR[i] = batch.betaG[i] = batch.betaB[i] = 1;
+        }
+        if (RenderStats.ENABLED)
+            RenderStats.get().cameraRays += i - batch.size;
+        batch.size = i;
+        return next;
+    }
+
+    /**
+     * Trace every path's ray, in sorted order and in packets.  Camera rays are
+     * rebuilt with their differentials, for texture filtering.
+     */
+    private void intersect(Scene scene, Batch batch, Image outImg) {
+        int n = batch.size;
+        for (int i = 0; i < n; i++)
+            batch.keys[i] = (long) batch.sortKey(batch.ox[i], batch.oy[i], batch.oz[i],
+                                                 batch.dx[i], batch.dy[i], batch.dz[i]) << 32 | i;
+        Arrays.sort(batch.keys, 0, n);
+
+        Camera cam = scene.getCamera();
+        double diffScale = 1.0 / Math.sqrt(scene.getSampler().getNumSamples());
+        double du = diffScale / outImg.getWidth(), dv = diffScale / outImg.getHeight();
+        RayPacket packet = batch.packet;
+        for (int k = 0; k < n; k += RayPacket.MAX_SIZE) {
+            packet.clear();
+            int count = Math.min(RayPacket.MAX_SIZE, n - k);
+            for (int j = 0; j < count; j++) {
+                int i = (int) batch.keys[k + j];
+                Ray ray = packet.add();
+                if (batch.depth[i] == 0) {
+                    cam.getRay(ray, batch.u[i], batch.v[i], du, dv);
+                } else {
+                    ray.origin.set(batch.ox[i], batch.oy[i], batch.oz[i]);
+                    ray.direction.set(batch.dx[i], batch.dy[i], batch.dz[i]);
+                    ray.makeOffsetRay();
+                    ray.start = batch.start[i];
+                }
+            }
+            scene.getFirstIntersections(packet);
+            for (int j = 0; j < count; j++) {
+                int i = (int) batch.keys[k + j];
+                batch.hit[i] = packet.hits[j];
+                if (packet.hits[j])
+                    batch.records[i].set(packet.records[j]);
+            }
+        }
+    }
+
+    /**
+     * Shade the hits material by material: add the emission seen by camera rays and
+     * the background they miss to, queue a shadow ray to a point on a luminaire, and
+     * choose each surviving path's next ray.
+     */
+    private void shade(Scene scene, Batch batch, SampleGenerator sampler, double[] radiance) {
+        int n = batch.size;
+        RenderStats stats = RenderStats.ENABLED ? RenderStats.get() : null;
+
+        // Misses end their paths; camera rays see the background
+        Vector3 dir = new Vector3();
+        Color color = new Color();
+        int hits = 0, materials = batch.materialIds.size();
+        int[] counts = new int[materials + 1];
+        for (int i = 0; i < n; i++) {
+            batch.alive[i] = false;
+            if (!batch.hit[i]) {
+                if (batch.depth[i] == 0) {
+                    dir.set(batch.dx[i], batch.dy[i], batch.dz[i]);
+                    scene.getBackground().evaluate(dir, color);
+                    addRadiance(radiance, batch.pixel[i], color, 1, 1, 1);
+                }
+                if (RenderStats.ENABLED)
+                    stats.endPath(batch.depth[i]);
+                continue;
+            }
+            Material material = batch.records[i].surface.getMaterial();
+            Integer id = batch.materialIds.get(material);
+            if (id == null) {
+                id = batch.materialIds.size();
+                batch.materialIds.put(material, id);
+                counts = Arrays.copyOf(counts, id + 2);
+            }
+            batch.material[i] = id;
+            counts[id + 1]++;
+            hits++;
+        }
+
+        // Counting sort of the hits by material
+        for (int m = 1; m < counts.length; m++)
+            counts[m] += counts[m - 1];
+        for (int i = 0; i < n; i++)
+            if (batch.hit[i])
+                batch.order[counts[batch.material[i]]++] = i;
+
+        BRDFContext context = brdfContext.get();
+        LuminaireSamplingRecord lRec = batch.lRec;
+        Vector3 outDir = new Vector3(), toLight = new Vector3();
+        Color brdfValue = new Color();
+        Point2 seed = new Point2();
+        batch.shadowSize = 0;
+        for (int k = 0; k < hits; k++) {
+            int i = batch.order[k];
+            IntersectionRecord iRec = batch.records[i];
+            Material material = iRec.surface.getMaterial();
+            int depth = batch.depth[i];
+            outDir.set(-batch.dx[i], -batch.dy[i], -batch.dz[i]);
+            outDir.normalize();
+
+            if (depth == 0 && material.isEmitter()) {
+                emittedRadiance(iRec, outDir, color);
+                addRadiance(radiance, batch.pixel[i], color, batch.betaR[i], batch.betaG[i], batch.betaB[i]);
+            }
+
+            BRDF brdf = material.getBRDF(iRec, context);
+            if (brdf == null || depth >= depthLimit) {
+                if (RenderStats.ENABLED)
+                    stats.endPath(depth + 1);
+                continue;
+            }
+
+            // Next event estimation: the light from a point on a luminaire, if visible
+            sampler.sample(1 + 2 * depth, batch.sample[i], seed);
+            if (scene.choosePointOnLuminaire(seed, iRec, lRec)) {
+                double distance = lRec.emitDir.length();
+                toLight.set(lRec.emitDir);
+                toLight.scale(-1 / distance);
+                brdf.evaluate(iRec.frame, toLight, outDir, brdfValue);
+                double geometry = -lRec.iCosine * lRec.lCosine / (distance * distance * distance * distance);
+                lRec.emitDir.scale(1 / distance);
+                lRec.surface.getMaterial().emittedRadiance(lRec, color);
+                color.scale(brdfValue);
+                color.scale(geometry / lRec.pdf);
+                if (color.r > 0 || color.g > 0 || color.b > 0) {
+                    int s = batch.shadowSize++;
+                    Ray shadowRay = lRec.shadowRay;
+                    batch.shadowPixel[s] = batch.pixel[i];
+                    batch.shadowOx[s] = shadowRay.origin.x;
+                    batch.shadowOy[s] = shadowRay.origin.y;
+                    batch.shadowOz[s] = shadowRay.origin.z;
+                    batch.shadowDx[s] = shadowRay.direction.x;
+                    batch.shadowDy[s] = shadowRay.direction.y;
+                    batch.shadowDz[s] = shadowRay.direction.z;
+                    batch.shadowStart[s] = shadowRay.start;
+                    batch.shadowR[s] = batch.betaR[i] * color.r;
+                    batch.shadowG[s] = batch.betaG[i] * color.g;
+                    batch.shadowB[s] = batch.betaB[i] * color.b;
+                }
+            }
+
+            // The next bounce, by projected solid angle: the weight is pi * brdf
+            if (depth + 1 >= depthLimit) {
+                if (RenderStats.ENABLED)
+                    stats.endPath(depth + 1);
+                continue;
+            }
+            sampler.sample(2 + 2 * depth, batch.sample[i], seed);
+            Geometry.squareToPSAHemisphere(seed, dir);
+            iRec.frame.frameToCanonical(dir);
+            dir.normalize();
+            brdf.evaluate(iRec.frame, outDir, dir, brdfValue);
+            batch.betaR[i] *= Math.PI * brdfValue.r;
+            batch.betaG[i] *= Math.PI * brdfValue.g;
+            batch.betaB[i] *= Math.PI * brdfValue.b;
+            if (batch.betaR[i] <= 0 && batch.betaG[i] <= 0 && batch.betaB[i] <= 0) {
+                if (RenderStats.ENABLED)
+                    stats.endPath(depth + 1);
+                continue;
+            }
+            Ray bounce = batch.bounce;
+            bounce.direction.set(dir);
+            bounce.makeOffsetRay(iRec);
+            batch.ox[i] = bounce.origin.x;
+            batch.oy[i] = bounce.origin.y;
+            batch.oz[i] = bounce.origin.z;
+            batch.start[i] = bounce.start;
+            batch.dx[i] = dir.x;
+            batch.dy[i] = dir.y;
+            batch.dz[i] = dir.z;
+            batch.depth[i] = depth + 1;
+            batch.alive[i] = true;
+        }
+    }
+
+    /**
+     * Trace the shadow rays queued by shade(), sorted and in packets, and add the
+     * light of those that reach their luminaire.
+     */
+    private void shadow(Scene scene, Batch batch, double[] radiance) {
+        int n = batch.shadowSize;
+        for (int s = 0; s < n; s++)
+            batch.keys[s] = (long) batch.sortKey(batch.shadowOx[s], batch.shadowOy[s], batch.shadowOz[s],
+                                                 batch.shadowDx[s], batch.shadowDy[s], batch.shadowDz[s]) << 32 | s;
+        Arrays.sort(batch.keys, 0, n);
+
+        RayPacket packet = batch.packet;
+        for (int k = 0; k < n; k += RayPacket.MAX_SIZE) {
+            packet.clear();
+            int count = Math.min(RayPacket.MAX_SIZE, n - k);
+            for (int j = 0; j < count; j++) {
+                int s = (int) batch.keys[k + j];
+                Ray ray = packet.add();
+                ray.origin.set(batch.shadowOx[s], batch.shadowOy[s], batch.shadowOz[s]);
+                ray.direction.set(batch.shadowDx[s], batch.shadowDy[s], batch.shadowDz[s]);
+                ray.makeOffsetSegment(1.0 - Ray.EPSILON);
+                ray.start = batch.shadowStart[s];
+            }
+            scene.getAnyIntersections(packet);
+            for (int j = 0; j < count; j++) {
+                if (packet.hits[j])
+                    continue;
+                int s = (int) batch.keys[k + j];
+                int p = 3 * batch.shadowPixel[s];
+                radiance[p] += batch.shadowR[s];
+                radiance[p + 1] += batch.shadowG[s];
+                radiance[p + 2] += batch.shadowB[s];
+            }
+        }
+    }
+
+    /**
+     * Move the paths that go on to the front, in order, freeing the slots after
+     * them for generate().
+     */
+    private void compact(Batch batch) {
+        int live = 0;
+        for (int i = 0; i < batch.size; i++) {
+            if (!batch.alive[i])
+                continue;
+            if (i != live)
+                batch.move(i, live);
+            live++;
+        }
+        batch.size = live;
+    }
+
+    private static void addRadiance(double[] radiance, int pixel, Color color, double r, double g, double b) {
+        radiance[3 * pixel] += r * color.r;
+        radiance[3 * pixel + 1] += g * color.g;
+        radiance[3 * pixel + 2] += b * color.b;
+    }
+}
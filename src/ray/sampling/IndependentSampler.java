@@ -1,6 +1,7 @@
 package ray.sampling;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ray.math.Point2;
 
@@ -12,10 +13,18 @@ import ray.math.Point2;
  */
 public class IndependentSampler implements SampleGenerator {
 	
+	/** Seeds for the clones, so no two of them draw the same numbers */
+	private static final AtomicLong cloneSeeds = new AtomicLong(1);
+	
 	int numSamples = 1;
-	Random random = new Random(1);
+	Random random;
 	
 	public IndependentSampler() {
+		this(1);
+	}
+	
+	public IndependentSampler(long seed) {
+		random = new Random(seed);
 	}
 	
 	public void setNumSamples(int numSamples) {
@@ -34,7 +43,7 @@ public class IndependentSampler implements SampleGenerator {
 	}
 
 	public SampleGenerator thread_safe_clone() {
-	    return new IndependentSampler();
+	    return new IndependentSampler(cloneSeeds.incrementAndGet());
 	}
 
 }
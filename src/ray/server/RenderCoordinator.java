@@ -0,0 +1,382 @@
+package ray.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ray.misc.Image;
+import ray.misc.Scene;
+
+/**
+ * Renders a scene's image on RenderWorker processes, possibly on other machines.
+ * The coordinator listens on a port; every worker connection is a render slot that
+ * is handed one tile at a time and sends back the tile's linear float pixels, which
+ * are merged into the scene's image.
+ *
+ * Tiles of a worker that dies go back to the front of the queue.  A tile that takes
+ * longer than the timeout is queued again as well, but its connection is kept: the
+ * slow worker carries on, and whichever copy finishes first wins.  Once the queue is
+ * empty, idle slots also duplicate the tile that has been running longest, so one
+ * slow worker cannot hold up the whole frame.  The render fails once every worker
+ * that connected has gone away with tiles still missing, or once every spawned
+ * worker process has exited without connecting.
+ *
+ * To try it on one machine, run ParaRayTracer with -spawn n, which starts n local
+ * worker JVMs, or start the coordinator with -listen port and the workers by hand:
+ *
+ *   java ray.ParaRayTracer -listen 8170 scene/cbox.xml
+ *   java ray.server.RenderWorker localhost 8170 4     (as many as you like)
+ */
+public class RenderCoordinator {
+
+    public static final int DEFAULT_PORT = 8170;
+
+    /** Tile edge length in pixels */
+    public static final int TILE_SIZE = 32;
+
+    /** Seconds a tile may take before it is duplicated on another slot */
+    public static final double DEFAULT_TIMEOUT = 120;
+
+    private static final class Tile {
+        final int id, x, y, width, height;
+        /** Slots currently rendering this tile */
+        int running;
+        /** When the first of them started, or when the tile was last queued again as slow */
+        long started;
+        /** Whether the tile is in the queue */
+        boolean queued;
+        boolean done;
+
+        Tile(int id, int x, int y, int width, int height) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final Image image;
+    private final String sceneFile;
+    private final int samplesSide;
+
+    /** The render options the workers apply to the scene, as ParaRayTracer's main does */
+    private boolean sbvh, wavefront, packets = true;
+
+    private final List<Tile> tiles = new ArrayList<Tile>();
+    private final ArrayDeque<Tile> pending = new ArrayDeque<Tile>();
+    private int remaining;
+
+    /** Seconds a slot may take over one tile before the tile is queued again */
+    private double timeout = DEFAULT_TIMEOUT;
+
+    /** Worker connections open now, and ever opened */
+    private int live, attached;
+
+    private int connections, lost, duplicated;
+
+    /** Worker processes started for this frame, watched until one of them connects */
+    private final List<Process> spawned = new ArrayList<Process>();
+
+    /** The sockets of the slots waiting for a result, closed if the frame ends first */
+    private final Set<Socket> busy = new HashSet<Socket>();
+
+    /**
+     * @param scene the scene, whose image receives the result
+     * @param sceneFile the file the workers load the scene from
+     * @param samplesSide render with samplesSide^2 jittered samples per pixel, or 0
+     *        to use the scene's own sampler
+     */
+    public RenderCoordinator(Scene scene, String sceneFile, int samplesSide) {
+        this.image = scene.getImage();
+        this.sceneFile = new File(sceneFile).getAbsolutePath();
+        this.samplesSide = samplesSide;
+
+        for (int y = 0; y < image.getHeight(); y += TILE_SIZE)
+            for (int x = 0; x < image.getWidth(); x += TILE_SIZE)
+                tiles.add(new Tile(tiles.size(), x, y, Math.min(TILE_SIZE, image.getWidth() - x),
+                                   Math.min(TILE_SIZE, image.getHeight() - y)));
+        for (Tile tile : tiles) {
+            tile.queued = true;
+            pending.add(tile);
+        }
+        remaining = tiles.size();
+    }
+
+    public void setTimeout(double seconds) {
+        this.timeout = seconds;
+    }
+
+    /**
+     * Set the command line options the workers render with, see
+     * ParaRayTracer.configureScene.
+     */
+    public void setRenderOptions(boolean sbvh, boolean wavefront, boolean packets) {
+        this.sbvh = sbvh;
+        this.wavefront = wavefront;
+        this.packets = packets;
+    }
+
+    /**
+     * Watch worker processes started for this frame, see spawnLocalWorkers: if all
+     * of them exit before any worker has connected, render fails rather than wait
+     * for connections that will never come.
+     */
+    public synchronized void setSpawnedWorkers(List<Process> workers) {
+        spawned.clear();
+        spawned.addAll(workers);
+    }
+
+    /**
+     * Listen for workers on the port and return once every tile has been merged.
+     *
+     * @throws IOException if the port cannot be opened, every worker that
+     *         connected is gone before the frame is done, or every spawned
+     *         worker exited before connecting
+     */
+    public void render(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread slot = new Thread(() -> serve(socket), "coordinator-slot");
+                    slot.setDaemon(true);
+                    slot.start();
+                }
+            } catch (SocketException e) {
+                // closed once the frame is done
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "coordinator-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Waiting for workers on port " + server.getLocalPort() + ", " + tiles.size() + " tiles");
+
+        try {
+            synchronized (this) {
+                while (remaining > 0) {
+                    if (attached > 0 && live == 0)
+                        throw new IOException("all " + attached + " worker connections lost with " +
+                                              remaining + " tiles left");
+                    if (attached == 0 && !spawned.isEmpty() && allExited(spawned))
+                        throw new IOException("all " + spawned.size() + " spawned workers exited " +
+                                              "before connecting, exit codes " + exitCodes(spawned));
+                    requeueSlowTiles();
+                    // Wake up now and then to look for slow tiles
+                    wait(Math.max(1, Math.min(1000, (long) (timeout * 1000))));
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted while rendering", e);
+        } finally {
+            server.close();
+            // Slots still waiting on a duplicated tile would block until their worker answers
+            synchronized (this) {
+                for (Socket socket : busy)
+                    socket.close();
+            }
+        }
+        System.out.println("\nDone: " + connections + " worker connections, " + lost + " lost, " +
+                           duplicated + " tiles duplicated");
+    }
+
+    private static boolean allExited(List<Process> processes) {
+        for (Process process : processes)
+            if (process.isAlive())
+                return false;
+        return true;
+    }
+
+    private static List<Integer> exitCodes(List<Process> processes) {
+        List<Integer> codes = new ArrayList<Integer>();
+        for (Process process : processes)
+            codes.add(process.exitValue());
+        return codes;
+    }
+
+    /**
+     * Feed one worker connection with tiles until the frame is done or it fails.
+     */
+    private void serve(Socket socket) {
+        Tile tile = null;
+        String name = socket.getRemoteSocketAddress().toString();
+        synchronized (this) {
+            live++;
+            attached++;
+        }
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeInt(TileProtocol.MAGIC);
+            out.writeInt(TileProtocol.VERSION);
+            out.writeUTF(sceneFile);
+            out.writeInt(image.getWidth());
+            out.writeInt(image.getHeight());
+            out.writeInt(samplesSide);
+            out.writeBoolean(sbvh);
+            out.writeBoolean(wavefront);
+            out.writeBoolean(packets);
+            out.flush();
+            // No timeout while the worker loads the scene; a dead one closes the socket
+            int status = in.readInt();
+            if (status == TileProtocol.FAILED)
+                throw new IOException("worker failed to load the scene: " + in.readUTF());
+            if (status != TileProtocol.READY)
+                throw new IOException("unexpected message " + status);
+            synchronized (this) {
+                connections++;
+            }
+
+            // No read timeout either: a slow worker keeps its slot, and its tile is
+            // duplicated elsewhere by requeueSlowTiles()
+            while ((tile = nextTile()) != null) {
+                synchronized (this) {
+                    busy.add(s);
+                }
+                out.writeInt(TileProtocol.TILE);
+                out.writeInt(tile.id);
+                out.writeInt(tile.x);
+                out.writeInt(tile.y);
+                out.writeInt(tile.width);
+                out.writeInt(tile.height);
+                out.flush();
+
+                int message = in.readInt();
+                synchronized (this) {
+                    busy.remove(s);
+                }
+                int id = in.readInt();
+                if (message != TileProtocol.RESULT || id != tile.id)
+                    throw new IOException("unexpected message " + message + " for tile " + id);
+                byte[] bytes = new byte[tile.width * tile.height * 3 * 4];
+                in.readFully(bytes);
+                finished(tile, ByteBuffer.wrap(bytes).asFloatBuffer());
+                tile = null;
+            }
+            out.writeInt(TileProtocol.DONE);
+            out.flush();
+        } catch (IOException e) {
+            synchronized (this) {
+                // Sockets closed by render() belong to a frame that is already done
+                if (remaining > 0) {
+                    System.err.println("\nWorker " + name + " lost: " + e);
+                    lost++;
+                }
+            }
+            if (tile != null)
+                failed(tile);
+        } catch (InterruptedException e) {
+            // the frame is over
+        } finally {
+            synchronized (this) {
+                busy.remove(socket);
+                live--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the next tile for an idle slot, or null when the frame is done
+     */
+    private synchronized Tile nextTile() throws InterruptedException {
+        while (remaining > 0) {
+            Tile tile = pending.poll();
+            if (tile != null) {
+                tile.queued = false;
+                if (tile.done)
+                    continue;
+                if (tile.running++ == 0)
+                    tile.started = System.nanoTime();
+                return tile;
+            }
+            // Nothing queued: back up the tile that has been running longest
+            Tile slowest = null;
+            for (Tile t : tiles)
+                if (!t.done && t.running == 1 && (slowest == null || t.started < slowest.started))
+                    slowest = t;
+            if (slowest != null) {
+                slowest.running++;
+                duplicated++;
+                return slowest;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private synchronized void finished(Tile tile, FloatBuffer pixels) {
+        tile.running--;
+        if (tile.done)
+            return;
+        for (int y = tile.y; y < tile.y + tile.height; y++)
+            for (int x = tile.x; x < tile.x + tile.width; x++)
+                image.setPixelRGB(pixels.get(), pixels.get(), pixels.get(), x, y);
+        tile.done = true;
+        remaining--;
+        System.err.print("\rfinished " + (tiles.size() - remaining) + "/" + tiles.size() + " tiles");
+        notifyAll();
+    }
+
+    private synchronized void failed(Tile tile) {
+        tile.running--;
+        if (!tile.done && tile.running == 0 && !tile.queued) {
+            tile.queued = true;
+            pending.addFirst(tile);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Queue again, ahead of the tiles not yet started, every running tile that has
+     * taken longer than the timeout since it started or was last queued.
+     */
+    private synchronized void requeueSlowTiles() {
+        long now = System.nanoTime();
+        for (Tile tile : tiles)
+            if (!tile.done && !tile.queued && tile.running > 0 && (now - tile.started) / 1e9 > timeout) {
+                tile.queued = true;
+                tile.started = now;
+                pending.addFirst(tile);
+                duplicated++;
+                notifyAll();
+            }
+    }
+
+    /**
+     * Start worker JVMs on this machine, with this JVM's class path, that connect
+     * to the given port.
+     *
+     * @param count the number of processes
+     * @param port the coordinator's port
+     * @param threads render threads in each process
+     * @return the processes, to be destroyed when the frame is done
+     */
+    public static List<Process> spawnLocalWorkers(int count, int port, int threads) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> workers = new ArrayList<Process>();
+        for (int i = 0; i < count; i++)
+            workers.add(new ProcessBuilder(java, "-Djava.awt.headless=true",
+                                           "-cp", System.getProperty("java.class.path"),
+                                           RenderWorker.class.getName(), "localhost",
+                                           Integer.toString(port), Integer.toString(threads))
+                        .inheritIO().start());
+        return workers;
+    }
+}
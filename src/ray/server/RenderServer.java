@@ -0,0 +1,426 @@
+package ray.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ray.ParaRayTracer;
+import ray.camera.Camera;
+import ray.io.Parser;
+import ray.math.Point3;
+import ray.math.Tuple3;
+import ray.math.Vector3;
+import ray.misc.Image;
+import ray.misc.Scene;
+import ray.sampling.JitteredSampler;
+import ray.sampling.SampleGenerator;
+
+/**
+ * A long-lived headless render service.  Scenes are parsed and their acceleration
+ * structures built the first time they are asked for and then kept, keyed by a hash
+ * of the scene file's path and contents, so later jobs on the same scene start
+ * tracing at once on a warm JIT.  Meshes are not hashed: after editing a mesh, edit
+ * the scene file too or ask for /evict.
+ *
+ * The API is plain HTTP on the loopback interface:
+ *
+ *   GET /render?scene=scene/cbox.xml    renders the scene and returns the image.
+ *       Optional overrides: spp=n (rounded to a square), width=n, height=n
+ *       (one alone keeps the scene's aspect ratio), eye=x,y,z, target=x,y,z
+ *       (an eye alone keeps the scene's view direction), up=x,y,z, fov=degrees
+ *       (vertical), and format=png (tonemapped, the default) or format=pfm
+ *       (linear radiance).
+ *   GET /status                         lists the resident scenes as JSON.
+ *   GET /evict                          drops all resident scenes.
+ *
+ * e.g. curl -o out.png 'http://localhost:8160/render?scene=scene/cbox.xml&spp=16'
+ *
+ * Jobs on the same scene run one at a time; jobs on different scenes share the
+ * render threads.
+ *
+ * Usage: RenderServer [-port n] [-threads n] [-cache n] [scene.xml ...]
+ * where the listed scenes are loaded up front.
+ */
+public class RenderServer {
+
+    public static final int DEFAULT_PORT = 8160;
+
+    /** A resident scene and the settings its file gave it, which jobs override */
+    private static final class Entry {
+        final String file;
+        final String hash;
+        final Scene scene;
+        final Camera camera;
+        final SampleGenerator sampler;
+        final int width, height;
+        final double loadSeconds;
+        int renders;
+
+        Entry(String file, String hash, Scene scene, double loadSeconds) {
+            this.file = file;
+            this.hash = hash;
+            this.scene = scene;
+            this.camera = scene.getCamera();
+            this.sampler = scene.getSampler();
+            this.width = scene.getImage().getWidth();
+            this.height = scene.getImage().getHeight();
+            this.loadSeconds = loadSeconds;
+        }
+    }
+
+    /** Thrown for requests we cannot serve, with the HTTP status to answer */
+    private static final class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final ExecutorService renderExecutor;
+
+    private final int maxScenes;
+
+    /** Resident scenes by hash, least recently used first */
+    private final LinkedHashMap<String, Entry> scenes;
+
+    /** Scenes being loaded by hash, so jobs on the same scene wait for one load; guarded by scenes */
+    private final Map<String, FutureTask<Entry>> loading = new HashMap<String, FutureTask<Entry>>();
+
+    public RenderServer(int threads, int maxScenes) {
+        this.renderExecutor = Executors.newFixedThreadPool(threads);
+        this.maxScenes = maxScenes;
+        this.scenes = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > RenderServer.this.maxScenes;
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int cache = 8;
+        int ctr = 0;
+        while (ctr < args.length && args[ctr].startsWith("-")) {
+            if (args[ctr].equals("-port"))
+                port = Integer.parseInt(args[++ctr]);
+            else if (args[ctr].equals("-threads"))
+                threads = Integer.parseInt(args[++ctr]);
+            else if (args[ctr].equals("-cache"))
+                cache = Integer.parseInt(args[++ctr]);
+            else
+                throw new Error("Unknown option " + args[ctr]);
+            ctr++;
+        }
+
+        RenderServer server = new RenderServer(threads, cache);
+        for (; ctr < args.length; ctr++)
+            server.getScene(args[ctr], hash(args[ctr]));
+        server.start(port);
+    }
+
+    /**
+     * Serve on the loopback interface at the given port until the JVM exits.
+     */
+    public void start(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        http.createContext("/render", exchange -> handle(exchange, this::render));
+        http.createContext("/status", exchange -> handle(exchange, this::status));
+        http.createContext("/evict", exchange -> handle(exchange, this::evict));
+        http.setExecutor(Executors.newCachedThreadPool());
+        http.start();
+        System.out.println("Render server listening on http://127.0.0.1:" + port + "/");
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> params) throws Exception;
+    }
+
+    private static void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            handler.handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+        } catch (RequestException e) {
+            respond(exchange, e.status, "text/plain", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (Throwable e) {
+            // The parser reports bad scenes by throwing Error
+            e.printStackTrace();
+            respond(exchange, 500, "text/plain", (e + "\n").getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void render(HttpExchange exchange, Map<String, String> params) throws Exception {
+        String file = params.get("scene");
+        if (file == null)
+            throw new RequestException(400, "render: missing scene parameter");
+        String format = params.getOrDefault("format", "png");
+        if (!format.equals("png") && !format.equals("pfm"))
+            throw new RequestException(400, "render: format must be png or pfm");
+
+        String hash = hash(file);
+        boolean resident;
+        synchronized (scenes) {
+            resident = scenes.containsKey(hash);
+        }
+        Entry entry = getScene(file, hash);
+
+        Image image;
+        double seconds;
+        synchronized (entry) {
+            Scene scene = entry.scene;
+            int width = entry.width, height = entry.height;
+            if (params.containsKey("width") && params.containsKey("height")) {
+                width = intParam(params, "width");
+                height = intParam(params, "height");
+            } else if (params.containsKey("width")) {
+                width = intParam(params, "width");
+                height = Math.max(1, width * entry.height / entry.width);
+            } else if (params.containsKey("height")) {
+                height = intParam(params, "height");
+                width = Math.max(1, height * entry.width / entry.height);
+            }
+            scene.setImage(new Image(width, height));
+            if (params.containsKey("spp")) {
+                int side = Math.max(1, (int) Math.round(Math.sqrt(intParam(params, "spp"))));
+                scene.setSampler(new JitteredSampler(side, side));
+            } else {
+                scene.setSampler(entry.sampler);
+            }
+            // Always a fresh camera: rendering sets its aspect ratio
+            scene.setCamera(jobCamera(entry.camera, params));
+
+            long t0 = System.nanoTime();
+            List<Future<?>> blocks = ParaRayTracer.renderImage(scene, renderExecutor, false);
+            try {
+                for (Future<?> block : blocks)
+                    block.get();
+            } catch (ExecutionException e) {
+                throw new Error("render of " + file + " failed", e.getCause());
+            }
+            seconds = (System.nanoTime() - t0) / 1e9;
+            System.out.println();
+            image = format.equals("png") ? scene.getTonemapper().apply(scene.getImage()) : scene.getImage();
+            entry.renders++;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (format.equals("png"))
+            ImageIO.write(image.toBufferedImage8(), "PNG", body);
+        else
+            image.writePFM(body);
+        exchange.getResponseHeaders().set("X-Render-Seconds", String.format(Locale.ROOT, "%.4f", seconds));
+        exchange.getResponseHeaders().set("X-Scene-Cache", resident ? "hit" : "miss");
+        respond(exchange, 200, format.equals("png") ? "image/png" : "image/x-portable-floatmap", body.toByteArray());
+    }
+
+    /**
+     * A copy of the scene's camera with the job's overrides applied.
+     */
+    private static Camera jobCamera(Camera original, Map<String, String> params) throws RequestException {
+        Point3 eye = new Point3();
+        Vector3 dir = new Vector3();
+        Vector3 up = new Vector3();
+        original.getEye(eye);
+        original.getViewDirection(dir);
+        original.getUp(up);
+        // The camera keeps only a direction, so a new eye alone keeps looking the
+        // same way rather than at the same point
+        if (params.containsKey("eye"))
+            tupleParam(params, "eye", eye);
+        Point3 target = new Point3(eye);
+        target.add(dir);
+        if (params.containsKey("target"))
+            tupleParam(params, "target", target);
+        if (params.containsKey("up"))
+            tupleParam(params, "up", up);
+
+        Camera camera = new Camera();
+        camera.lookAt(eye, target, up);
+        camera.setYFOV(params.containsKey("fov") ? doubleParam(params, "fov") : original.getYFOV());
+        return camera;
+    }
+
+    private void status(HttpExchange exchange, Map<String, String> params) throws IOException {
+        StringBuilder json = new StringBuilder("{\"scenes\": [");
+        synchronized (scenes) {
+            int i = 0;
+            for (Entry entry : scenes.values())
+                json.append(String.format(Locale.ROOT,
+                    "%s\n  {\"file\": \"%s\", \"hash\": \"%s\", \"surfaces\": %d, \"loadSeconds\": %.4f, \"renders\": %d}",
+                    i++ > 0 ? "," : "", entry.file.replace("\\", "\\\\").replace("\"", "\\\""), entry.hash,
+                    entry.scene.getSurfaces().size(), entry.loadSeconds, entry.renders));
+        }
+        json.append("\n]}\n");
+        respond(exchange, 200, "application/json", json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void evict(HttpExchange exchange, Map<String, String> params) throws IOException {
+        int n;
+        synchronized (scenes) {
+            n = scenes.size();
+            scenes.clear();
+        }
+        respond(exchange, 200, "text/plain", ("Evicted " + n + " scenes\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The resident scene for the file, parsed and initialized if it is not yet.  The
+     * load runs outside the lock on the resident scenes, so jobs on other scenes are
+     * not held up by it; other jobs on the same scene wait for it instead of loading
+     * the scene again.
+     */
+    private Entry getScene(String file, String hash) throws InterruptedException {
+        FutureTask<Entry> load;
+        boolean loader = false;
+        synchronized (scenes) {
+            Entry entry = scenes.get(hash);
+            if (entry != null)
+                return entry;
+            load = loading.get(hash);
+            if (load == null) {
+                load = new FutureTask<Entry>(() -> loadScene(file, hash));
+                loading.put(hash, load);
+                loader = true;
+            }
+        }
+
+        if (loader) {
+            load.run();
+            synchronized (scenes) {
+                loading.remove(hash);
+                if (!load.isCancelled()) {
+                    try {
+                        scenes.put(hash, load.get());
+                    } catch (ExecutionException e) {
+                        // reported below, and the next job tries again
+                    }
+                }
+            }
+        }
+        try {
+            return load.get();
+        } catch (ExecutionException e) {
+            // The parser reports bad scenes by throwing Error
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new Error("load of " + file + " failed", e.getCause());
+        }
+    }
+
+    private static Entry loadScene(String file, String hash) {
+        long t0 = System.nanoTime();
+        Scene scene = (Scene) new Parser().parse(file, Scene.class);
+        ParaRayTracer.configureScene(scene, false, false);
+        scene.init();
+        Entry entry = new Entry(file, hash, scene, (System.nanoTime() - t0) / 1e9);
+        System.out.println(String.format(Locale.ROOT, "Loaded %s in %.3f s", file, entry.loadSeconds));
+        return entry;
+    }
+
+    /**
+     * SHA-256 of the canonical path and contents of a scene file.  The path is part
+     * of the key because meshes are found relative to it.
+     */
+    private static String hash(String file) throws RequestException, IOException {
+        File f = new File(file);
+        if (!f.isFile())
+            throw new RequestException(404, "No such scene file: " + file);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(f.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Files.readAllBytes(f.toPath()));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("RenderServer: no SHA-256", e);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq < 0)
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                           URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String name) throws RequestException {
+        try {
+            int value = Integer.parseInt(params.get(name));
+            if (value <= 0)
+                throw new RequestException(400, name + " must be positive");
+            return value;
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Bad " + name + ": " + params.get(name));
+        }
+    }
+
+    private static double doubleParam(Map<String, String> params, String name) throws RequestException {
+        try {
+            return Double.parseDouble(params.get(name));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Bad " + name + ": " + params.get(name));
+        }
+    }
+
+    private static void tupleParam(Map<String, String> params, String name, Tuple3 out)
+            throws RequestException {
+        String[] parts = params.get(name).split(",");
+        try {
+            if (parts.length != 3)
+                throw new NumberFormatException();
+            out.set(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Bad " + name + ", expected x,y,z: " + params.get(name));
+        }
+    }
+}
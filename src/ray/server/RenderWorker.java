@@ -0,0 +1,163 @@
+package ray.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import ray.ParaRayTracer;
+import ray.io.Parser;
+import ray.misc.Color;
+import ray.misc.Image;
+import ray.misc.Scene;
+import ray.sampling.JitteredSampler;
+
+/**
+ * A worker process for distributed rendering.  It opens one connection to the
+ * RenderCoordinator per render thread, loads the scene the coordinator names once
+ * for all of them, and renders the tiles it is handed, streaming the float pixels
+ * back.  Each connection renders into an image of its own, since the coordinator
+ * may hand the same tile to two connections at once.  It exits when the
+ * coordinator says the frame is done or goes away.
+ *
+ * Usage: RenderWorker host port [threads]
+ */
+public class RenderWorker {
+
+    /** How long to keep trying to reach a coordinator that is not listening yet */
+    public static final long CONNECT_PATIENCE_MS = 30000;
+
+    /** The loaded scene, shared by all connections of this process */
+    private Scene scene;
+
+    /** What the scene was loaded for */
+    private String sceneKey;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2)
+            throw new Error("Usage: RenderWorker host port [threads]");
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        RenderWorker worker = new RenderWorker();
+        Thread[] connections = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            connections[i] = new Thread(() -> worker.serve(host, port), "render-worker-" + i);
+            connections[i].start();
+        }
+        for (Thread t : connections)
+            t.join();
+    }
+
+    /**
+     * Run one connection: handshake, then render tiles until told to stop.
+     */
+    private void serve(String host, int port) {
+        try (Socket socket = connect(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            if (in.readInt() != TileProtocol.MAGIC || in.readInt() != TileProtocol.VERSION)
+                throw new IOException("not a compatible coordinator");
+            String sceneFile = in.readUTF();
+            int width = in.readInt();
+            int height = in.readInt();
+            int samplesSide = in.readInt();
+            boolean sbvh = in.readBoolean();
+            boolean wavefront = in.readBoolean();
+            boolean packets = in.readBoolean();
+
+            Scene scene;
+            try {
+                scene = getScene(sceneFile, width, height, samplesSide, sbvh, wavefront, packets);
+            } catch (Error e) {
+                // The parser reports bad scenes by throwing Error
+                out.writeInt(TileProtocol.FAILED);
+                out.writeUTF(String.valueOf(e.getMessage()));
+                out.flush();
+                throw e;
+            }
+            out.writeInt(TileProtocol.READY);
+            out.flush();
+
+            // Not the scene's image, which the other connections share; the camera
+            // maps pixels through the image size, so the buffer is frame sized
+            Image image = new Image(width, height);
+            Color pixel = new Color();
+            while (true) {
+                int message = in.readInt();
+                if (message == TileProtocol.DONE)
+                    break;
+                if (message != TileProtocol.TILE)
+                    throw new IOException("unexpected message " + message);
+                int id = in.readInt();
+                int x0 = in.readInt(), y0 = in.readInt();
+                int w = in.readInt(), h = in.readInt();
+
+                ParaRayTracer.renderBlock(scene, image, x0, y0, w, h, null);
+
+                ByteBuffer buf = ByteBuffer.allocate(w * h * 3 * 4);
+                for (int y = y0; y < y0 + h; y++)
+                    for (int x = x0; x < x0 + w; x++) {
+                        image.getPixelColor(pixel, x, y);
+                        buf.putFloat((float) pixel.r).putFloat((float) pixel.g).putFloat((float) pixel.b);
+                    }
+                out.writeInt(TileProtocol.RESULT);
+                out.writeInt(id);
+                out.write(buf.array());
+                out.flush();
+            }
+        } catch (EOFException e) {
+            System.err.println(Thread.currentThread().getName() + ": coordinator closed the connection");
+        } catch (IOException e) {
+            System.err.println(Thread.currentThread().getName() + ": " + e);
+        }
+    }
+
+    private static Socket connect(String host, int port) throws IOException {
+        long giveUp = System.currentTimeMillis() + CONNECT_PATIENCE_MS;
+        while (true) {
+            try {
+                return new Socket(host, port);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > giveUp)
+                    throw e;
+                try {
+                    Thread.sleep(250);
+                } catch (InterruptedException ie) {
+                    throw new IOException("interrupted while connecting", ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the scene, unless this process already has it loaded the same way, and
+     * apply the coordinator's render options to it as ParaRayTracer's main does.
+     */
+    private synchronized Scene getScene(String sceneFile, int width, int height, int samplesSide,
+                                        boolean sbvh, boolean wavefront, boolean packets) {
+        String key = sceneFile + " " + width + "x" + height + " " + samplesSide +
+                     (sbvh ? " sbvh" : "") + (wavefront ? " wavefront" : "") + (packets ? "" : " nopackets");
+        if (!key.equals(sceneKey)) {
+            Scene newScene = (Scene) new Parser().parse(sceneFile, Scene.class);
+            newScene.setImage(new Image(width, height));
+            if (samplesSide > 0)
+                newScene.setSampler(new JitteredSampler(samplesSide, samplesSide));
+            ParaRayTracer.setPackets(packets);
+            ParaRayTracer.configureScene(newScene, sbvh, wavefront);
+            newScene.init();
+            newScene.getCamera().setAspectRatioKeepYFOV(((double) width) / height);
+            scene = newScene;
+            sceneKey = key;
+        }
+        return scene;
+    }
+}
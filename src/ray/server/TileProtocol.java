@@ -0,0 +1,35 @@
+package ray.server;
+
+/**
+ * The socket protocol between a RenderCoordinator and its RenderWorkers.  All
+ * messages are written with DataOutputStream, so numbers are big-endian and strings
+ * modified UTF-8.  Each worker connection is one render slot:
+ *
+ *   coordinator: MAGIC, VERSION, scene file (UTF), width, height, samples per pixel
+ *                side (0 keeps the scene's sampler), and the render options as
+ *                booleans: sbvh, wavefront, packets (see ParaRayTracer.configureScene)
+ *   worker:      READY, or FAILED and a message (UTF)
+ *   then any number of
+ *   coordinator: TILE, tile id, x, y, width, height
+ *   worker:      RESULT, tile id, width * height * 3 floats, row by row from y and
+ *                pixel by pixel from x, as r, g, b of the linear radiance
+ *   until
+ *   coordinator: DONE
+ *
+ * The scene file is read by the worker itself, so workers and coordinator must see
+ * the same file system (or the same files at the same paths).
+ */
+final class TileProtocol {
+
+    private TileProtocol() {}
+
+    static final int MAGIC = 0x52415954; // "RAYT"
+
+    static final int VERSION = 2;
+
+    static final int READY = 1;
+    static final int FAILED = 2;
+    static final int TILE = 3;
+    static final int RESULT = 4;
+    static final int DONE = 5;
+}
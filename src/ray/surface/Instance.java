@@ -0,0 +1,227 @@
+package ray.surface;
+
+import ray.accel.AxisAlignedBoundingBox;
+import ray.io.SceneError;
+import ray.material.Material;
+import ray.math.Frame3;
+import ray.math.Geometry;
+import ray.math.Point2;
+import ray.math.Point3;
+import ray.math.Vector3;
+import ray.misc.IntersectionRecord;
+import ray.misc.LuminaireSamplingRecord;
+import ray.misc.Ray;
+
+/**
+ * One placement of a mesh in the scene.  Unlike adding a Mesh as a surface, which
+ * bakes its frame into its own copy of the vertices, any number of instances share
+ * one mesh and its bottom-level BVH (see Mesh.getAccelerationStructure()), and the
+ * scene's BVH holds just the instances.  Rays are moved into the mesh's space to be
+ * intersected and the hit is moved back, so memory grows with the unique geometry,
+ * not with the number of copies.  The mesh is declared once as a scene asset:
+ *
+ *   <mesh name="bunny">
+ *     <data>meshes/bunny.msh</data>
+ *     <material ref="white"/>
+ *   </mesh>
+ *   <surface type="Instance">
+ *     <mesh ref="bunny"/>
+ *     <frame>1 0 0 100  0 1 0 0  0 0 1 200</frame>
+ *   </surface>
+ *
+ * The frame is a row-major 3x4 matrix as for Mesh.setFrame(), whose 3x3 part must
+ * be a rotation times a uniform scale, so normals need no special treatment and the
+ * ray parameter t is the same in both spaces.  Instances take the mesh's material
+ * unless given their own.  They cannot be luminaires, and scenes that make one
+ * emissive fail to load.
+ */
+public class Instance extends Surface {
+
+    /** The instanced mesh */
+    protected Mesh mesh;
+
+    /** The material of this instance, or null for the mesh's */
+    protected Material material = null;
+
+    /** The placement of the mesh, with an orthonormal basis */
+    protected final Frame3 frame = new Frame3();
+
+    /** The uniform scale applied before the frame */
+    protected double scale = 1;
+
+    /** Each thread's ray in the mesh's space, reused by intersect() */
+    private static final ThreadLocal<Ray> localRay = ThreadLocal.withInitial(Ray::new);
+
+    /** The error bound of the four roundings of a frame transform */
+    private static final double GAMMA_4 = Geometry.gamma(4);
+
+    /**
+     * Relative tolerance on the lengths and dot products of the frame's axes, enough
+     * for matrices written out to four or five significant digits
+     */
+    public static final double FRAME_TOLERANCE = 1e-4;
+
+    public Instance() { }
+
+    public Instance(Mesh mesh, double[] m) {
+        setMesh(mesh);
+        setFrame(m);
+    }
+
+    public void setMesh(Mesh mesh) {
+        this.mesh = mesh;
+    }
+
+    public Mesh getMesh() {
+        return mesh;
+    }
+
+    /**
+     * @param m a row-major 3x4 matrix, a rotation times a uniform scale followed by
+     *        a translation; anything else (non-uniform scale, shear or a mirror) is
+     *        rejected, since intersect() relies on it
+     */
+    public void setFrame(double[] m) {
+        frame.set(m);
+        scale = frame.u.length();
+        double tol = FRAME_TOLERANCE * scale;
+        if (!(scale > 0)
+            || Math.abs(frame.v.length() - scale) > tol || Math.abs(frame.w.length() - scale) > tol
+            || Math.abs(frame.u.dot(frame.v)) > tol * scale || Math.abs(frame.v.dot(frame.w)) > tol * scale
+            || Math.abs(frame.w.dot(frame.u)) > tol * scale)
+            throw new SceneError("Instance.setFrame(): the 3x3 part of the frame must be a rotation times a uniform scale.");
+        Vector3 uxv = new Vector3();
+        uxv.cross(frame.u, frame.v);
+        if (uxv.dot(frame.w) <= 0)
+            throw new SceneError("Instance.setFrame(): the frame must not mirror the mesh.");
+        frame.u.scale(1 / scale);
+        frame.v.scale(1 / scale);
+        frame.w.scale(1 / scale);
+    }
+
+    /**
+     * @see ray.surface.Surface#getMaterial()
+     */
+    public Material getMaterial() {
+        return material != null ? material : mesh.getMaterial();
+    }
+
+    /**
+     * @see ray.surface.Surface#setMaterial(ray.material.Material)
+     */
+    public void setMaterial(Material material) {
+        this.material = material;
+    }
+
+    public void updateArea() {
+        area = 0;
+        MeshTriangle[] triangles = mesh.getTriangles();
+        for (int i = 0; i < triangles.length; i++)
+            area += triangles[i].getArea();
+        area *= scale * scale;
+        oneOverArea = area > 0 ? 1 / area : 0;
+    }
+
+    /**
+     * Intersect the ray, moved into the mesh's space, with the mesh's BVH.  The
+     * record comes back in world space with this instance as its surface.  Texture
+     * differentials are found here, while the triangle and the ray are in the same
+     * space.
+     *
+     * @see ray.surface.Surface#intersect(ray.misc.IntersectionRecord, ray.misc.Ray)
+     */
+    public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+
+        // Meshes hold no instances, so a thread is in one intersect() at a time
+        Ray local = localRay.get();
+        toObject(ray.origin, ray.direction, local.origin, local.direction);
+        local.updateShear();
+        local.start = ray.start;
+        local.end = ray.end;
+        local.hasDifferentials = ray.hasDifferentials;
+        if (ray.hasDifferentials) {
+            toObject(ray.dxOrigin, ray.dxDirection, local.dxOrigin, local.dxDirection);
+            toObject(ray.dyOrigin, ray.dyDirection, local.dyOrigin, local.dyDirection);
+        }
+
+        if (!mesh.getAccelerationStructure().getFirstIntersection(outRecord, local))
+            return false;
+        if (ray.hasDifferentials)
+            outRecord.surface.computeTextureDifferentials(outRecord, local);
+
+        Frame3 hit = outRecord.frame;
+        hit.o.scale(scale);
+        Vector3 offset = outRecord.offset;
+        if (offset.x != 0 || offset.y != 0 || offset.z != 0) {
+            // Grow the offset by the error of moving the hit point: each world
+            // coordinate sums the frame origin and the rotated point, so it is off
+            // by at most gamma(4) times their magnitudes, and along the normal by up
+            // to sqrt(3) times that
+            double error = GAMMA_4 * Math.sqrt(3)
+                           * (Math.max(Math.abs(frame.o.x), Math.max(Math.abs(frame.o.y), Math.abs(frame.o.z)))
+                              + Math.abs(hit.o.x) + Math.abs(hit.o.y) + Math.abs(hit.o.z));
+            offset.scale(scale);
+            frame.frameToCanonical(offset);
+            offset.scale(1 + error / offset.length());
+        }
+        frame.frameToCanonical(hit.o);
+        frame.frameToCanonical(hit.u);
+        frame.frameToCanonical(hit.v);
+        frame.frameToCanonical(hit.w);
+        outRecord.surface = this;
+        return true;
+    }
+
+    private void toObject(Point3 origin, Vector3 direction, Point3 outOrigin, Vector3 outDirection) {
+        outOrigin.set(origin);
+        frame.canonicalToFrame(outOrigin);
+        outOrigin.scale(1 / scale);
+        outDirection.set(direction);
+        frame.canonicalToFrame(outDirection);
+        outDirection.scale(1 / scale);
+    }
+
+    /**
+     * Already done by intersect(), in the mesh's space.
+     *
+     * @see ray.surface.Surface#computeTextureDifferentials(ray.misc.IntersectionRecord, ray.misc.Ray)
+     */
+    public void computeTextureDifferentials(IntersectionRecord iRec, Ray ray) {
+    }
+
+    /**
+     * Grow the box by the corners of the mesh's box, placed.
+     *
+     * @see ray.surface.Surface#addToBoundingBox(ray.accel.AxisAlignedBoundingBox)
+     */
+    public void addToBoundingBox(AxisAlignedBoundingBox inBox) {
+        AxisAlignedBoundingBox meshBox = mesh.getAccelerationStructure().getBoundingBox();
+        Point3 corner = new Point3();
+        for (int i = 0; i < 8; i++) {
+            meshBox.getCorner(i, corner);
+            corner.scale(scale);
+            frame.frameToCanonical(corner);
+            inBox.add(corner);
+        }
+    }
+
+    /**
+     * @see ray.surface.Surface#getCenter(ray.math.Point3)
+     */
+    public void getCenter(Point3 outCenter) {
+        AxisAlignedBoundingBox meshBox = mesh.getAccelerationStructure().getBoundingBox();
+        Point3 corner = new Point3();
+        meshBox.getCorner(0, outCenter);
+        meshBox.getCorner(7, corner);
+        outCenter.add(corner);
+        outCenter.scale(0.5 * scale);
+        frame.frameToCanonical(outCenter);
+    }
+
+    /**
+     * Never called: Scene.addSurface() rejects emissive instances.
+     */
+    public boolean chooseSamplePoint(Point3 p, Point2 seed, LuminaireSamplingRecord lRec) {
+        throw new Error("Instance.chooseSamplePoint(): instanced meshes cannot be luminaires.");
+    }
+}
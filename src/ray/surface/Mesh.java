@@ -1,9 +1,17 @@
 package ray.surface;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 
+import ray.accel.AccelerationStructure;
 import ray.accel.AxisAlignedBoundingBox;
+import ray.accel.BVHBuilder;
+import ray.accel.BVHCache;
+import ray.accel.FlatBVH;
+import ray.accel.QuantizedBVH;
 import ray.material.Material;
 import ray.math.Frame3;
 import ray.math.Point2;
@@ -11,6 +19,7 @@ import ray.math.Point3;
 import ray.misc.IntersectionRecord;
 import ray.misc.LuminaireSamplingRecord;
 import ray.misc.Ray;
+import ray.misc.RenderEvents;
 
 
 /**
@@ -45,6 +54,12 @@ public class Mesh extends Surface {
     /** Mesh triangle objects for each triangle. */
     protected MeshTriangle[] triangles;
     
+    /** The BVH over the triangles, built on first use and shared by all instances */
+    protected volatile AccelerationStructure accel;
+    
+    /** Bits per coordinate of the quantized BVH, or 0 for full precision */
+    protected int quantization = 0;
+    
     /**
      * Default constructor creates an empty mesh
      */
@@ -166,6 +181,9 @@ public class Mesh extends Surface {
      */
     public void setData(String fileName) {
         
+        RenderEvents.MeshLoad event = new RenderEvents.MeshLoad();
+        event.begin();
+        
         //  Create a buffered reader for the mesh file
         try {
             BufferedReader fr = new BufferedReader(new FileReader(fileName));
@@ -175,6 +193,86 @@ public class Mesh extends Surface {
             e.printStackTrace();
             throw new Error("ray1.surface.Mesh.setData(): Error reading mesh file.");
         }
+        
+        event.file = fileName;
+        event.vertices = numVertices;
+        event.triangles = numTriangles;
+        event.commit();
+    }
+    
+    /**
+     * Note: returns the actual vertex array, 3 floats per vertex in world space.
+     *
+     * @return Returns the vertices.
+     */
+    public float[] getVertices() {
+        
+        return this.verts;
+    }
+    
+    /**
+     * Move the vertices of this mesh, keeping its triangles, e.g. for the next frame
+     * of an animation.  Call Scene.update() afterwards so the acceleration structure
+     * follows.  Normals are left as they were.
+     *
+     * @param positions the new positions, 3 floats per vertex in the mesh's frame
+     */
+    public void setVertexPositions(float[] positions) {
+        
+        if (positions.length != verts.length)
+            throw new Error("Mesh.setVertexPositions(): expected " + numVertices + " vertices");
+        System.arraycopy(positions, 0, verts, 0, verts.length);
+        for (int i = 0; i < numVertices; i++)
+            frame.frameToCanonicalPoint(verts, 3*i);
+        for (int i = 0; i < numTriangles; i++)
+            triangles[i].updateArea();
+    }
+    
+    /**
+     * The bottom-level BVH over this mesh's triangles, in the mesh's own space, a
+     * FlatBVH of the median split, which traces rays without allocating.  It is
+     * built (or mapped from the BVHCache, if one is set) on the first call and
+     * shared by every Instance of the mesh.
+     *
+     * @return the BVH
+     */
+    public AccelerationStructure getAccelerationStructure() {
+        
+        AccelerationStructure result = accel;
+        if (result == null) {
+            synchronized (this) {
+                if (accel == null) {
+                    ArrayList<Surface> list = new ArrayList<Surface>(Arrays.asList(triangles));
+                    File cacheDir = BVHCache.getDirectory();
+                    if (quantization > 0) {
+                        FlatBVH bvh = cacheDir != null ? BVHCache.get(list, cacheDir, BVHBuilder.MEDIAN_SPLIT)
+                                                       : BVHBuilder.MEDIAN_SPLIT.build(list);
+                        accel = new QuantizedBVH(bvh, quantization);
+                    } else
+                        accel = cacheDir != null ? BVHCache.get(list, cacheDir, BVHBuilder.MEDIAN_SPLIT)
+                                               : BVHBuilder.MEDIAN_SPLIT.build(list);
+                }
+                result = accel;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * @param bits 8 or 16 to keep the shared BVH as a QuantizedBVH, a quarter or half
+     *        the size, for large meshes; 0 for full precision
+     */
+    public void setQuantization(int bits) {
+        this.quantization = bits;
+    }
+    
+    /**
+     * Refit the shared BVH after setVertexPositions(), if it has been built.
+     */
+    public synchronized void update() {
+        
+        if (accel != null)
+            accel.update();
     }
     
     public void setFrame(double[] m) {
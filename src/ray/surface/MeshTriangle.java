@@ -4,6 +4,10 @@
  */
 package ray.surface;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
 import ray.accel.AxisAlignedBoundingBox;
 import ray.material.Material;
 import ray.math.Point2;
@@ -58,6 +62,13 @@ public class MeshTriangle extends Surface {
         return mesh.material;
     }
   
+    /**
+     * @return the mesh containing this triangle, whose vertices v0, v1 and v2 index
+     */
+    public Mesh getMesh() {
+        return mesh;
+    }
+  
     /**
      * @see ray.surface.Surface#setMaterial(ray.material.Material)
      */
@@ -83,78 +94,87 @@ public class MeshTriangle extends Surface {
      * reads the vertex data from the mesh array and computes the normals from the
      * normal array (if present)
      *
-     * The implemented method closely follows the Cramer's rule method
-     * described on page 208 of Shirley.
+     * The implemented method is the watertight test of Triangle.intersect().
+     * The vertices are floats, read once and used exactly, so triangles sharing
+     * an edge compute the same edge function for it.
      *
      * @see ray.surface.Surface#intersect(ray.misc.IntersectionRecord,
      *      ray.misc.Ray)
      */
     public boolean intersect(IntersectionRecord outRecord, Ray ray) {
   
-      // Rename the components of each vertex for convienience (and save many
-      // field access computations)
-      final double v0x = mesh.verts[3 * v0];
-      final double v0y = mesh.verts[3 * v0 + 1];
-      final double v0z = mesh.verts[3 * v0 + 2];
-      final double v1x = mesh.verts[3 * v1];
-      final double v1y = mesh.verts[3 * v1 + 1];
-      final double v1z = mesh.verts[3 * v1 + 2];
-      final double v2x = mesh.verts[3 * v2];
-      final double v2y = mesh.verts[3 * v2 + 1];
-      final double v2z = mesh.verts[3 * v2 + 2];
-  
-      // Compute elements of the triangle ray matrix
-      double A = v0x - v1x;
-      double B = v0y - v1y;
-      double C = v0z - v1z;
-      double D = v0x - v2x;
-      double E = v0y - v2y;
-      double F = v0z - v2z;
-  
-      // Rename ray directions for clarity and convenience
-      double G = ray.direction.x;
-      double H = ray.direction.y;
-      double I = ray.direction.z;
-  
-      // Compute the factors in the numerator of the beta coordinate
-      double EIHF = E * I - H * F;
-      double GFDI = G * F - D * I;
-      double DHEG = D * H - E * G;
-  
-      // Try and minimize divides (they are expensive). Compute inverse of the
-      // denominator factor
-      double inv_denom = 1.0 / (A * EIHF + B * GFDI + C * DHEG);
-  
-      // Compute the direction from the ray origin to the first vertex
-      double J = v0x - ray.origin.x;
-      double K = v0y - ray.origin.y;
-      double L = v0z - ray.origin.z;
-  
-      // Compute the beta coordinate
-      double beta = inv_denom * (J * EIHF + K * GFDI + L * DHEG);
-  
-      // If the intersection is out of this range it doesn't fall on the triangle
-      if (beta < 0 || beta > 1 || Double.isNaN(beta))
+      final int kx = ray.kx;
+      final int ky = ray.ky;
+      final int kz = ray.kz;
+      final float[] verts = mesh.verts;
+      final int i0 = 3 * v0;
+      final int i1 = 3 * v1;
+      final int i2 = 3 * v2;
+  
+      // The vertices relative to the ray origin, with the axes permuted so that
+      // the largest component of the direction is z
+      final double ox = ray.okx;
+      final double oy = ray.oky;
+      final double oz = ray.okz;
+      double p0x = verts[i0 + kx] - ox;
+      double p0y = verts[i0 + ky] - oy;
+      double p0z = verts[i0 + kz] - oz;
+      double p1x = verts[i1 + kx] - ox;
+      double p1y = verts[i1 + ky] - oy;
+      double p1z = verts[i1 + kz] - oz;
+      double p2x = verts[i2 + kx] - ox;
+      double p2y = verts[i2 + ky] - oy;
+      double p2z = verts[i2 + kz] - oz;
+  
+      // Shear them so that the ray runs along +z
+      final double sx = ray.sx;
+      final double sy = ray.sy;
+      p0x += sx * p0z;
+      p0y += sy * p0z;
+      p1x += sx * p1z;
+      p1y += sy * p1z;
+      p2x += sx * p2z;
+      p2y += sy * p2z;
+  
+      // The edge functions: the ray passes inside if they all have the same sign.
+      // The signs are combined without short-circuiting, so the test has one exit.
+      double e0 = p1x * p2y - p1y * p2x;
+      double e1 = p2x * p0y - p2y * p0x;
+      double e2 = p0x * p1y - p0y * p1x;
+      double det = e0 + e1 + e2;
+      if ((e0 < 0 | e1 < 0 | e2 < 0) & (e0 > 0 | e1 > 0 | e2 > 0) | det == 0)
         return false;
   
-      // Compute the factors of the numerator of the gamma coordinate
-      double AKJB = A * K - J * B;
-      double JCAL = J * C - A * L;
-      double BLKC = B * L - K * C;
-  
-      // Calculate the other barycentric coordinate
-      double gamma = inv_denom * (I * AKJB + H * JCAL + G * BLKC);
-  
-      // If the intersection is out of this range it doesn't fall on the triangle
-      if (gamma < 0 || beta + gamma > 1 || Double.isNaN(gamma))
+      // Check the scaled t against the ray's extent before paying for the divide,
+      final double sz = ray.sz;
+      p0z *= sz;
+      p1z *= sz;
+      p2z *= sz;
+      double tScaled = e0 * p0z + e1 * p1z + e2 * p2z;
+      // with det's sign moved onto tScaled so both cases compare the same way
+      double absDet = Math.abs(det);
+      double tSigned = Triangle.withSignOf(tScaled, det);
+      if (!(tSigned >= ray.start * absDet & tSigned <= ray.end * absDet))
+        return false;
+      double invDet = 1 / det;
+      double t = tScaled * invDet;
+  
+      // Hits within the error of t may be the surface the ray starts on
+      double maxZ = Triangle.max(Math.abs(p0z), Math.abs(p1z), Math.abs(p2z));
+      double maxX = Triangle.max(Math.abs(p0x), Math.abs(p1x), Math.abs(p2x));
+      double maxY = Triangle.max(Math.abs(p0y), Math.abs(p1y), Math.abs(p2y));
+      if (t <= Triangle.tError(maxX, maxY, maxZ, Triangle.max(Math.abs(e0), Math.abs(e1), Math.abs(e2)), invDet))
         return false;
   
-      // Calculate the ray t value
-      double t = -inv_denom * (F * AKJB + E * JCAL + D * BLKC);
+      setHit(outRecord, t, e0 * invDet, e1 * invDet, e2 * invDet);
+      return true;
+    }
   
-      // Check that we are on the corrent half line of the ray
-      if (t < ray.start || t > ray.end || Double.isNaN(t))
-        return false;
+    /**
+     * Fill out the record of a hit at t with barycentric coordinates (weight0,
+     * beta, gamma).  Apart from intersect() so that the test itself stays small.
+     */
+    private void setHit(IntersectionRecord outRecord, double t, double weight0, double beta, double gamma) {
   
       // Fill out the record
       outRecord.t = t;
@@ -162,19 +182,40 @@ public class MeshTriangle extends Surface {
   
       // Faster to compute location using barycentric coordinates than
       // computations using Vector3
-      double weight0 = 1 - beta - gamma; // Barycentric coordinates total 1
+      final float[] verts = mesh.verts;
+      final int i0 = 3 * v0;
+      final int i1 = 3 * v1;
+      final int i2 = 3 * v2;
+      final double v0x = verts[i0];
+      final double v0y = verts[i0 + 1];
+      final double v0z = verts[i0 + 2];
+      final double v1x = verts[i1];
+      final double v1y = verts[i1 + 1];
+      final double v1z = verts[i1 + 2];
+      final double v2x = verts[i2];
+      final double v2y = verts[i2 + 1];
+      final double v2z = verts[i2 + 2];
       outRecord.frame.o.set(weight0 * v0x + beta * v1x + gamma * v2x, weight0 * v0y + beta * v1y + gamma * v2y, weight0 * v0z + beta * v1z + gamma * v2z);
   
+      // The geometric normal, for the offset of rays leaving the hit point
+      double ux = v1x - v0x;
+      double uy = v1y - v0y;
+      double uz = v1z - v0z;
+      double wx = v2x - v0x;
+      double wy = v2y - v0y;
+      double wz = v2z - v0z;
+      double normx = uy * wz - uz * wy;
+      double normy = uz * wx - ux * wz;
+      double normz = ux * wy - uy * wx;
+      Triangle.setOffset(outRecord, normx, normy, normz,
+                         Triangle.GAMMA_7 * (Math.abs(weight0 * v0x) + Math.abs(beta * v1x) + Math.abs(gamma * v2x)),
+                         Triangle.GAMMA_7 * (Math.abs(weight0 * v0y) + Math.abs(beta * v1y) + Math.abs(gamma * v2y)),
+                         Triangle.GAMMA_7 * (Math.abs(weight0 * v0z) + Math.abs(beta * v1z) + Math.abs(gamma * v2z)));
+  
       // If the normals array is empty use the old calculation
       if (mesh.normals == null) {
   
-        // Calculate the normal of the triangle. Again this could be precomputed,
-        // but space usually ends up being more important. Plus this is done
-        // only when the ray intersects, usually much less than the test is
-        // performed.
-        double normx = B * F - C * E;
-        double normy = C * D - A * F;
-        double normz = A * E - B * D;
+        // Without normals the shading normal is the geometric one
         outRecord.frame.w.set(normx, normy, normz);
         outRecord.frame.initFromW();
   
@@ -216,18 +257,97 @@ public class MeshTriangle extends Surface {
         outRecord.texCoords.set(weight0 * t0x + beta * t1x + gamma * t2x, weight0 * t0y + beta * t1y + gamma * t2y);
   
       }
-  
-      return true;
     }
   
+    /**
+     * Intersects both differential rays with the plane of this triangle and
+     * interpolates the texture coordinates there.  The differences to the
+     * texture coordinates of the hit give the footprint of a pixel in texture
+     * space.
+     *
+     * @see ray.surface.Surface#computeTextureDifferentials(ray.misc.IntersectionRecord, ray.misc.Ray)
+     */
+    public void computeTextureDifferentials(IntersectionRecord iRec, Ray ray) {
+
+      iRec.dudx = iRec.dvdx = iRec.dudy = iRec.dvdy = 0;
+      if (mesh.texcoords == null)
+        return;
+
+      planeTexCoordDifference(ray.dxOrigin, ray.dxDirection, iRec, false);
+      planeTexCoordDifference(ray.dyOrigin, ray.dyDirection, iRec, true);
+    }
+
+    /**
+     * Intersect the line origin + t dir with the plane of this triangle, by
+     * Cramer's rule without clipping to the triangle, and set the texture
+     * derivatives of iRec along x (or y) to the texture coordinates there minus
+     * those of the hit.  They stay zero if the line is parallel to the plane.
+     * Computed in place, since this runs on every hit of a camera ray.
+     *
+     * @param origin the line origin
+     * @param dir the line direction
+     * @param iRec the hit, with its texture coordinates set
+     * @param alongY whether to set dudy and dvdy rather than dudx and dvdx
+     */
+    private void planeTexCoordDifference(Point3 origin, Vector3 dir, IntersectionRecord iRec, boolean alongY) {
+
+      final float[] verts = mesh.verts;
+      double A = verts[3 * v0] - verts[3 * v1];
+      double B = verts[3 * v0 + 1] - verts[3 * v1 + 1];
+      double C = verts[3 * v0 + 2] - verts[3 * v1 + 2];
+      double D = verts[3 * v0] - verts[3 * v2];
+      double E = verts[3 * v0 + 1] - verts[3 * v2 + 1];
+      double F = verts[3 * v0 + 2] - verts[3 * v2 + 2];
+      double G = dir.x, H = dir.y, I = dir.z;
+
+      double EIHF = E * I - H * F;
+      double GFDI = G * F - D * I;
+      double DHEG = D * H - E * G;
+      double denom = A * EIHF + B * GFDI + C * DHEG;
+      if (denom == 0)
+        return;
+      double inv_denom = 1.0 / denom;
+
+      double J = verts[3 * v0] - origin.x;
+      double K = verts[3 * v0 + 1] - origin.y;
+      double L = verts[3 * v0 + 2] - origin.z;
+
+      double AKJB = A * K - J * B;
+      double JCAL = J * C - A * L;
+      double BLKC = B * L - K * C;
+
+      double beta = inv_denom * (J * EIHF + K * GFDI + L * DHEG);
+      double gamma = inv_denom * (I * AKJB + H * JCAL + G * BLKC);
+      double du = interpolateTexCoord(0, beta, gamma) - iRec.texCoords.x;
+      double dv = interpolateTexCoord(1, beta, gamma) - iRec.texCoords.y;
+      if (alongY) {
+        iRec.dudy = du;
+        iRec.dvdy = dv;
+      } else {
+        iRec.dudx = du;
+        iRec.dvdx = dv;
+      }
+    }
+
+    /**
+     * Interpolate one component of the texture coordinates at the barycentric coordinates (beta, gamma).
+     */
+    private double interpolateTexCoord(int component, double beta, double gamma) {
+
+      double weight0 = 1 - beta - gamma;
+      return weight0 * mesh.texcoords[2 * v0 + component] +
+             beta * mesh.texcoords[2 * v1 + component] +
+             gamma * mesh.texcoords[2 * v2 + component];
+    }
+
     /**
      * @see ray.surface.Surface#getCenter(ray.math.Point3)
      */
     public void getCenter(Point3 outCenter) {
   
-      outCenter.set(mesh.verts[3*v0] + mesh.verts[3*v1] + mesh.verts[3*v1],
-                    mesh.verts[3*v0+1] + mesh.verts[3*v1+1] + mesh.verts[3*v1+1],
-                    mesh.verts[3*v0+2] + mesh.verts[3*v1+2] + mesh.verts[3*v1+2]);
+      outCenter.set(mesh.verts[3*v0] + mesh.verts[3*v1] + mesh.verts[3*v2],
+                    mesh.verts[3*v0+1] + mesh.verts[3*v1+1] + mesh.verts[3*v2+1],
+                    mesh.verts[3*v0+2] + mesh.verts[3*v1+2] + mesh.verts[3*v2+2]);
       outCenter.scale(1/3.);
       
     }
@@ -241,6 +361,16 @@ public class MeshTriangle extends Surface {
         inBox.add(mesh.verts[3*v2], mesh.verts[3*v2+1], mesh.verts[3*v2+2]);
     }
   
+    /**
+     * @see ray.surface.Surface#addClippedToBoundingBox(ray.accel.AxisAlignedBoundingBox, ray.accel.AxisAlignedBoundingBox)
+     */
+    public void addClippedToBoundingBox(AxisAlignedBoundingBox clip, AxisAlignedBoundingBox inBox) {
+        final float[] verts = mesh.verts;
+        inBox.addClippedTriangle(new Point3(verts[3*v0], verts[3*v0+1], verts[3*v0+2]),
+                                 new Point3(verts[3*v1], verts[3*v1+1], verts[3*v1+2]),
+                                 new Point3(verts[3*v2], verts[3*v2+1], verts[3*v2+2]), clip);
+    }
+  
     public boolean chooseSamplePoint(Point3 p, Point2 seed, LuminaireSamplingRecord lRec) {
         Point2 baryPt = new Point2();
         Geometry.squareToTriangle(seed, baryPt);
@@ -265,4 +395,142 @@ public class MeshTriangle extends Surface {
         return oneOverArea;
     }
   
+    /**
+     * A closed sphere mesh: an octahedron subdivided sub times, with the vertices
+     * pushed out to the sphere around center of the given radius.
+     */
+    private static Mesh sphere(int sub, Point3 center, double radius) {
+        ArrayList<double[]> verts = new ArrayList<double[]>();
+        for (int axis = 0; axis < 3; axis++)
+            for (int side = 1; side >= -1; side -= 2) {
+                double[] v = new double[3];
+                v[axis] = side;
+                verts.add(v);
+            }
+        ArrayList<int[]> tris = new ArrayList<int[]>();
+        for (int i = 0; i < 8; i++) {
+            int x = (i & 1), y = 2 + (i >> 1 & 1), z = 4 + (i >> 2 & 1);
+            // keep the faces counterclockwise seen from outside
+            tris.add((x + y + z) % 2 == 0 ? new int[] { x, y, z } : new int[] { y, x, z });
+        }
+        for (int s = 0; s < sub; s++) {
+            HashMap<Long, Integer> midpoints = new HashMap<Long, Integer>();
+            ArrayList<int[]> finer = new ArrayList<int[]>();
+            for (int[] t : tris) {
+                int[] m = new int[3];
+                for (int e = 0; e < 3; e++) {
+                    int a = t[e], b = t[(e + 1) % 3];
+                    long key = (long) Math.min(a, b) << 32 | Math.max(a, b);
+                    Integer id = midpoints.get(key);
+                    if (id == null) {
+                        double[] p = verts.get(a), q = verts.get(b);
+                        Vector3 mid = new Vector3(p[0] + q[0], p[1] + q[1], p[2] + q[2]);
+                        mid.normalize();
+                        id = verts.size();
+                        verts.add(new double[] { mid.x, mid.y, mid.z });
+                        midpoints.put(key, id);
+                    }
+                    m[e] = id;
+                }
+                finer.add(new int[] { t[0], m[0], m[2] });
+                finer.add(new int[] { t[1], m[1], m[0] });
+                finer.add(new int[] { t[2], m[2], m[1] });
+                finer.add(m);
+            }
+            tris = finer;
+        }
+        float[] vertData = new float[3 * verts.size()];
+        for (int i = 0; i < verts.size(); i++) {
+            double[] v = verts.get(i);
+            vertData[3*i] = (float) (center.x + radius * v[0]);
+            vertData[3*i+1] = (float) (center.y + radius * v[1]);
+            vertData[3*i+2] = (float) (center.z + radius * v[2]);
+        }
+        int[] triData = new int[3 * tris.size()];
+        for (int i = 0; i < tris.size(); i++)
+            System.arraycopy(tris.get(i), 0, triData, 3*i, 3);
+        return new Mesh(vertData, triData, null, null, null);
+    }
+  
+    /**
+     * Check that the intersection test is watertight and that offset rays do not
+     * find the surface they leave: rays from inside closed sphere meshes, near and
+     * far from the origin, aim at points on edges and at vertices and must all hit
+     * the mesh; rays leaving each hit at grazing angles, outwards and inwards, must
+     * not hit the triangle they leave.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(7);
+        int rays = 20000;
+        double[][] spheres = { { 0, 1 }, { 1000, 1 }, { 1e5, 3 }, { -50, 0.01 } };
+        int failures = 0;
+        IntersectionRecord rec = new IntersectionRecord(), hit = new IntersectionRecord();
+        for (double[] sphere : spheres) {
+            double c = sphere[0], radius = sphere[1];
+            Point3 center = new Point3(c, 1.37 * c, 1.74 * c);
+            MeshTriangle[] tris = sphere(3, center, radius).getTriangles();
+            float[] verts = tris[0].mesh.verts;
+            int leaks = 0, outward = 0, inward = 0;
+            for (int n = 0; n < rays; n++) {
+  
+                // A point on an edge of a random triangle, or one of its vertices
+                MeshTriangle target = tris[random.nextInt(tris.length)];
+                int[] corners = { target.v0, target.v1, target.v2 };
+                int e = random.nextInt(3);
+                int i = 3 * corners[e], j = 3 * corners[(e + 1) % 3];
+                double f = random.nextInt(4) == 0 ? 0 : random.nextDouble();
+                Point3 p = new Point3(verts[i] + f * (verts[j] - verts[i]),
+                                      verts[i+1] + f * (verts[j+1] - verts[i+1]),
+                                      verts[i+2] + f * (verts[j+2] - verts[i+2]));
+                Point3 o = new Point3(center.x + (random.nextDouble() - .5) * radius * 0.5,
+                                      center.y + (random.nextDouble() - .5) * radius * 0.5,
+                                      center.z + (random.nextDouble() - .5) * radius * 0.5);
+                Vector3 d = new Vector3();
+                d.sub(p, o);
+                d.normalize();
+                Ray ray = new Ray(o, d);
+                ray.start = 0;
+                ray.end = Double.POSITIVE_INFINITY;
+                boolean found = false;
+                for (MeshTriangle t : tris)
+                    if (t.intersect(rec, ray)) {
+                        found = true;
+                        ray.end = rec.t;
+                        hit.set(rec);
+                    }
+                if (!found) {
+                    leaks++;
+                    continue;
+                }
+  
+                // Leave the hit at a grazing angle, to each side of the surface
+                Vector3 normal = new Vector3(hit.frame.w);
+                if (normal.dot(d) < 0)
+                    normal.scale(-1);
+                Vector3 tangent = new Vector3();
+                tangent.cross(normal, new Vector3(0.3, 0.5, 0.8));
+                tangent.normalize();
+                double graze = Math.pow(10, -1 - 5 * random.nextDouble());
+                for (int side = 1; side >= -1; side -= 2) {
+                    Vector3 dir = new Vector3(tangent);
+                    dir.scaleAdd(side * graze, normal);
+                    dir.normalize();
+                    Ray leave = new Ray(hit.frame.o, dir);
+                    leave.makeOffsetRay(hit);
+                    if (hit.surface.intersect(rec, leave)) {
+                        if (side > 0)
+                            outward++;
+                        else
+                            inward++;
+                    }
+                }
+            }
+            System.out.println(tris.length + " triangles of radius " + radius + " around " + center + ": "
+                               + rays + " rays, " + leaks + " leaks, " + outward + " outward and "
+                               + inward + " inward self-hits");
+            failures += leaks + outward + inward;
+        }
+        if (failures > 0)
+            throw new Error("MeshTriangle: " + failures + " leaks or self-hits");
+    }
 }
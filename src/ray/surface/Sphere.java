@@ -157,6 +157,7 @@ public class Sphere extends Surface {
         outRecord.surface = this;
         outRecord.frame.w.sub(outRecord.frame.o, center);
         outRecord.frame.initFromW();
+        outRecord.offset.set(0, 0, 0);
         return true;
     }
 
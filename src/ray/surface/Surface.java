@@ -67,6 +67,23 @@ public abstract class Surface {
      */
     public abstract void addToBoundingBox(AxisAlignedBoundingBox inBox);
     
+    /**
+     * Grow the bounding box to include the part of this surface inside the clip
+     * box, as needed for spatial splits.  This default uses the overlap of the
+     * surface's bounding box with the clip box, which is larger than necessary but
+     * safe; surfaces that can clip themselves exactly override it.
+     *
+     * @param clip   the clip box
+     * @param inBox  the bounding box to be grown
+     */
+    public void addClippedToBoundingBox(AxisAlignedBoundingBox clip, AxisAlignedBoundingBox inBox) {
+        AxisAlignedBoundingBox box = new AxisAlignedBoundingBox();
+        addToBoundingBox(box);
+        box.clip(clip);
+        if (!box.isEmpty())
+            inBox.add(box);
+    }
+    
     /**
      * Return an estimate of the center of this surface
      *
@@ -98,6 +115,19 @@ public abstract class Surface {
         return oneOverArea;
     }
 
+    /**
+     * Fill in the texture coordinate derivatives of iRec from the differentials
+     * of the ray that produced it.  Surfaces without texture coordinates leave
+     * the derivatives at zero, which selects the finest texture level.
+     *
+     * @param iRec the intersection found along ray
+     * @param ray  the ray carrying differentials
+     */
+    public void computeTextureDifferentials(IntersectionRecord iRec, Ray ray)
+    {
+        iRec.dudx = iRec.dvdx = iRec.dudy = iRec.dvdy = 0;
+    }
+
     /**
      * Comparator for surfaces
      * @author arbree
@@ -29,6 +29,12 @@ public class Triangle extends Surface {
     /** The third vertex. */
     public final Point3 v2 = new Point3(0,1,0);
     
+    /** Geometry.gamma(n), for the error bounds of this test and MeshTriangle's */
+    static final double GAMMA_2 = Geometry.gamma(2);
+    static final double GAMMA_3 = Geometry.gamma(3);
+    static final double GAMMA_5 = Geometry.gamma(5);
+    static final double GAMMA_7 = Geometry.gamma(7);
+    
     /**
      * Default contructor
      */
@@ -131,76 +137,77 @@ public class Triangle extends Surface {
      * cost of calling the method. This is why I can freely allocate so many
      * doubles.
      *
-     * The implemented method closely follows the Cramer's rule method
-     * described on page 208 of Shirley.
+     * The implemented method is the watertight test of Woop, Benthin and Wald
+     * (JCGT 2013).  The vertices are moved into a space where the ray starts at
+     * the origin and runs along +z, with shear constants the ray computes when
+     * its origin and direction are set (Ray.updateShear()), and the signs of the
+     * 2D edge functions there decide the hit.  Two triangles sharing an edge
+     * compute the same edge function for it, so a ray through the edge hits at
+     * least one of them.  A hit must lie beyond the error bound of its t, and the
+     * record's offset bounds the error of the hit point, so rays leaving it need
+     * no fixed epsilon.
      *
      * @see Surface#intersect(IntersectionRecord, Ray)
      */
     public boolean intersect(IntersectionRecord outRecord, Ray ray) {
         
-        // Rename the components of each vertex for convienience (and save many
-        // field access computations)
-        final double v0x = v0.x;
-        final double v0y = v0.y;
-        final double v0z = v0.z;
-        final double v1x = v1.x;
-        final double v1y = v1.y;
-        final double v1z = v1.z;
-        final double v2x = v2.x;
-        final double v2y = v2.y;
-        final double v2z = v2.z;
-        
-        // Compute elements of the triangle ray matrix
-        double A = v0x - v1x;
-        double B = v0y - v1y;
-        double C = v0z - v1z;
-        double D = v0x - v2x;
-        double E = v0y - v2y;
-        double F = v0z - v2z;
-        
-        // Rename ray directions for clarity and convenience
-        double G = ray.direction.x;
-        double H = ray.direction.y;
-        double I = ray.direction.z;
+        final int kx = ray.kx;
+        final int ky = ray.ky;
+        final int kz = ray.kz;
         
-        // Compute the factors in the numerator of the beta coordinate
-        double EIHF = E * I - H * F;
-        double GFDI = G * F - D * I;
-        double DHEG = D * H - E * G;
+        // The vertices relative to the ray origin, with the axes permuted so that
+        // the largest component of the direction is z
+        final double ox = ray.okx;
+        final double oy = ray.oky;
+        final double oz = ray.okz;
+        double p0x = v0.get(kx) - ox;
+        double p0y = v0.get(ky) - oy;
+        double p0z = v0.get(kz) - oz;
+        double p1x = v1.get(kx) - ox;
+        double p1y = v1.get(ky) - oy;
+        double p1z = v1.get(kz) - oz;
+        double p2x = v2.get(kx) - ox;
+        double p2y = v2.get(ky) - oy;
+        double p2z = v2.get(kz) - oz;
         
-        // Try and minimize divides (they are expensive). Compute inverse of the
-        // denominator factor
-        double inv_denom = 1.0 / (A * EIHF + B * GFDI + C * DHEG);
+        // Shear them so that the ray runs along +z
+        final double sx = ray.sx;
+        final double sy = ray.sy;
+        p0x += sx * p0z;
+        p0y += sy * p0z;
+        p1x += sx * p1z;
+        p1y += sy * p1z;
+        p2x += sx * p2z;
+        p2y += sy * p2z;
         
-        // Compute the direction from the ray origin to the first vertex
-        double J = v0x - ray.origin.x;
-        double K = v0y - ray.origin.y;
-        double L = v0z - ray.origin.z;
-        
-        // Compute the beta coordinate
-        double beta = inv_denom * (J * EIHF + K * GFDI + L * DHEG);
-        
-        // If the intersection is out of this range it doesn't fall on the triangle
-        if (beta < 0 || beta > 1)
+        // The edge functions: the ray passes inside if they all have the same sign.
+        // The signs are combined without short-circuiting, so the test has one exit.
+        double e0 = p1x * p2y - p1y * p2x;
+        double e1 = p2x * p0y - p2y * p0x;
+        double e2 = p0x * p1y - p0y * p1x;
+        double det = e0 + e1 + e2;
+        if ((e0 < 0 | e1 < 0 | e2 < 0) & (e0 > 0 | e1 > 0 | e2 > 0) | det == 0)
             return false;
         
-        // Compute the factors of the numerator of the gamma coordinate
-        double AKJB = A * K - J * B;
-        double JCAL = J * C - A * L;
-        double BLKC = B * L - K * C;
-        
-        // Calculate the other barycentric coordinate
-        double gamma = inv_denom * (I * AKJB + H * JCAL + G * BLKC);
-        
-        // If the intersection is out of this range it doesn't fall on the triangle
-        if (gamma < 0 || beta + gamma > 1)
+        // Check the scaled t against the ray's extent before paying for the divide,
+        final double sz = ray.sz;
+        p0z *= sz;
+        p1z *= sz;
+        p2z *= sz;
+        double tScaled = e0 * p0z + e1 * p1z + e2 * p2z;
+        // with det's sign moved onto tScaled so both cases compare the same way
+        double absDet = Math.abs(det);
+        double tSigned = withSignOf(tScaled, det);
+        if (!(tSigned >= ray.start * absDet & tSigned <= ray.end * absDet))
             return false;
+        double invDet = 1 / det;
+        double t = tScaled * invDet;
         
-        // Calculate the ray t value
-        double t = -inv_denom * (F * AKJB + E * JCAL + D * BLKC);
-        
-        // Check that we are on the corrent half line of the ray
-        if (t < ray.start || t > ray.end)
+        // Hits within the error of t may be the surface the ray starts on
+        double maxZ = max(Math.abs(p0z), Math.abs(p1z), Math.abs(p2z));
+        double maxX = max(Math.abs(p0x), Math.abs(p1x), Math.abs(p2x));
+        double maxY = max(Math.abs(p0y), Math.abs(p1y), Math.abs(p2y));
+        if (t <= tError(maxX, maxY, maxZ, max(Math.abs(e0), Math.abs(e1), Math.abs(e2)), invDet))
             return false;
         
         // Fill out the record
@@ -209,22 +216,72 @@ public class Triangle extends Surface {
         
         // Faster to compute location using barycentric coordinates than
         // computations using Vector3
-        double weight0 = 1 - beta - gamma; // Barycentric coordinates total 1
-        outRecord.frame.o.set(weight0 * v0x + beta * v1x + gamma * v2x, weight0 * v0y + beta * v1y + gamma * v2y, weight0 * v0z + beta * v1z + gamma * v2z);
+        double b0 = e0 * invDet;
+        double b1 = e1 * invDet;
+        double b2 = e2 * invDet;
+        outRecord.frame.o.set(b0 * v0.x + b1 * v1.x + b2 * v2.x, b0 * v0.y + b1 * v1.y + b2 * v2.y, b0 * v0.z + b1 * v1.z + b2 * v2.z);
         
         // Calculate the normal of the triangle. Again this could be precomputed,
         // but space usually ends up being more important. Plus this is done
         // only when the ray intersects, usually much less than the test is
         // performed.
-        double normx = B * F - C * E;
-        double normy = C * D - A * F;
-        double normz = A * E - B * D;
+        double ux = v1.x - v0.x;
+        double uy = v1.y - v0.y;
+        double uz = v1.z - v0.z;
+        double vx = v2.x - v0.x;
+        double vy = v2.y - v0.y;
+        double vz = v2.z - v0.z;
+        double normx = uy * vz - uz * vy;
+        double normy = uz * vx - ux * vz;
+        double normz = ux * vy - uy * vx;
         outRecord.frame.w.set(normx, normy, normz);
         outRecord.frame.initFromW();
+        setOffset(outRecord, normx, normy, normz,
+                  GAMMA_7 * (Math.abs(b0 * v0.x) + Math.abs(b1 * v1.x) + Math.abs(b2 * v2.x)),
+                  GAMMA_7 * (Math.abs(b0 * v0.y) + Math.abs(b1 * v1.y) + Math.abs(b2 * v2.y)),
+                  GAMMA_7 * (Math.abs(b0 * v0.z) + Math.abs(b1 * v1.z) + Math.abs(b2 * v2.z)));
         
         return true;
     }
     
+    /** a with its sign flipped if b is negative, without a branch */
+    static double withSignOf(double a, double b) {
+        return Double.longBitsToDouble(Double.doubleToRawLongBits(a) ^ (Double.doubleToRawLongBits(b) & Long.MIN_VALUE));
+    }
+    
+    /** The largest of a, b and c */
+    static double max(double a, double b, double c) {
+        return a > b ? (a > c ? a : c) : (b > c ? b : c);
+    }
+    
+    /**
+     * A conservative bound on the error of t in the watertight test, from the
+     * largest magnitudes of the transformed vertex coordinates and of the edge
+     * functions (following Pharr, Jakob and Humphreys, section 3.9.6).
+     */
+    static double tError(double maxX, double maxY, double maxZ, double maxE, double invDet) {
+        double deltaZ = GAMMA_3 * maxZ;
+        double deltaX = GAMMA_5 * (maxX + maxZ);
+        double deltaY = GAMMA_5 * (maxY + maxZ);
+        double deltaE = 2 * (GAMMA_2 * maxX * maxY + deltaY * maxX + deltaX * maxY);
+        return 3 * (GAMMA_3 * maxE * maxZ + deltaE * maxZ + deltaZ * maxE) * Math.abs(invDet);
+    }
+    
+    /**
+     * Set outRecord.offset from the triangle's normal and the error bounds of the
+     * coordinates of the hit point: along the unit normal n the error is at most
+     * |n.x| errX + |n.y| errY + |n.z| errZ.
+     */
+    static void setOffset(IntersectionRecord outRecord, double normx, double normy, double normz,
+                          double errX, double errY, double errZ) {
+        double scale = 1 / Math.sqrt(normx * normx + normy * normy + normz * normz);
+        normx *= scale;
+        normy *= scale;
+        normz *= scale;
+        double d = Math.abs(normx) * errX + Math.abs(normy) * errY + Math.abs(normz) * errZ;
+        outRecord.offset.set(d * normx, d * normy, d * normz);
+    }
+    
     /**
      * @see Object#toString()
      */
@@ -251,4 +308,11 @@ public class Triangle extends Surface {
         inBox.add(v1);
         inBox.add(v2);        
     }
+    
+    /**
+     * @see ray.surface.Surface#addClippedToBoundingBox(ray.accel.AxisAlignedBoundingBox, ray.accel.AxisAlignedBoundingBox)
+     */
+    public void addClippedToBoundingBox(AxisAlignedBoundingBox clip, AxisAlignedBoundingBox inBox) {
+        inBox.addClippedTriangle(v0, v1, v2, clip);
+    }
 }
@@ -21,6 +21,7 @@ import javax.swing.JPanel;
 
 import ray.misc.Color;
 import ray.misc.Image;
+import ray.misc.Tonemapper;
 
 
 /**
@@ -39,6 +40,9 @@ public class PanelDisplay extends JPanel {
 	/** The type of local image buffer* */
 	private static final int BUFFER_TYPE = BufferedImage.TYPE_3BYTE_BGR;
 	
+	/** Maps the linear images to display values* */
+	private Tonemapper tonemapper = new Tonemapper();
+	
 	/** window to call when size changes* */
 	final Window repackAncestor;
 	
@@ -102,6 +106,15 @@ public class PanelDisplay extends JPanel {
 		setImage(inImage, 0, 0, inImage.getWidth(), inImage.getHeight());
 	}
 	
+	/**
+	 * Set how images are mapped to the display; images set afterwards use it
+	 *
+	 * @param tonemapper the tonemapper for the linear images
+	 */
+	public void setTonemapper(Tonemapper tonemapper) {
+		this.tonemapper = tonemapper;
+	}
+	
 	
 	/**
 	 * @see javax.swing.JComponent#paintComponent(java.awt.Graphics)
@@ -136,6 +149,7 @@ public class PanelDisplay extends JPanel {
 		for (int y = h-yh; y < h-yl; y++) {
 			for (int x = xl; x < xh; x++) {
 				image.getPixelColor(pixelColor,x,h-y-1);
+				tonemapper.map(pixelColor);
 				int rgb = pixelColor.toInt();
 				bufferedImage.setRGB(x,y,rgb);
 			}
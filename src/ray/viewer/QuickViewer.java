@@ -7,6 +7,7 @@ package ray.viewer;
 import javax.swing.JFrame;
 
 import ray.misc.Image;
+import ray.misc.Tonemapper;
 
 
 /**
@@ -53,6 +54,14 @@ public class QuickViewer extends JFrame {
 		imageDisplayPanel.setImage(inImage, xl, yl, xh, yh);	
 	}
 	
+	/**
+	 * Sets how the linear images are mapped to the display
+	 * @param tonemapper the tonemapper to use
+	 */
+	public void setTonemapper(Tonemapper tonemapper) {
+		imageDisplayPanel.setTonemapper(tonemapper);
+	}
+	
 	/**
 	 * Starts the viewing
 	 */